@@ -0,0 +1,202 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.CallEntry;
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmarks of the methods of {@link CallEntry} against the cursors and updates doing the same
+ * work, run on a device. Results are written to the log. The provider runs in the process of
+ * the test, so the calls made through the resolver are counted in place of the binder
+ * transactions they would take from another process.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscCallBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscCallBenchmark.class.getSimpleName();
+
+    /** Number of discs in the table */
+    private static final int ROWS = 20000;
+
+    /** Number of discs adjusted at once */
+    private static final int ADJUSTED_ROWS = 200;
+
+    /** Number of times every read is repeated, each time with another quantity */
+    private static final int READS = 20;
+
+    /** Provider working on its own copy of the database */
+    private DiscProvider provider;
+
+    /** Resolver the provider is called through */
+    private MockContentResolver resolver;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("call.");
+        resolver = new MockContentResolver();
+        resolver.addProvider(DiscContract.CONTENT_AUTHORITY, provider);
+        TestProviders.fill(provider, ROWS);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void countVersusCursor() {
+        // Every quantity is another selection, so the query cache never answers
+        String selection = DiscEntry.COLUMN_DISC_QUANTITY + " = ?";
+        long start = SystemClock.elapsedRealtime();
+        long cursorCount = 0;
+        for (int i = 0; i < READS; i++) {
+            Cursor cursor = resolver.query(DiscEntry.CONTENT_URI, new String[]{DiscEntry._ID},
+                    selection, new String[]{String.valueOf(i)}, null);
+            cursorCount += cursor.getCount();
+            cursor.close();
+        }
+        long cursorMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        long callCount = 0;
+        for (int i = 0; i < READS; i++) {
+            Bundle extras = selectionExtras(selection, i);
+            callCount += call(CallEntry.METHOD_COUNT, extras).getLong(CallEntry.EXTRA_COUNT);
+        }
+        long callMillis = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(cursorCount, callCount);
+        log("count", READS, cursorMillis, READS, callMillis);
+    }
+
+    @Test
+    public void idsVersusCursor() {
+        String selection = DiscEntry.COLUMN_DISC_QUANTITY + " = ?";
+        long start = SystemClock.elapsedRealtime();
+        long[][] cursorIds = new long[READS][];
+        for (int i = 0; i < READS; i++) {
+            Cursor cursor = resolver.query(DiscEntry.CONTENT_URI, new String[]{DiscEntry._ID},
+                    selection, new String[]{String.valueOf(i)}, DiscEntry._ID);
+            cursorIds[i] = new long[cursor.getCount()];
+            for (int n = 0; cursor.moveToNext(); n++) {
+                cursorIds[i][n] = cursor.getLong(0);
+            }
+            cursor.close();
+        }
+        long cursorMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        long[][] callIds = new long[READS][];
+        for (int i = 0; i < READS; i++) {
+            Bundle extras = selectionExtras(selection, i);
+            extras.putString(CallEntry.EXTRA_SORT_ORDER, DiscEntry._ID);
+            callIds[i] = call(CallEntry.METHOD_IDS, extras).getLongArray(CallEntry.EXTRA_IDS);
+        }
+        long callMillis = SystemClock.elapsedRealtime() - start;
+
+        for (int i = 0; i < READS; i++) {
+            assertArrayEquals(cursorIds[i], callIds[i]);
+        }
+        log("ids", READS, cursorMillis, READS, callMillis);
+    }
+
+    @Test
+    public void statsVersusCursor() {
+        // A sale between the reads makes the cached totals stale
+        long cursorMillis = 0;
+        long[] cursorStats = new long[4];
+        for (int i = 0; i < READS; i++) {
+            resolver.update(DiscEntry.buildSellUri(i + 1), null, null, null);
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = resolver.query(StatsEntry.CONTENT_URI, new String[]{
+                    StatsEntry.COLUMN_DISC_COUNT, StatsEntry.COLUMN_UNIT_COUNT,
+                    StatsEntry.COLUMN_STOCK_VALUE, StatsEntry.COLUMN_LOW_STOCK_COUNT},
+                    null, null, null);
+            cursor.moveToFirst();
+            for (int n = 0; n < cursorStats.length; n++) {
+                cursorStats[n] = cursor.getLong(n);
+            }
+            cursor.close();
+            cursorMillis += SystemClock.elapsedRealtime() - start;
+        }
+
+        long callMillis = 0;
+        long[] callStats = null;
+        for (int i = 0; i < READS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            callStats = call(CallEntry.METHOD_STATS, null).getLongArray(CallEntry.EXTRA_STATS);
+            callMillis += SystemClock.elapsedRealtime() - start;
+        }
+
+        assertArrayEquals(cursorStats, callStats);
+        log("stats", READS, cursorMillis, READS, callMillis);
+    }
+
+    @Test
+    public void adjustVersusUpdates() {
+        // Discs 1 to ADJUSTED_ROWS get a copy more, one update call each
+        long start = SystemClock.elapsedRealtime();
+        for (int id = 1; id <= ADJUSTED_ROWS; id++) {
+            assertEquals(1, resolver.update(DiscEntry.buildAdjustUri(id, 1), null, null, null));
+        }
+        long updateMillis = SystemClock.elapsedRealtime() - start;
+
+        // The same discs give the copy back, in a single call
+        long[] ids = new long[ADJUSTED_ROWS];
+        int[] deltas = new int[ADJUSTED_ROWS];
+        for (int i = 0; i < ADJUSTED_ROWS; i++) {
+            ids[i] = i + 1;
+            deltas[i] = -1;
+        }
+        Bundle extras = new Bundle();
+        extras.putLongArray(CallEntry.EXTRA_IDS, ids);
+        extras.putIntArray(CallEntry.EXTRA_DELTAS, deltas);
+        start = SystemClock.elapsedRealtime();
+        long[] quantities = call(CallEntry.METHOD_ADJUST, extras)
+                .getLongArray(CallEntry.EXTRA_QUANTITIES);
+        long callMillis = SystemClock.elapsedRealtime() - start;
+
+        // Disc n is the synthetic disc n - 1, back to its own quantity
+        for (int i = 0; i < ADJUSTED_ROWS; i++) {
+            assertEquals(i % 20, quantities[i]);
+        }
+        log("adjust " + ADJUSTED_ROWS + " discs", ADJUSTED_ROWS, updateMillis, 1, callMillis);
+    }
+
+    private Bundle call(String method, Bundle extras) {
+        return resolver.call(DiscContract.BASE_CONTENT_URI, method, null, extras);
+    }
+
+    private static Bundle selectionExtras(String selection, int quantity) {
+        Bundle extras = new Bundle();
+        extras.putString(CallEntry.EXTRA_SELECTION, selection);
+        extras.putStringArray(CallEntry.EXTRA_SELECTION_ARGS,
+                new String[]{String.valueOf(quantity)});
+        return extras;
+    }
+
+    private static void log(String operation, int resolverCalls, long resolverMillis,
+                            int calls, long callMillis) {
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d rows, %s: cursor/update %d calls in %d ms, call() %d calls in %d ms",
+                ROWS, operation, resolverCalls, resolverMillis, calls, callMillis));
+    }
+}
@@ -0,0 +1,95 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks how {@link DiscChangeNotifier} coalesces the changes into notifications.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscChangeNotifierTest {
+
+    /** URIs notified by the notifier, in order */
+    private final List<Uri> notified = new ArrayList<>();
+
+    private DiscChangeNotifier notifier;
+
+    @Before
+    public void setUp() {
+        notifier = new DiscChangeNotifier(new MockContentResolver() {
+            @Override
+            public void notifyChange(Uri uri, ContentObserver observer, boolean syncToNetwork) {
+                notified.add(uri);
+            }
+        });
+    }
+
+    @Test
+    public void updatesOfOneDiscAreMerged() {
+        notifier.rowUpdated(3, Collections.singleton(DiscEntry.COLUMN_DISC_QUANTITY));
+        notifier.rowUpdated(3, Collections.singleton(DiscEntry.COLUMN_DISC_PRICE));
+        notifier.rowUpdated(3, Collections.singleton(DiscEntry.COLUMN_DISC_QUANTITY));
+        notifier.flush();
+
+        assertEquals(1, notified.size());
+        Uri uri = notified.get(0);
+        assertEquals(3, Long.parseLong(uri.getLastPathSegment()));
+        assertEquals(DiscEntry.OP_UPDATE, uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_OP));
+        assertEquals(new HashSet<>(Arrays.asList(DiscEntry.COLUMN_DISC_QUANTITY,
+                DiscEntry.COLUMN_DISC_PRICE)), new HashSet<>(Arrays.asList(
+                uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_COLUMNS).split(","))));
+    }
+
+    @Test
+    public void insertFollowedByChangesStaysAnInsertOrVanishes() {
+        notifier.rowInserted(1);
+        notifier.rowUpdated(1, Collections.singleton(DiscEntry.COLUMN_DISC_QUANTITY));
+        notifier.rowInserted(2);
+        notifier.rowDeleted(2);
+        notifier.rowUpdated(5, null);
+        notifier.rowDeleted(5);
+        notifier.flush();
+
+        assertEquals(Arrays.asList(
+                DiscEntry.buildChangeUri(1, DiscEntry.OP_INSERT, null),
+                DiscEntry.buildChangeUri(5, DiscEntry.OP_DELETE, null)), notified);
+    }
+
+    @Test
+    public void tooManyChangesNotifyTheTable() {
+        for (int id = 1; id <= DiscChangeNotifier.MAX_ROW_CHANGES + 1; id++) {
+            notifier.rowInserted(id);
+        }
+        notifier.flush();
+
+        assertEquals(Collections.singletonList(DiscEntry.CONTENT_URI), notified);
+    }
+
+    @Test
+    public void batchHoldsNotificationsBack() {
+        notifier.beginBatch();
+        notifier.rowDeleted(7);
+        notifier.flush();
+        assertEquals(0, notified.size());
+
+        notifier.endBatch();
+        assertEquals(Collections.singletonList(
+                DiscEntry.buildChangeUri(7, DiscEntry.OP_DELETE, null)), notified);
+    }
+}
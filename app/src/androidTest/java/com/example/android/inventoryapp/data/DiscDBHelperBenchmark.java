@@ -0,0 +1,133 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmarks for the {@link DiscDBHelper} connection settings, run on a device. Results are
+ * written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscDBHelperBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscDBHelperBenchmark.class.getSimpleName();
+
+    /** Number of discs in the table before the writer starts */
+    private static final int INITIAL_ROWS = 20000;
+
+    /** Number of discs inserted by the bulk writer */
+    private static final int WRITE_ROWS = 100000;
+
+    /** Number of discs inserted by each transaction of the bulk writer */
+    private static final int WRITE_TRANSACTION_ROWS = 10000;
+
+    /** Number of discs read by each query of the reader, the size of a list page */
+    private static final int READ_ROWS = 50;
+
+    @Test
+    public void readerLatencyDuringBulkWrite() throws Exception {
+        measureReaderLatency("rollback journal", new DiscDBHelper.Settings(false,
+                DiscDBHelper.Settings.SYNCHRONOUS_FULL, 2 * 1024, 0));
+        measureReaderLatency("WAL, synchronous FULL", new DiscDBHelper.Settings(true,
+                DiscDBHelper.Settings.SYNCHRONOUS_FULL, 2 * 1024, 0));
+        measureReaderLatency("WAL, default settings", DiscDBHelper.Settings.DEFAULT);
+    }
+
+    /**
+     * Read one page of discs over and over while another thread inserts discs in large
+     * transactions, then log the latency of the reads.
+     */
+    private void measureReaderLatency(String name, DiscDBHelper.Settings settings)
+            throws Exception {
+        final DiscDBHelper helper = new DiscDBHelper(TestProviders.context("concurrency."), settings);
+        try {
+            insert(helper.getWritableDatabase(), 0, INITIAL_ROWS);
+
+            // Insert discs in the background, one large transaction at a time
+            final AtomicInteger written = new AtomicInteger();
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int first = INITIAL_ROWS; first < INITIAL_ROWS + WRITE_ROWS;
+                         first += WRITE_TRANSACTION_ROWS) {
+                        insert(helper.getWritableDatabase(), first, WRITE_TRANSACTION_ROWS);
+                        written.addAndGet(WRITE_TRANSACTION_ROWS);
+                    }
+                }
+            });
+            long start = SystemClock.elapsedRealtime();
+            writer.start();
+
+            // Read pages of discs, the way the list does, until the writer is done
+            List<Long> latencies = new ArrayList<>();
+            SQLiteDatabase reader = helper.getReadableDatabase();
+            String[] projection = {DiscEntry._ID, DiscEntry.COLUMN_DISC_ARTIST,
+                    DiscEntry.COLUMN_DISC_TITLE, DiscEntry.COLUMN_DISC_QUANTITY};
+            while (writer.isAlive()) {
+                long readStart = System.nanoTime();
+                Cursor cursor = reader.query(DiscEntry.TABLE_NAME, projection, null, null,
+                        null, null, DiscEntry._ID + " ASC", String.valueOf(READ_ROWS));
+                cursor.getCount();
+                cursor.close();
+                latencies.add(System.nanoTime() - readStart);
+            }
+            writer.join();
+            long writeMillis = SystemClock.elapsedRealtime() - start;
+            assertEquals(WRITE_ROWS, written.get());
+
+            Collections.sort(latencies);
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%s: %d rows written in %d ms, %d reads, latency median %.2f ms,"
+                            + " p99 %.2f ms, max %.2f ms",
+                    name, WRITE_ROWS, writeMillis, latencies.size(),
+                    percentileMillis(latencies, 50), percentileMillis(latencies, 99),
+                    percentileMillis(latencies, 100)));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Insert count synthetic discs, numbered from first, in a single transaction.
+     */
+    private static void insert(SQLiteDatabase database, int first, int count) {
+        database.beginTransaction();
+        try {
+            for (ContentValues values : TestProviders.discs(first, count)) {
+                database.insert(DiscEntry.TABLE_NAME, null, values);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Return the given percentile of the sorted latencies, in milliseconds.
+     */
+    private static double percentileMillis(List<Long> sortedLatencies, int percentile) {
+        if (sortedLatencies.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size()) - 1;
+        return sortedLatencies.get(Math.max(0, index)) / 1e6;
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the {@link DiscDeleter} deletes exactly the matching discs, and measures how long
+ * a reader waits for the database while a large catalog is being deleted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscDeleterTest {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscDeleterTest.class.getSimpleName();
+
+    /** Number of discs in the table */
+    private static final int ROWS = 50000;
+
+    private DiscProvider provider;
+    private DiscDeleter deleter;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("deleter.");
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(DiscContract.CONTENT_AUTHORITY, provider);
+        deleter = new DiscDeleter(resolver);
+        TestProviders.fill(provider, ROWS);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void deletesMatchingDiscsInChunks() throws InterruptedException {
+        // Prices go from 0 to 49, so a fifth of the discs cost less than 10
+        String selection = DiscEntry.COLUMN_DISC_PRICE + " < ?";
+        String[] selectionArgs = {"10"};
+        assertEquals(ROWS / 5, deleter.deleteNow(selection, selectionArgs, 700));
+        assertEquals(ROWS - ROWS / 5, countMatching(null, null));
+        assertEquals(0, countMatching(selection, selectionArgs));
+
+        // Delete everything left while another thread keeps reading
+        Reader reader = new Reader();
+        reader.start();
+        assertEquals(ROWS - ROWS / 5, deleter.deleteNow(null, null, DiscDeleter.CHUNK_IDS));
+        long maxWaitMillis = reader.finish();
+        Log.i(LOG_TAG, "Longest query while deleting: " + maxWaitMillis + " ms");
+
+        assertEquals(0, countMatching(null, null));
+        assertEquals(0, statsDiscCount());
+    }
+
+    private long statsDiscCount() {
+        Cursor cursor = provider.query(StatsEntry.CONTENT_URI,
+                new String[]{StatsEntry.COLUMN_DISC_COUNT}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countMatching(String selection, String[] selectionArgs) {
+        Cursor cursor = provider.query(DiscEntry.CONTENT_URI, new String[]{"COUNT(*)"},
+                selection, selectionArgs, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads the first page of discs over and over, and keeps the longest time a read took.
+     */
+    private final class Reader extends Thread {
+
+        private volatile boolean stopped;
+        private long maxNanos;
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                // Every read goes to the database, not to the cache
+                provider.getQueryCache().invalidate();
+                long start = System.nanoTime();
+                Cursor cursor = provider.query(DiscEntry.buildPageUri(DiscEntry.NO_ANCHOR, 50),
+                        null, null, null, null);
+                if (cursor != null) {
+                    cursor.getCount();
+                    cursor.close();
+                }
+                maxNanos = Math.max(maxNanos, System.nanoTime() - start);
+            }
+        }
+
+        long finish() throws InterruptedException {
+            stopped = true;
+            join();
+            return maxNanos / 1000000;
+        }
+    }
+}
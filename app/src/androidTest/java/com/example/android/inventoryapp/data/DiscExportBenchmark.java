@@ -0,0 +1,162 @@
+package com.example.android.inventoryapp.data;
+
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of the CSV export of a table of a million discs, written to a file through a
+ * {@link FileChannel} and read from the pipe opened by the provider. The throughput and the
+ * peak growth of the heap during the export are written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscExportBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscExportBenchmark.class.getSimpleName();
+
+    /** Number of discs in the table */
+    private static final int ROWS = 1000000;
+
+    /** Interval at which the heap is sampled during an export */
+    private static final long SAMPLE_MILLIS = 5;
+
+    private DiscProvider provider;
+    private File file;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("export.");
+        TestProviders.fill(provider, ROWS);
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                DiscExporter.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void exportMillionDiscs() throws Exception {
+        // Straight to a file channel
+        HeapSampler sampler = new HeapSampler();
+        long start = System.nanoTime();
+        FileOutputStream out = new FileOutputStream(file);
+        long rows;
+        try {
+            rows = DiscExporter.export(provider.getDatabaseHelper().getReadableDatabase(),
+                    out.getChannel(), null);
+        } finally {
+            out.close();
+        }
+        log("file channel", file.length(), System.nanoTime() - start, sampler.stop());
+        assertEquals(ROWS, rows);
+        assertEquals(ROWS + 1, countLines(file));
+
+        // Through the pipe returned by the provider, as another app would read it
+        sampler = new HeapSampler();
+        start = System.nanoTime();
+        long bytes = 0;
+        FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                provider.openFile(DiscEntry.EXPORT_URI, "r"));
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DiscExporter.BUFFER_BYTES);
+            int read;
+            while ((read = channel.read(buffer)) != -1) {
+                bytes += read;
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        log("provider pipe", bytes, System.nanoTime() - start, sampler.stop());
+        assertEquals(file.length(), bytes);
+    }
+
+    private static void log(String name, long bytes, long nanos, long peakHeapBytes) {
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: %.1f MB in %d ms, %.1f MB/s,"
+                        + " peak heap growth %.1f MB", name, bytes / 1e6, nanos / 1000000,
+                bytes / 1e6 / (nanos / 1e9), peakHeapBytes / 1e6));
+    }
+
+    private static int countLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            int lines = 0;
+            while (reader.readLine() != null) {
+                lines++;
+            }
+            return lines;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Samples the used heap on a background thread, and keeps its peak above the heap used
+     * when sampling started.
+     */
+    private static final class HeapSampler extends Thread {
+
+        private final long baseline;
+        private volatile boolean stopped;
+        private volatile long peak;
+
+        HeapSampler() {
+            Runtime.getRuntime().gc();
+            baseline = usedHeap();
+            peak = baseline;
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                peak = Math.max(peak, usedHeap());
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Stop sampling and return the peak growth of the heap, in bytes.
+         */
+        long stop() throws InterruptedException {
+            stopped = true;
+            join();
+            return Math.max(peak, usedHeap()) - baseline;
+        }
+
+        private static long usedHeap() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+    }
+}
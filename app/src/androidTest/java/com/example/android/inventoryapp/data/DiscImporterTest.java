@@ -0,0 +1,139 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link DiscImporter} imports the valid rows of CSV and JSON catalogs, reports
+ * the invalid ones, and imports a large catalog in a few seconds.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscImporterTest {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscImporterTest.class.getSimpleName();
+
+    /** Number of rows of the large catalog */
+    private static final int LARGE_ROWS = 100000;
+
+    private DiscProvider provider;
+    private DiscImporter importer;
+    private File file;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("importer.");
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(DiscContract.CONTENT_AUTHORITY, provider);
+        importer = new DiscImporter(resolver);
+        file = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "catalog");
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void csvRowsAreValidatedAndQuoted() throws IOException {
+        write("\uFEFFTitle,artist,Price,quantity,notes\r\n"
+                + "\"Images and Words\",Dream Theater,12,7,ignored\r\n"
+                + "\"Comma, \"\"Quote\"\"\nand line\",Someone,3,1\n"
+                + "\n"
+                + "No Artist,,1,1\n"
+                + "Bad Price,Someone,twelve,1\n"
+                + "Negative,Someone,1,-4\n"
+                + "No Numbers,Someone,,");
+
+        DiscImporter.Progress progress = importer.importNow(Uri.fromFile(file), 2);
+        assertNull(progress.error);
+        assertEquals(3, progress.imported);
+        assertEquals(3, progress.rejected);
+        assertTrue(progress.rejects.get(0), progress.rejects.get(0).startsWith("Row 3: "));
+        assertEquals(100, progress.percent());
+
+        Cursor cursor = provider.query(DiscEntry.CONTENT_URI, new String[]{
+                DiscEntry.COLUMN_DISC_TITLE, DiscEntry.COLUMN_DISC_IMAGE,
+                DiscEntry.COLUMN_DISC_PRICE}, null, null, DiscEntry._ID);
+        try {
+            assertEquals(3, cursor.getCount());
+            cursor.moveToPosition(1);
+            assertEquals("Comma, \"Quote\"\nand line", cursor.getString(0));
+            assertEquals(DiscImporter.PLACEHOLDER_IMAGE, cursor.getString(1));
+            cursor.moveToPosition(2);
+            assertEquals(0, cursor.getInt(2));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void jsonRowsAreValidated() throws IOException {
+        write("[{\"artist\": \"Dream Theater\", \"title\": \"Awake\", \"price\": 10,"
+                + " \"quantity\": 3, \"tracks\": [1, 2]},"
+                + " {\"artist\": \"Someone\", \"title\": null},"
+                + " 42,"
+                + " {\"artist\": \"Someone\", \"title\": \"Cheap\", \"price\": \"1\"}]");
+
+        DiscImporter.Progress progress = importer.importNow(Uri.fromFile(file), 10);
+        assertNull(progress.error);
+        assertEquals(2, progress.imported);
+        assertEquals(2, progress.rejected);
+    }
+
+    @Test
+    public void largeCatalogIsImported() throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writer.write("image,artist,title,price,quantity\n");
+            for (int i = 0; i < LARGE_ROWS; i++) {
+                writer.write("content://covers/" + i + ",Artist " + (i % 997) + ",Title " + i
+                        + "," + (i % 50) + "," + (i % 20) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+
+        long start = System.nanoTime();
+        DiscImporter.Progress progress = importer.importNow(Uri.fromFile(file),
+                DiscImporter.DEFAULT_BATCH_SIZE);
+        long millis = (System.nanoTime() - start) / 1000000;
+        Log.i(LOG_TAG, "Imported " + progress.imported + " discs in " + millis + " ms");
+
+        assertNull(progress.error);
+        assertEquals(LARGE_ROWS, progress.imported);
+        assertEquals(0, progress.rejected);
+    }
+
+    private void write(String text) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Kills the app at the points where a journaled sell can be interrupted, by dropping the
+ * provider and the journal without emptying it, and checks that starting again sells every
+ * journaled copy exactly once.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscJournalTest {
+
+    /** Prefix of the database files of the test */
+    private static final String PREFIX = "journal.";
+
+    private DiscProvider provider;
+    private File file;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create(PREFIX);
+        file = DiscJournal.getFile(provider.getContext());
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void killedWhileAppending() throws IOException {
+        // The tenth synthetic disc has 10 copies in stock
+        long id = insertDisc(10);
+        DiscJournal journal = DiscJournal.open(file);
+        for (int i = 0; i < 3; i++) {
+            journal.append(id, 1);
+        }
+        journal.close();
+        // Killed in the middle of the fourth entry: its checksum was never written
+        tearEntry(3, id);
+
+        restart();
+        assertEquals(7, queryQuantity(id));
+        assertEquals(1, countSales(id));
+        assertEquals(0, journalSize());
+
+        // Starting again finds nothing left to sell
+        restart();
+        assertEquals(7, queryQuantity(id));
+        assertEquals(1, countSales(id));
+    }
+
+    @Test
+    public void killedAfterWritingSomeSells() throws IOException {
+        long first = insertDisc(10);
+        long second = insertDisc(10);
+        DiscJournal journal = DiscJournal.open(file);
+        journal.append(first, 1);
+        long written = journal.append(first, 1);
+        journal.append(second, 1);
+        journal.append(first, 1);
+
+        // The two first sells of the first disc were written, as the sell queue does it,
+        // then the app was killed before the journal was emptied
+        provider.update(DiscEntry.buildSellUri(first, 2, written), null, null, null);
+        journal.close();
+
+        restart();
+        assertEquals(7, queryQuantity(first));
+        assertEquals(9, queryQuantity(second));
+        assertEquals(0, journalSize());
+
+        // Sells journaled after the restart go on with new sequence numbers, and are replayed
+        // although older marks are left
+        journal = DiscJournal.open(file);
+        journal.append(first, 1);
+        journal.close();
+        restart();
+        assertEquals(6, queryQuantity(first));
+        assertEquals(3, countSales(first));
+    }
+
+    @Test
+    public void killedDuringReplay() throws IOException {
+        long id = insertDisc(10);
+        DiscJournal journal = DiscJournal.open(file);
+        long seq = 0;
+        for (int i = 0; i < 4; i++) {
+            seq = journal.append(id, 1);
+        }
+        journal.close();
+
+        // The replay committed the sale, then the app was killed before emptying the journal
+        provider.update(DiscEntry.buildSellUri(id, 4, seq), null, null, null);
+
+        restart();
+        assertEquals(6, queryQuantity(id));
+        assertEquals(1, countSales(id));
+    }
+
+    /**
+     * Drop the provider without emptying the journal, and start a new one on the same files.
+     */
+    private void restart() {
+        provider.shutdown();
+        provider = TestProviders.reopen(PREFIX);
+    }
+
+    /**
+     * Write the start of the entry at the given index, as a kill in the middle of an append
+     * leaves it.
+     */
+    private void tearEntry(int index, long discId) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(DiscJournal.HEADER_BYTES + index * DiscJournal.ENTRY_BYTES);
+            raf.writeLong(1 + index);
+            raf.writeLong(discId);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private int journalSize() throws IOException {
+        DiscJournal journal = DiscJournal.open(file);
+        try {
+            return journal.size();
+        } finally {
+            journal.close();
+        }
+    }
+
+    private long insertDisc(int n) {
+        return ContentUris.parseId(provider.insert(DiscEntry.CONTENT_URI,
+                TestProviders.discs(n, 1)[0]));
+    }
+
+    private long countSales(long id) {
+        return DatabaseUtils.queryNumEntries(provider.getDatabaseHelper().getReadableDatabase(),
+                LedgerEntry.TABLE_NAME, LedgerEntry.COLUMN_DISC_ID + " = ? AND "
+                        + LedgerEntry.COLUMN_REASON + " = ?",
+                new String[]{String.valueOf(id), LedgerEntry.REASON_SALE});
+    }
+
+    private int queryQuantity(long id) {
+        Cursor cursor = provider.query(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                new String[]{DiscEntry.COLUMN_DISC_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the quantity of every disc always equals its latest snapshot plus the events
+ * still in the ledger, before and after compaction.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscLedgerTest {
+
+    /** Quantity of a disc computed from its latest snapshot and its events */
+    private static final String LEDGER_QUANTITY_OF = "IFNULL((SELECT "
+            + DiscLedger.COLUMN_QUANTITY + " FROM " + DiscLedger.SNAPSHOT_TABLE_NAME
+            + " s WHERE s." + DiscLedger.COLUMN_DISC_ID + " = %1$s ORDER BY s."
+            + DiscLedger.COLUMN_DAY + " DESC LIMIT 1), 0) + IFNULL((SELECT SUM("
+            + LedgerEntry.COLUMN_DELTA + ") FROM " + LedgerEntry.TABLE_NAME + " l WHERE l."
+            + LedgerEntry.COLUMN_DISC_ID + " = %1$s), 0)";
+
+    private DiscProvider provider;
+    private SQLiteDatabase database;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("ledger.");
+        database = provider.getDatabaseHelper().getWritableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void projectionEqualsSnapshotPlusEvents() {
+        provider.bulkInsert(DiscEntry.CONTENT_URI, TestProviders.discs(300));
+        assertProjection();
+
+        Random random = new Random(7);
+        for (int round = 0; round < 3; round++) {
+            writeRandomly(random, 300);
+            assertProjection();
+
+            // Fold every event into snapshots, as if they were all old enough
+            DiscLedger.compact(database, System.currentTimeMillis() + 2 * DiscLedger.DAY_MILLIS);
+            assertEquals(0, DatabaseUtils.queryNumEntries(database, LedgerEntry.TABLE_NAME));
+            assertProjection();
+        }
+
+        // Deleting everything leaves no copy anywhere
+        provider.delete(DiscEntry.CONTENT_URI, null, null);
+        assertProjection();
+    }
+
+    @Test
+    public void compactionKeepsRecentEventsAndCountsSales() {
+        provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        for (int i = 0; i < 3; i++) {
+            provider.update(DiscEntry.buildSellUri(1), null, null, null);
+        }
+        provider.update(DiscEntry.buildAdjustUri(1, 5), null, null, null);
+        assertEquals(5, DatabaseUtils.queryNumEntries(database, LedgerEntry.TABLE_NAME));
+
+        // Today's events are not old enough to be folded
+        assertEquals(0, DiscLedger.compact(database, System.currentTimeMillis()));
+        assertEquals(5, DatabaseUtils.queryNumEntries(database, LedgerEntry.TABLE_NAME));
+
+        assertEquals(1, DiscLedger.compact(database,
+                System.currentTimeMillis() + DiscLedger.DAY_MILLIS));
+        assertEquals(3, DatabaseUtils.longForQuery(database, "SELECT " + DiscLedger.COLUMN_SOLD
+                + " FROM " + DiscLedger.SNAPSHOT_TABLE_NAME, null));
+        assertProjection();
+    }
+
+    /**
+     * Run the given number of random quantity changes, through every kind of write.
+     */
+    private void writeRandomly(Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            long id = 1 + random.nextInt(300);
+            switch (random.nextInt(6)) {
+                case 0:
+                    provider.update(DiscEntry.buildSellUri(id), null, null, null);
+                    break;
+                case 1:
+                    provider.update(DiscEntry.buildAdjustUri(id, random.nextInt(10) - 3), null,
+                            null, null);
+                    break;
+                case 2:
+                    ContentValues quantity = new ContentValues();
+                    quantity.put(DiscEntry.COLUMN_DISC_QUANTITY, random.nextInt(10));
+                    provider.update(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                            quantity, null, null);
+                    break;
+                case 3:
+                    ContentValues restock = new ContentValues();
+                    restock.put(DiscEntry.COLUMN_DISC_QUANTITY, 4);
+                    restock.put(DiscEntry.COLUMN_DISC_PRICE, 10);
+                    provider.update(DiscEntry.CONTENT_URI, restock,
+                            DiscEntry.COLUMN_DISC_QUANTITY + " = 0", null);
+                    break;
+                case 4:
+                    provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(i, 1)[0]);
+                    break;
+                default:
+                    provider.delete(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                            null, null);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Check that every disc has the quantity given by the ledger, and that the discs which
+     * were deleted have no copy left in it.
+     */
+    private void assertProjection() {
+        assertEquals(0, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM "
+                + DiscEntry.TABLE_NAME + " d WHERE d." + DiscEntry.COLUMN_DISC_QUANTITY + " <> "
+                + String.format(LEDGER_QUANTITY_OF, "d." + DiscEntry._ID), null));
+        assertEquals(0, DatabaseUtils.longForQuery(database, "SELECT COUNT(*) FROM (SELECT "
+                + LedgerEntry.COLUMN_DISC_ID + " AS id FROM " + LedgerEntry.TABLE_NAME
+                + " UNION SELECT " + DiscLedger.COLUMN_DISC_ID + " FROM "
+                + DiscLedger.SNAPSHOT_TABLE_NAME + ") ids WHERE ids.id NOT IN (SELECT "
+                + DiscEntry._ID + " FROM " + DiscEntry.TABLE_NAME + ") AND "
+                + String.format(LEDGER_QUANTITY_OF, "ids.id") + " <> 0", null));
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Upgrades databases created with the first version of the schema to the current one.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscMigrationsTest {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscMigrationsTest.class.getSimpleName();
+
+    /** Number of discs in the database upgraded by the benchmark */
+    private static final int LARGE_ROWS = 500000;
+
+    @Test
+    public void upgradeKeepsDiscs() {
+        Context context = TestProviders.context("migration.");
+        createVersion1Database(context, 1000);
+
+        DiscDBHelper helper = new DiscDBHelper(context);
+        try {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            assertEquals(DiscMigrations.headVersion(), db.getVersion());
+            assertEquals(1000, DatabaseUtils.queryNumEntries(db, DiscEntry.TABLE_NAME));
+
+            // The discs keep their IDs, and the search index covers all of them
+            assertEquals("Title 499", DatabaseUtils.stringForQuery(db, "SELECT "
+                    + DiscEntry.COLUMN_DISC_TITLE + " FROM " + DiscEntry.TABLE_NAME
+                    + " WHERE " + DiscEntry._ID + " = 500", null));
+            assertEquals(1, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                    + DiscDBHelper.SEARCH_TABLE_NAME + " WHERE " + DiscDBHelper.SEARCH_TABLE_NAME
+                    + " MATCH 'title 499'", null));
+
+            // The IDs given out before the upgrade are not given out again
+            SQLiteDatabase writable = helper.getWritableDatabase();
+            writable.delete(DiscEntry.TABLE_NAME, DiscEntry._ID + " = 1000", null);
+            assertEquals(1001, writable.insert(DiscEntry.TABLE_NAME, null,
+                    TestProviders.discs(1)[0]));
+
+            // The search index created for the version 1 database is kept up to date
+            assertEquals(0, countIndexed(writable, 1000));
+            assertEquals(1, countIndexed(writable, 1001));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void upgradeLargeDatabase() {
+        Context context = TestProviders.context("migration.");
+        createVersion1Database(context, LARGE_ROWS);
+
+        DiscDBHelper helper = new DiscDBHelper(context);
+        helper.setMigrationListener(new DiscMigrations.Listener() {
+            @Override
+            public void onStepApplied(DiscMigrations.Step step, long millis) {
+                Log.i(LOG_TAG, String.format(Locale.US, "%d rows, version %d (%s): %d ms",
+                        LARGE_ROWS, step.version, step.description, millis));
+            }
+        });
+        try {
+            long start = SystemClock.elapsedRealtime();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            Log.i(LOG_TAG, String.format(Locale.US, "%d rows, upgrade from version 1: %d ms",
+                    LARGE_ROWS, SystemClock.elapsedRealtime() - start));
+
+            assertEquals(DiscMigrations.headVersion(), db.getVersion());
+            assertEquals(LARGE_ROWS, DatabaseUtils.queryNumEntries(db, DiscEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Return the number of rows of the search index for the disc with the given ID.
+     */
+    private static long countIndexed(SQLiteDatabase db, long id) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + DiscDBHelper.SEARCH_TABLE_NAME + " WHERE docid = " + id, null);
+    }
+
+    /**
+     * Create a database with the first version of the schema, holding the given number of
+     * synthetic discs.
+     */
+    private static void createVersion1Database(Context context, int count) {
+        SQLiteDatabase db = context.openOrCreateDatabase(DiscDBHelper.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        try {
+            db.beginTransaction();
+            try {
+                DiscMigrations.createVersion1(db);
+                SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                        + DiscEntry.TABLE_NAME + " (" + DiscEntry.COLUMN_DISC_IMAGE + ", "
+                        + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE + ", "
+                        + DiscEntry.COLUMN_DISC_PRICE + ", " + DiscEntry.COLUMN_DISC_QUANTITY
+                        + ") VALUES ('image', ?, ?, ?, ?)");
+                for (int i = 0; i < count; i++) {
+                    insert.bindString(1, "Artist " + (i % 997));
+                    insert.bindString(2, "Title " + i);
+                    insert.bindLong(3, i % 50);
+                    insert.bindLong(4, i % 20);
+                    insert.executeInsert();
+                }
+                insert.close();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmarks for the {@link DiscProvider}, run on a device. Results are written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscProviderBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscProviderBenchmark.class.getSimpleName();
+
+    /** Number of discs inserted by the insert benchmarks */
+    private static final int INSERT_ROWS = 5000;
+
+    /** Number of discs in the table searched by the search benchmark */
+    private static final int SEARCH_ROWS = 200000;
+
+    /** Provider working on its own copy of the database */
+    private DiscProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("benchmark.");
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void insertThroughput() throws Exception {
+        ContentValues[] discs = TestProviders.discs(INSERT_ROWS);
+
+        // One insert() call, and so one transaction, for every disc
+        long start = SystemClock.elapsedRealtime();
+        for (ContentValues values : discs) {
+            provider.insert(DiscEntry.CONTENT_URI, values);
+        }
+        long singleMillis = SystemClock.elapsedRealtime() - start;
+        provider.delete(DiscEntry.CONTENT_URI, null, null);
+
+        // All discs in a single transaction through bulkInsert()
+        start = SystemClock.elapsedRealtime();
+        int inserted = provider.bulkInsert(DiscEntry.CONTENT_URI, discs);
+        long bulkMillis = SystemClock.elapsedRealtime() - start;
+        assertEquals(INSERT_ROWS, inserted);
+        provider.delete(DiscEntry.CONTENT_URI, null, null);
+
+        // All discs in a single transaction through applyBatch()
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues values : discs) {
+            operations.add(ContentProviderOperation.newInsert(DiscEntry.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+        start = SystemClock.elapsedRealtime();
+        provider.applyBatch(operations);
+        long batchMillis = SystemClock.elapsedRealtime() - start;
+
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d rows: insert %.0f rows/s, bulkInsert %.0f rows/s, applyBatch %.0f rows/s",
+                INSERT_ROWS, rowsPerSecond(singleMillis), rowsPerSecond(bulkMillis),
+                rowsPerSecond(batchMillis)));
+    }
+
+    @Test
+    public void searchVersusLikeScan() {
+        TestProviders.fill(provider, SEARCH_ROWS);
+        String[] projection = {DiscEntry._ID, DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE};
+        String likeSelection = DiscEntry.COLUMN_DISC_ARTIST + " LIKE ? OR "
+                + DiscEntry.COLUMN_DISC_TITLE + " LIKE ?";
+
+        for (String query : new String[]{"Artist 42", "Title 199999", "tit 1234"}) {
+            // Full table scan through the selection argument
+            String pattern = "%" + query + "%";
+            long start = SystemClock.elapsedRealtime();
+            Cursor like = provider.query(DiscEntry.CONTENT_URI, projection, likeSelection,
+                    new String[]{pattern, pattern}, null);
+            int likeCount = like.getCount();
+            like.close();
+            long likeMillis = SystemClock.elapsedRealtime() - start;
+
+            // Search index
+            start = SystemClock.elapsedRealtime();
+            Cursor search = provider.query(DiscEntry.buildSearchUri(query), projection,
+                    null, null, null);
+            int searchCount = search.getCount();
+            search.close();
+            long searchMillis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(LOG_TAG, String.format(Locale.US,
+                    "%d rows, \"%s\": LIKE %d ms (%d matches), search %d ms (%d matches)",
+                    SEARCH_ROWS, query, likeMillis, likeCount, searchMillis, searchCount));
+        }
+    }
+
+    /**
+     * Convert the time spent on {@link #INSERT_ROWS} rows into a rate.
+     */
+    private static double rowsPerSecond(long millis) {
+        return INSERT_ROWS * 1000.0 / Math.max(1, millis);
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that repeated queries are answered from the cache of the {@link DiscProvider},
+ * and that every kind of write makes the cached results stale.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscQueryCacheTest {
+
+    private static final String[] PROJECTION = {DiscEntry._ID, DiscEntry.COLUMN_DISC_TITLE,
+            DiscEntry.COLUMN_DISC_QUANTITY};
+
+    private DiscProvider provider;
+    private DiscQueryCache cache;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("cache.");
+        provider.bulkInsert(DiscEntry.CONTENT_URI, TestProviders.discs(100));
+        cache = provider.getQueryCache();
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void repeatedQueryIsAHit() {
+        Uri page = DiscEntry.buildPageUri(DiscEntry.NO_ANCHOR, 20);
+        assertEquals(20, count(page));
+        assertEquals(20, count(page));
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.hitCount());
+
+        // A different query is a different entry
+        count(DiscEntry.buildPageUri(DiscEntry.NO_ANCHOR, 10));
+        assertEquals(2, cache.missCount());
+    }
+
+    @Test
+    public void writesMakeTheCacheStale() {
+        // The eleventh synthetic disc has a quantity of 10
+        Uri disc = Uri.withAppendedPath(DiscEntry.CONTENT_URI, "11");
+        assertEquals(10, quantity(disc));
+
+        provider.update(DiscEntry.buildSellUri(11), null, null, null);
+        assertEquals(9, quantity(disc));
+
+        ContentValues values = new ContentValues();
+        values.put(DiscEntry.COLUMN_DISC_QUANTITY, 3);
+        provider.update(disc, values, null, null);
+        assertEquals(3, quantity(disc));
+
+        provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(1)[0]);
+        assertEquals(101, count(DiscEntry.CONTENT_URI));
+
+        provider.delete(disc, null, null);
+        assertEquals(100, count(DiscEntry.CONTENT_URI));
+
+        // Every query above ran after a write, so none of them was a hit
+        assertEquals(0, cache.hitCount());
+    }
+
+    private int count(Uri uri) {
+        Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int quantity(Uri uri) {
+        Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_QUANTITY));
+        } finally {
+            cursor.close();
+        }
+    }
+}
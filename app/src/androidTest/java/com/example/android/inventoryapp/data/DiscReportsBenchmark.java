@@ -0,0 +1,200 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+import com.example.android.inventoryapp.data.DiscContract.ReportEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Benchmark of the sales reports over a year of synthetic sales, read from the rollups against
+ * the same reports computed by scanning the ledger. Both must give the same units; the latency
+ * of each is written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscReportsBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscReportsBenchmark.class.getSimpleName();
+
+    /** Number of discs sold */
+    private static final int DISCS = 200;
+
+    /** Number of sales spread over the year */
+    private static final int SALES = 100000;
+
+    /** Number of times each report is run */
+    private static final int RUNS = 20;
+
+    /** Length of the synthetic year, in milliseconds */
+    private static final long YEAR_MILLIS = 365 * DiscLedger.DAY_MILLIS;
+
+    private DiscProvider provider;
+    private SQLiteDatabase database;
+
+    /** Start of the synthetic year, in milliseconds since the epoch */
+    private long start;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("reports.");
+        provider.bulkInsert(DiscEntry.CONTENT_URI, TestProviders.discs(DISCS));
+        database = provider.getDatabaseHelper().getWritableDatabase();
+        // The year starts next month, so the compaction started by the provider never folds
+        // the sales out of the ledger the reports are compared with
+        start = DiscReports.monthStart(System.currentTimeMillis() + 32 * DiscLedger.DAY_MILLIS);
+
+        // The sales go straight into the ledger, where the trigger adds them to the rollups.
+        // A few discs sell much more than the others, like real best sellers.
+        Random random = new Random(2017);
+        SQLiteStatement append = database.compileStatement(DiscLedger.SQL_APPEND);
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < SALES; i++) {
+                int disc = random.nextInt(4) == 0 ? 1 + random.nextInt(10) : 1 + random.nextInt(DISCS);
+                append.bindLong(1, disc);
+                append.bindLong(2, -1 - random.nextInt(2));
+                append.bindLong(3, start + (long) (random.nextDouble() * YEAR_MILLIS));
+                append.bindString(4, LedgerEntry.REASON_SALE);
+                append.executeInsert();
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            append.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void rollupsVersusLedgerScan() {
+        // Ranges which are not aligned on buckets, so every granularity is used
+        long end = start + YEAR_MILLIS;
+        long[][] ranges = {
+                {start + 90 * 60 * 1000L, end - 5 * 60 * 1000L},
+                {start + 40 * DiscLedger.DAY_MILLIS + 1234, start + 72 * DiscLedger.DAY_MILLIS},
+                {end - 9 * DiscLedger.DAY_MILLIS - 7 * DiscReports.HOUR_MILLIS,
+                        end - 2 * DiscLedger.DAY_MILLIS}};
+        String[] names = {"year", "month", "week"};
+
+        for (int r = 0; r < ranges.length; r++) {
+            long from = ranges[r][0];
+            long to = ranges[r][1];
+            Uri uri = ReportEntry.buildTopSellersUri(from, to, 10);
+            String scan = "SELECT " + LedgerEntry.COLUMN_DISC_ID + ", -SUM(" + LedgerEntry.COLUMN_DELTA
+                    + ") AS units FROM " + LedgerEntry.TABLE_NAME + " WHERE "
+                    + LedgerEntry.COLUMN_REASON + " = '" + LedgerEntry.REASON_SALE + "' AND "
+                    + LedgerEntry.COLUMN_TIMESTAMP + " >= " + hourFloor(from) + " AND "
+                    + LedgerEntry.COLUMN_TIMESTAMP + " < " + hourCeiling(to) + " GROUP BY "
+                    + LedgerEntry.COLUMN_DISC_ID + " ORDER BY units DESC, "
+                    + LedgerEntry.COLUMN_DISC_ID + " LIMIT 10";
+            assertEquals(units(database.rawQuery(scan, null)),
+                    units(provider.query(uri, null, null, null, null)));
+            measure("top sellers, " + names[r], uri, scan);
+        }
+
+        String[] granularities = {ReportEntry.GRANULARITY_DAY, ReportEntry.GRANULARITY_WEEK,
+                ReportEntry.GRANULARITY_MONTH};
+        for (String granularity : granularities) {
+            for (long disc : new long[]{ReportEntry.ALL_DISCS, 1}) {
+                Uri uri = ReportEntry.buildSeriesUri(granularity, start, end, disc);
+                String scan = "SELECT " + seriesBucket(granularity) + ", -SUM("
+                        + LedgerEntry.COLUMN_DELTA + ") FROM " + LedgerEntry.TABLE_NAME
+                        + " WHERE " + LedgerEntry.COLUMN_REASON + " = '" + LedgerEntry.REASON_SALE
+                        + "'" + (disc == ReportEntry.ALL_DISCS ? ""
+                        : " AND " + LedgerEntry.COLUMN_DISC_ID + " = " + disc)
+                        + " GROUP BY 1 ORDER BY 1";
+                assertEquals(units(database.rawQuery(scan, null)),
+                        units(provider.query(uri, null, null, null, null)));
+                measure("series, " + granularity + (disc == ReportEntry.ALL_DISCS ? ", all discs"
+                        : ", one disc"), uri, scan);
+            }
+        }
+    }
+
+    /**
+     * Run a report {@link #RUNS} times from the rollups and from the ledger, and log the mean
+     * latency of each. The cache of the provider is emptied before every run.
+     */
+    private void measure(String name, Uri uri, String scan) {
+        long rollupNanos = 0;
+        long scanNanos = 0;
+        for (int i = 0; i < RUNS; i++) {
+            provider.getQueryCache().invalidate();
+            long begin = System.nanoTime();
+            drain(provider.query(uri, null, null, null, null));
+            rollupNanos += System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            drain(database.rawQuery(scan, null));
+            scanNanos += System.nanoTime() - begin;
+        }
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: rollups %.2f ms, ledger scan %.2f ms",
+                name, rollupNanos / 1e6 / RUNS, scanNanos / 1e6 / RUNS));
+    }
+
+    /**
+     * Return the SQL expression of the series bucket of a ledger event, the way the rollups
+     * compute it.
+     */
+    private static String seriesBucket(String granularity) {
+        if (ReportEntry.GRANULARITY_WEEK.equals(granularity)) {
+            String day = "(" + LedgerEntry.COLUMN_TIMESTAMP + " / " + DiscLedger.DAY_MILLIS + ")";
+            return "((" + day + " - (" + day + " + 3) % 7) * " + DiscLedger.DAY_MILLIS + ")";
+        }
+        return DiscReports.bucketStart(granularity, LedgerEntry.COLUMN_TIMESTAMP);
+    }
+
+    private static long hourFloor(long time) {
+        return time - time % DiscReports.HOUR_MILLIS;
+    }
+
+    private static long hourCeiling(long time) {
+        return time % DiscReports.HOUR_MILLIS == 0 ? time : hourFloor(time) + DiscReports.HOUR_MILLIS;
+    }
+
+    /**
+     * Read every row of the cursor as "key:units", the key and the units being its first two
+     * columns, and close it.
+     */
+    private static String units(Cursor cursor) {
+        StringBuilder rows = new StringBuilder();
+        try {
+            while (cursor.moveToNext()) {
+                rows.append(cursor.getLong(0)).append(':').append(cursor.getLong(1)).append(' ');
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows.toString();
+    }
+
+    private static void drain(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.android.inventoryapp.data;
+
+import android.app.Instrumentation;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link DiscSellQueue} writes a burst of sells as a single sale, counts it
+ * until a list read after it is delivered, and gives the copies back when the sale fails.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscSellQueueTest {
+
+    /** Longest time a test waits for the writer */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+
+    private DiscProvider provider;
+    private DiscWriter writer;
+    private DiscSellQueue sellQueue;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("sellqueue.");
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(DiscContract.CONTENT_AUTHORITY, provider);
+        writer = new DiscWriter(resolver);
+        sellQueue = new DiscSellQueue(writer, null);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void mergesSellsIntoOneSale() throws InterruptedException {
+        // The fifth synthetic disc has 5 copies in stock
+        final long id = insertDisc(5);
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 5; i++) {
+                    sellQueue.sell(id);
+                }
+                assertEquals(5, sellQueue.getUnsavedCopies(id));
+                sellQueue.flush();
+            }
+        });
+        awaitWriter();
+
+        assertEquals(0, queryQuantity(id));
+        assertEquals(1, countSales(id));
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // Written, but still counted until the list is reloaded
+                assertEquals(5, sellQueue.getUnsavedCopies(id));
+                sellQueue.onDiscsReloaded(loaded(sellQueue.getWriteGeneration()));
+                assertEquals(0, sellQueue.getUnsavedCopies(id));
+            }
+        });
+    }
+
+    @Test
+    public void keepsSaleUntilListReadAfterIt() throws InterruptedException {
+        final long id = insertDisc(5);
+        final long[] readGeneration = new long[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                sellQueue.sell(id);
+                sellQueue.sell(id);
+                // A load reads the discs while the sale is being written
+                readGeneration[0] = sellQueue.getWriteGeneration();
+                sellQueue.flush();
+            }
+        });
+        awaitWriter();
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                // The list read before the sale is delivered after it was written
+                sellQueue.onDiscsReloaded(loaded(readGeneration[0]));
+                assertEquals(2, sellQueue.getUnsavedCopies(id));
+
+                // Only the list read after the sale includes it
+                sellQueue.onDiscsReloaded(loaded(sellQueue.getWriteGeneration()));
+                assertEquals(0, sellQueue.getUnsavedCopies(id));
+            }
+        });
+        assertEquals(3, queryQuantity(id));
+    }
+
+    @Test
+    public void givesCopiesBackWhenSaleFails() throws InterruptedException {
+        // The second synthetic disc has 2 copies in stock
+        final long id = insertDisc(2);
+        final int[] failedCopies = new int[1];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                sellQueue.setListener(new DiscSellQueue.Listener() {
+                    @Override
+                    public void onSellFailed(long failedId, int copies) {
+                        assertEquals(id, failedId);
+                        failedCopies[0] += copies;
+                    }
+                });
+                // Another device sold a copy in the meantime, so only one is left
+                for (int i = 0; i < 2; i++) {
+                    sellQueue.sell(id);
+                }
+            }
+        });
+        provider.update(DiscEntry.buildSellUri(id), null, null, null);
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                sellQueue.flush();
+            }
+        });
+        awaitWriter();
+
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(2, failedCopies[0]);
+                assertEquals(0, sellQueue.getUnsavedCopies(id));
+            }
+        });
+        assertEquals(1, queryQuantity(id));
+    }
+
+    /**
+     * Return discs which were all read at the given write generation.
+     */
+    private static DiscSellQueue.LoadedDiscs loaded(final long writeGeneration) {
+        return new DiscSellQueue.LoadedDiscs() {
+            @Override
+            public long getWriteGeneration(long id) {
+                return writeGeneration;
+            }
+        };
+    }
+
+    private long insertDisc(int n) {
+        return ContentUris.parseId(provider.insert(DiscEntry.CONTENT_URI,
+                TestProviders.discs(n, 1)[0]));
+    }
+
+    /**
+     * Wait until the writes queued so far have been applied and their callbacks called: the
+     * writer applies the writes and calls their callbacks in order.
+     */
+    private void awaitWriter() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        writer.delete(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, Long.MAX_VALUE),
+                new DiscWriter.Callback() {
+                    @Override
+                    public void onWriteComplete(DiscWriter.Result result) {
+                        latch.countDown();
+                    }
+                });
+        assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    private long countSales(long id) {
+        return DatabaseUtils.queryNumEntries(provider.getDatabaseHelper().getReadableDatabase(),
+                LedgerEntry.TABLE_NAME, LedgerEntry.COLUMN_DISC_ID + " = ? AND "
+                        + LedgerEntry.COLUMN_REASON + " = ?",
+                new String[]{String.valueOf(id), LedgerEntry.REASON_SALE});
+    }
+
+    private int queryQuantity(long id) {
+        Cursor cursor = provider.query(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                new String[]{DiscEntry.COLUMN_DISC_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks with EXPLAIN QUERY PLAN that every query of the list is answered from an index,
+ * without sorting the discs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscSortOrderTest {
+
+    /** Every order the discs can be paged in */
+    private static final String[] SORT_ORDERS = {DiscEntry.SORT_ADDED, DiscEntry.SORT_ARTIST,
+            DiscEntry.SORT_TITLE, DiscEntry.SORT_PRICE, DiscEntry.SORT_PRICE_DESC,
+            DiscEntry.SORT_LOW_STOCK};
+
+    /** Columns read by the list */
+    private static final String[] PROJECTION = {DiscEntry._ID, DiscEntry.COLUMN_DISC_IMAGE,
+            DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE, DiscEntry.COLUMN_DISC_PRICE,
+            DiscEntry.COLUMN_DISC_QUANTITY};
+
+    private DiscDBHelper helper;
+
+    @Before
+    public void setUp() {
+        helper = new DiscDBHelper(TestProviders.context("plan."));
+    }
+
+    @After
+    public void tearDown() {
+        helper.close();
+    }
+
+    @Test
+    public void pagesUseAnIndex() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        for (String name : SORT_ORDERS) {
+            DiscSortOrder order = DiscSortOrder.forName(name);
+            for (boolean after : new boolean[]{false, true}) {
+                String sql = SQLiteQueryBuilder.buildQueryString(false, DiscEntry.TABLE_NAME,
+                        PROJECTION, order.pageSelection(after), null, null, order.orderBy(), "50");
+                String[] args = after ? order.afterArgs("1", 1) : null;
+                List<String> plan = explain(db, sql, args);
+                String description = name + (after ? " next page: " : " first page: ") + plan;
+
+                // The discs come out of the index (or the table for the ID order) already sorted
+                for (String detail : plan) {
+                    assertFalse(description, detail.contains("TEMP B-TREE"));
+                }
+                if (!name.equals(DiscEntry.SORT_ADDED)) {
+                    assertTrue(description, usesIndex(plan, "INDEX " + DiscEntry.TABLE_NAME + "_"));
+                } else if (after) {
+                    assertTrue(description, usesIndex(plan, "INTEGER PRIMARY KEY"));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void discLookupUsesThePrimaryKey() {
+        SQLiteDatabase db = helper.getReadableDatabase();
+        String sql = SQLiteQueryBuilder.buildQueryString(false, DiscEntry.TABLE_NAME, PROJECTION,
+                DiscEntry._ID + "=?", null, null, null, null);
+        List<String> plan = explain(db, sql, new String[]{"1"});
+        assertTrue(plan.toString(), usesIndex(plan, "INTEGER PRIMARY KEY"));
+    }
+
+    /**
+     * Return the details of the query plan of the given query.
+     */
+    private static List<String> explain(SQLiteDatabase db, String sql, String[] args) {
+        List<String> details = new ArrayList<>();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailColumnIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                details.add(cursor.getString(detailColumnIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return details;
+    }
+
+    /**
+     * Return true if a step of the plan uses the given index.
+     */
+    private static boolean usesIndex(List<String> plan, String index) {
+        for (String detail : plan) {
+            if (detail.contains("USING") && detail.contains(index)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
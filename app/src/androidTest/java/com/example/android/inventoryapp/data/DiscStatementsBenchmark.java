@@ -0,0 +1,147 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Debug;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Locale;
+
+/**
+ * Benchmark of the compiled statements of {@link DiscStatements} against the generic
+ * {@link SQLiteDatabase} insert, update and delete methods taking {@link ContentValues}.
+ * Every operation runs in its own transaction, the way single provider calls do.
+ * The latency and the number of objects allocated per operation are written to the log.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscStatementsBenchmark {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscStatementsBenchmark.class.getSimpleName();
+
+    /** Number of times each operation is run */
+    private static final int OPERATIONS = 2000;
+
+    /** A single benchmarked operation, run on the disc numbered i */
+    private interface Operation {
+        void run(int i);
+    }
+
+    private DiscDBHelper helper;
+    private SQLiteDatabase database;
+    private DiscStatements statements;
+
+    @Before
+    public void setUp() {
+        helper = new DiscDBHelper(TestProviders.context("statements."));
+        database = helper.getWritableDatabase();
+        statements = new DiscStatements(database);
+    }
+
+    @After
+    public void tearDown() {
+        statements.close();
+        helper.close();
+    }
+
+    @Test
+    public void statementsVersusContentValues() {
+        final String image = "android.resource://com.example.android.inventoryapp/drawable/dummy_image";
+
+        // Discs 1 to OPERATIONS are inserted by the generic insert, the next ones by the statement
+        measure("insert", new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(DiscEntry.COLUMN_DISC_IMAGE, image);
+                values.put(DiscEntry.COLUMN_DISC_ARTIST, "Artist");
+                values.put(DiscEntry.COLUMN_DISC_TITLE, "Title");
+                values.put(DiscEntry.COLUMN_DISC_PRICE, i % 50);
+                values.put(DiscEntry.COLUMN_DISC_QUANTITY, i % 20);
+                database.insert(DiscEntry.TABLE_NAME, null, values);
+            }
+        }, new Operation() {
+            @Override
+            public void run(int i) {
+                statements.insertDisc(image, "Artist", "Title", i % 50, i % 20);
+            }
+        });
+
+        measure("quantity update", new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(DiscEntry.COLUMN_DISC_QUANTITY, i % 7);
+                database.update(DiscEntry.TABLE_NAME, values, DiscEntry._ID + "=?",
+                        new String[]{String.valueOf(i + 1)});
+            }
+        }, new Operation() {
+            @Override
+            public void run(int i) {
+                statements.updateQuantity(i + 1, i % 7);
+            }
+        });
+
+        measure("price update", new Operation() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(DiscEntry.COLUMN_DISC_PRICE, i % 11);
+                database.update(DiscEntry.TABLE_NAME, values, DiscEntry._ID + "=?",
+                        new String[]{String.valueOf(i + 1)});
+            }
+        }, new Operation() {
+            @Override
+            public void run(int i) {
+                statements.updatePrice(i + 1, i % 11);
+            }
+        });
+
+        measure("delete", new Operation() {
+            @Override
+            public void run(int i) {
+                database.delete(DiscEntry.TABLE_NAME, DiscEntry._ID + "=?",
+                        new String[]{String.valueOf(i + 1)});
+            }
+        }, new Operation() {
+            @Override
+            public void run(int i) {
+                statements.deleteDisc(OPERATIONS + i + 1);
+            }
+        });
+    }
+
+    /**
+     * Run both versions of an operation {@link #OPERATIONS} times and log their cost.
+     */
+    private void measure(String name, Operation generic, Operation compiled) {
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: ContentValues %s, statement %s",
+                name, run(generic), run(compiled)));
+    }
+
+    /**
+     * Run an operation {@link #OPERATIONS} times, and describe its mean latency and the number
+     * of objects it allocated on this thread.
+     */
+    @SuppressWarnings("deprecation")
+    private static String run(Operation operation) {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            operation.run(i);
+        }
+        long nanos = System.nanoTime() - start;
+        Debug.stopAllocCounting();
+        return String.format(Locale.US, "%.1f us/op, %.1f allocations/op",
+                nanos / 1e3 / OPERATIONS, (double) Debug.getThreadAllocCount() / OPERATIONS);
+    }
+}
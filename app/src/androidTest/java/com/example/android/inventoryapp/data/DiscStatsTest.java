@@ -0,0 +1,125 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks that the inventory totals kept by the triggers always match the totals computed
+ * from all the discs.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscStatsTest {
+
+    /** Columns of the totals, in the same order as {@link #RECOMPUTE} */
+    private static final String[] STATS = {StatsEntry.COLUMN_DISC_COUNT,
+            StatsEntry.COLUMN_UNIT_COUNT, StatsEntry.COLUMN_STOCK_VALUE,
+            StatsEntry.COLUMN_LOW_STOCK_COUNT};
+
+    /** Aggregates computing the totals from all the discs */
+    private static final String[] RECOMPUTE = {"COUNT(*)",
+            "IFNULL(SUM(" + DiscEntry.COLUMN_DISC_QUANTITY + "), 0)",
+            "IFNULL(SUM(" + DiscEntry.COLUMN_DISC_PRICE + " * " + DiscEntry.COLUMN_DISC_QUANTITY + "), 0)",
+            "IFNULL(SUM(" + DiscEntry.COLUMN_DISC_QUANTITY + " <= " + DiscEntry.LOW_STOCK_QUANTITY + "), 0)"};
+
+    private DiscProvider provider;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("stats.");
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void totalsMatchRecompute() {
+        assertConsistent();
+        provider.bulkInsert(DiscEntry.CONTENT_URI, TestProviders.discs(500));
+        assertConsistent();
+
+        // Random sells, adjustments, price and quantity changes, inserts and deletes
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            long id = 1 + random.nextInt(500);
+            switch (random.nextInt(6)) {
+                case 0:
+                    provider.update(DiscEntry.buildSellUri(id), null, null, null);
+                    break;
+                case 1:
+                    provider.update(DiscEntry.buildAdjustUri(id, random.nextInt(10) - 3), null,
+                            null, null);
+                    break;
+                case 2:
+                    ContentValues price = new ContentValues();
+                    price.put(DiscEntry.COLUMN_DISC_PRICE, random.nextInt(100));
+                    provider.update(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id), price,
+                            null, null);
+                    break;
+                case 3:
+                    ContentValues disc = new ContentValues();
+                    disc.put(DiscEntry.COLUMN_DISC_PRICE, random.nextInt(100));
+                    disc.put(DiscEntry.COLUMN_DISC_QUANTITY, random.nextInt(10));
+                    provider.update(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id), disc,
+                            null, null);
+                    break;
+                case 4:
+                    provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(i, 1)[0]);
+                    break;
+                default:
+                    provider.delete(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                            null, null);
+                    break;
+            }
+        }
+        assertConsistent();
+
+        // Changes of many discs at once
+        ContentValues restock = new ContentValues();
+        restock.put(DiscEntry.COLUMN_DISC_QUANTITY, 3);
+        provider.update(DiscEntry.CONTENT_URI, restock, DiscEntry.COLUMN_DISC_PRICE + " < ?",
+                new String[]{"20"});
+        assertConsistent();
+        provider.delete(DiscEntry.CONTENT_URI, null, null);
+        assertConsistent();
+    }
+
+    /**
+     * Check that the totals read from the stats URI match the ones computed from the discs.
+     */
+    private void assertConsistent() {
+        long[] expected = readRow(provider.query(DiscEntry.CONTENT_URI, RECOMPUTE, null, null, null));
+        long[] actual = readRow(provider.query(StatsEntry.CONTENT_URI, STATS, null, null, null));
+        assertArrayEquals(Arrays.toString(expected) + " != " + Arrays.toString(actual),
+                expected, actual);
+    }
+
+    private static long[] readRow(Cursor cursor) {
+        try {
+            cursor.moveToFirst();
+            long[] values = new long[cursor.getColumnCount()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = cursor.getLong(i);
+            }
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that devices synced with the same server converge: every change gets to the other
+ * devices, concurrent sales add up, the latest change of the other fields wins, a push made
+ * twice counts once, and thousands of changes made on several devices at once end up the same
+ * everywhere.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscSyncTest {
+
+    private static final String LOG_TAG = DiscSyncTest.class.getSimpleName();
+
+    /** Number of devices synced in the tests */
+    private static final int DEVICES = 3;
+
+    private final DiscProvider[] providers = new DiscProvider[DEVICES];
+    private final DiscSync[] syncs = new DiscSync[DEVICES];
+    private DiscLocalSyncServer server;
+
+    /** When true, the answer of the next push is lost on the way back */
+    private boolean loseNextAnswer;
+
+    @Before
+    public void setUp() {
+        server = new DiscLocalSyncServer();
+        DiscSyncServer connection = new DiscSyncServer() {
+            @Override
+            public byte[] pull(byte[] deviceId, long revision, int limit) throws IOException {
+                return server.pull(deviceId, revision, limit);
+            }
+
+            @Override
+            public byte[] push(byte[] deviceId, byte[] changes) throws IOException {
+                byte[] answer = server.push(deviceId, changes);
+                if (loseNextAnswer) {
+                    loseNextAnswer = false;
+                    throw new IOException("Connection lost");
+                }
+                return answer;
+            }
+        };
+        for (int i = 0; i < DEVICES; i++) {
+            providers[i] = TestProviders.create("sync" + i + ".");
+            MockContentResolver resolver = new MockContentResolver();
+            resolver.addProvider(DiscContract.CONTENT_AUTHORITY, providers[i]);
+            syncs[i] = new DiscSync(resolver, connection);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (DiscProvider provider : providers) {
+            provider.shutdown();
+        }
+    }
+
+    @Test
+    public void changesGetToTheOtherDevices() throws IOException {
+        // The tenth synthetic disc has 10 copies in stock
+        providers[0].insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        assertEquals(1, syncs[0].sync().pushed);
+        DiscSync.Result result = syncs[1].sync();
+        assertEquals(1, result.pulled);
+        assertEquals(0, result.pushed);
+        long id = queryId(1, "Title 10");
+        assertEquals(10, queryQuantity(1, id));
+
+        ContentValues values = new ContentValues();
+        values.put(DiscEntry.COLUMN_DISC_PRICE, 42);
+        providers[1].update(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id), values,
+                null, null);
+        syncs[1].sync();
+        syncs[0].sync();
+        assertEquals(42, queryPrice(0, queryId(0, "Title 10")));
+
+        // Nothing changed since: nothing is exchanged but the empty pull
+        result = syncs[0].sync();
+        assertEquals(0, result.pulled);
+        assertEquals(0, result.pushed);
+
+        providers[0].delete(ContentUris.withAppendedId(DiscEntry.CONTENT_URI,
+                queryId(0, "Title 10")), null, null);
+        syncs[0].sync();
+        syncs[1].sync();
+        assertEquals(-1, queryId(1, "Title 10"));
+    }
+
+    @Test
+    public void concurrentSalesAddUp() throws IOException {
+        providers[0].insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        syncAll();
+
+        // Both devices sell from the same 10 copies before syncing
+        sell(0, queryId(0, "Title 10"), 3);
+        sell(1, queryId(1, "Title 10"), 2);
+        syncAll();
+        syncAll();
+        for (int i = 0; i < 2; i++) {
+            assertEquals(5, queryQuantity(i, queryId(i, "Title 10")));
+        }
+    }
+
+    @Test
+    public void latestChangeWins() throws IOException {
+        providers[0].insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        syncAll();
+
+        // The second device changes the title last, but syncs first
+        rename(0, "Title 10", "Earlier title");
+        SystemClock.sleep(20);
+        rename(1, "Title 10", "Later title");
+        syncs[1].sync();
+        syncs[0].sync();
+        syncAll();
+        for (int i = 0; i < DEVICES; i++) {
+            assertTrue(queryId(i, "Later title") != -1);
+        }
+
+        // The first device changes the title last, and syncs last
+        rename(1, "Later title", "Earlier title");
+        SystemClock.sleep(20);
+        rename(0, "Later title", "Latest title");
+        syncs[1].sync();
+        syncs[0].sync();
+        syncAll();
+        for (int i = 0; i < DEVICES; i++) {
+            assertTrue(queryId(i, "Latest title") != -1);
+        }
+    }
+
+    @Test
+    public void pushMadeTwiceCountsOnce() throws IOException {
+        providers[0].insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        syncAll();
+        long id = queryId(0, "Title 10");
+        sell(0, id, 3);
+
+        loseNextAnswer = true;
+        try {
+            syncs[0].sync();
+            fail("The answer of the push was lost");
+        } catch (IOException expected) {
+            // The server applied the push, but the device doesn't know
+        }
+        assertEquals(1, syncs[0].sync().pushed);
+        syncAll();
+        for (int i = 0; i < DEVICES; i++) {
+            assertEquals(7, queryQuantity(i, queryId(i, "Title 10")));
+        }
+    }
+
+    @Test
+    public void concurrentDevicesConverge() throws Exception {
+        final int discs = 200;
+        final int sellsPerDevice = 2000;
+        final int sellsPerSync = 100;
+        final int copies = 1000;
+
+        ContentValues[] values = TestProviders.discs(discs);
+        for (ContentValues disc : values) {
+            disc.put(DiscEntry.COLUMN_DISC_QUANTITY, copies);
+        }
+        providers[0].bulkInsert(DiscEntry.CONTENT_URI, values);
+        syncAll();
+
+        // Every device sells random discs, and syncs every few sales while the others do
+        final AtomicInteger sold = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final long[] bytes = new long[1];
+        List<Thread> threads = new ArrayList<>();
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < DEVICES; i++) {
+            final int device = i;
+            final List<Long> ids = new ArrayList<>();
+            Cursor cursor = providers[device].query(DiscEntry.CONTENT_URI,
+                    new String[]{DiscEntry._ID}, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(device);
+                    try {
+                        for (int n = 1; n <= sellsPerDevice; n++) {
+                            long id = ids.get(random.nextInt(ids.size()));
+                            sold.addAndGet(providers[device].update(DiscEntry.buildSellUri(id),
+                                    null, null, null));
+                            if (n % sellsPerSync == 0) {
+                                DiscSync.Result result = syncs[device].sync();
+                                synchronized (bytes) {
+                                    bytes[0] += result.bytesSent + result.bytesReceived;
+                                }
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        syncAll();
+        syncAll();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        Map<String, Integer> expected = queryQuantities(0);
+        long total = 0;
+        for (int quantity : expected.values()) {
+            total += quantity;
+        }
+        assertEquals(discs, expected.size());
+        assertEquals((long) discs * copies - sold.get(), total);
+        for (int i = 1; i < DEVICES; i++) {
+            assertEquals(expected, queryQuantities(i));
+        }
+        Log.i(LOG_TAG, String.format(Locale.US,
+                "%d sells on %d devices synced in %d ms, %d bytes exchanged, %d conflicts",
+                sold.get(), DEVICES, elapsed, bytes[0], server.getConflicts()));
+    }
+
+    /**
+     * Sync every device in turn.
+     */
+    private void syncAll() throws IOException {
+        for (DiscSync sync : syncs) {
+            sync.sync();
+        }
+    }
+
+    private void sell(int device, long id, int copies) {
+        assertEquals(1, providers[device].update(DiscEntry.buildSellUri(id, copies),
+                null, null, null));
+    }
+
+    private void rename(int device, String title, String newTitle) {
+        ContentValues values = new ContentValues();
+        values.put(DiscEntry.COLUMN_DISC_TITLE, newTitle);
+        assertEquals(1, providers[device].update(ContentUris.withAppendedId(DiscEntry.CONTENT_URI,
+                queryId(device, title)), values, null, null));
+    }
+
+    /**
+     * Return the ID of the disc with the given title on the given device, or -1 if none has it.
+     */
+    private long queryId(int device, String title) {
+        Cursor cursor = providers[device].query(DiscEntry.CONTENT_URI,
+                new String[]{DiscEntry._ID}, DiscEntry.COLUMN_DISC_TITLE + " = ?",
+                new String[]{title}, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int queryQuantity(int device, long id) {
+        return queryInt(device, id, DiscEntry.COLUMN_DISC_QUANTITY);
+    }
+
+    private int queryPrice(int device, long id) {
+        return queryInt(device, id, DiscEntry.COLUMN_DISC_PRICE);
+    }
+
+    private int queryInt(int device, long id, String column) {
+        Uri uri = ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id);
+        Cursor cursor = providers[device].query(uri, new String[]{column}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the quantity of every disc of the given device, by title.
+     */
+    private Map<String, Integer> queryQuantities(int device) {
+        Map<String, Integer> quantities = new HashMap<>();
+        Cursor cursor = providers[device].query(DiscEntry.CONTENT_URI, new String[]{
+                DiscEntry.COLUMN_DISC_TITLE, DiscEntry.COLUMN_DISC_QUANTITY}, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                quantities.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return quantities;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that every write of a disc increments its version, and that an update with an
+ * expected version only goes through if the disc is unchanged.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscVersionTest {
+
+    private DiscProvider provider;
+    private long id;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("version.");
+        // The tenth synthetic disc has 10 copies in stock
+        Uri uri = provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(10, 1)[0]);
+        id = ContentUris.parseId(uri);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void everyWriteIncrementsTheVersion() {
+        assertEquals(0, queryVersion());
+
+        // Compiled statements
+        provider.update(DiscEntry.buildSellUri(id), null, null, null);
+        assertEquals(1, queryVersion());
+        provider.update(DiscEntry.buildAdjustUri(id, 3), null, null, null);
+        assertEquals(2, queryVersion());
+        provider.update(discUri(), values(DiscEntry.COLUMN_DISC_PRICE, 12), null, null);
+        assertEquals(3, queryVersion());
+
+        // Generic updates, through the trigger
+        ContentValues values = values(DiscEntry.COLUMN_DISC_PRICE, 15);
+        values.put(DiscEntry.COLUMN_DISC_ARTIST, "Other artist");
+        provider.update(discUri(), values, null, null);
+        assertEquals(4, queryVersion());
+        provider.update(DiscEntry.CONTENT_URI, values(DiscEntry.COLUMN_DISC_QUANTITY, 1),
+                null, null);
+        assertEquals(5, queryVersion());
+
+        // A sale refused for lack of stock writes nothing
+        provider.update(DiscEntry.buildSellUri(id, 2), null, null, null);
+        assertEquals(5, queryVersion());
+    }
+
+    @Test
+    public void updateWithExpectedVersion() {
+        ContentValues values = values(DiscEntry.COLUMN_DISC_PRICE, 20);
+        assertEquals(1, provider.update(DiscEntry.buildExpectedVersionUri(id, 0), values,
+                null, null));
+        assertEquals(1, queryVersion());
+
+        // A sale happened since version 1 was read: the stale update changes nothing
+        provider.update(DiscEntry.buildSellUri(id), null, null, null);
+        assertEquals(DiscEntry.UPDATE_CONFLICT, provider.update(
+                DiscEntry.buildExpectedVersionUri(id, 1), values(DiscEntry.COLUMN_DISC_QUANTITY, 10),
+                null, null));
+        assertEquals(2, queryVersion());
+        assertEquals(9, queryQuantity());
+
+        // A disc which doesn't exist is not a conflict
+        assertEquals(0, provider.update(DiscEntry.buildExpectedVersionUri(id + 1, 0), values,
+                null, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void versionCantBeWritten() {
+        provider.update(discUri(), values(DiscEntry.COLUMN_DISC_VERSION, 7), null, null);
+    }
+
+    private Uri discUri() {
+        return ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id);
+    }
+
+    private static ContentValues values(String column, int value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    private long queryVersion() {
+        return queryLong(DiscEntry.COLUMN_DISC_VERSION);
+    }
+
+    private long queryQuantity() {
+        return queryLong(DiscEntry.COLUMN_DISC_QUANTITY);
+    }
+
+    private long queryLong(String column) {
+        Cursor cursor = provider.query(discUri(), new String[]{column}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
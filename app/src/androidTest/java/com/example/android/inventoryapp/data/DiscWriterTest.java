@@ -0,0 +1,147 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.mock.MockContentResolver;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@link DiscWriter} applies the writes in order, and that a failing write
+ * doesn't make the writes queued with it fail.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DiscWriterTest {
+
+    /** Longest time a test waits for its callbacks */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private DiscProvider provider;
+    private DiscWriter writer;
+
+    @Before
+    public void setUp() {
+        provider = TestProviders.create("writer.");
+        MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(DiscContract.CONTENT_AUTHORITY, provider);
+        writer = new DiscWriter(resolver);
+    }
+
+    @After
+    public void tearDown() {
+        provider.shutdown();
+    }
+
+    @Test
+    public void sellsInOrderUntilOutOfStock() throws InterruptedException {
+        // The fifth synthetic disc has 5 copies in stock
+        Uri uri = provider.insert(DiscEntry.CONTENT_URI, TestProviders.discs(5, 1)[0]);
+        long id = ContentUris.parseId(uri);
+
+        int sells = 8;
+        Results results = new Results(sells);
+        for (int i = 0; i < sells; i++) {
+            writer.sell(id, 1, results);
+        }
+        results.await();
+
+        // The first five sells went through, in order, and the others found no copy left
+        for (int i = 0; i < sells; i++) {
+            assertNull(results.get(i).error);
+            assertEquals(i < 5, results.get(i).isSuccessful());
+        }
+        assertEquals(0, queryQuantity(id));
+    }
+
+    @Test
+    public void failingWriteDoesNotFailTheOthers() throws InterruptedException {
+        ContentValues[] discs = TestProviders.discs(3);
+        // A disc requires an artist
+        discs[1].remove(DiscEntry.COLUMN_DISC_ARTIST);
+
+        Results results = new Results(discs.length);
+        for (ContentValues disc : discs) {
+            writer.insert(disc, results);
+        }
+        results.await();
+
+        assertNotNull(results.get(0).uri);
+        assertNull(results.get(1).uri);
+        assertFalse(results.get(1).isSuccessful());
+        assertTrue(results.get(1).error instanceof IllegalArgumentException);
+        assertNotNull(results.get(2).uri);
+        assertEquals(2, countDiscs());
+    }
+
+    private int queryQuantity(long id) {
+        Cursor cursor = provider.query(ContentUris.withAppendedId(DiscEntry.CONTENT_URI, id),
+                new String[]{DiscEntry.COLUMN_DISC_QUANTITY}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countDiscs() {
+        Cursor cursor = provider.query(DiscEntry.CONTENT_URI, new String[]{"COUNT(*)"},
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Keeps the results of the writes in the order their callbacks were called.
+     */
+    private static final class Results implements DiscWriter.Callback {
+
+        private final List<DiscWriter.Result> results = new ArrayList<>();
+        private final CountDownLatch latch;
+
+        Results(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onWriteComplete(DiscWriter.Result result) {
+            synchronized (results) {
+                results.add(result);
+            }
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue(latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+
+        DiscWriter.Result get(int index) {
+            synchronized (results) {
+                return results.get(index);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.support.test.InstrumentationRegistry;
+import android.test.RenamingDelegatingContext;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+/**
+ * Helpers shared by the provider tests and benchmarks.
+ */
+final class TestProviders {
+
+    private TestProviders() {}
+
+    /**
+     * Create a {@link DiscProvider} working on its own, empty copy of the database. The database
+     * file name is prefixed with the given prefix, so the app data is never touched.
+     */
+    static DiscProvider create(String prefix) {
+        return attach(context(prefix));
+    }
+
+    /**
+     * Create a {@link DiscProvider} working on the copy of the database left by the provider
+     * created with the same prefix, as if the app had been started again.
+     */
+    static DiscProvider reopen(String prefix) {
+        return attach(new RenamingDelegatingContext(
+                InstrumentationRegistry.getTargetContext(), prefix));
+    }
+
+    private static DiscProvider attach(Context context) {
+        ProviderInfo info = new ProviderInfo();
+        info.authority = DiscContract.CONTENT_AUTHORITY;
+
+        DiscProvider provider = new DiscProvider();
+        provider.attachInfo(context, info);
+        return provider;
+    }
+
+    /**
+     * Return a context whose database file names are prefixed with the given prefix, after
+     * deleting the disc database and the sell journal it may have left behind.
+     */
+    static Context context(String prefix) {
+        Context context = new RenamingDelegatingContext(
+                InstrumentationRegistry.getTargetContext(), prefix);
+        context.deleteDatabase(DiscDBHelper.DATABASE_NAME);
+        DiscJournal.getFile(context).delete();
+        return context;
+    }
+
+    /**
+     * Build the given number of synthetic discs.
+     */
+    static ContentValues[] discs(int count) {
+        return discs(0, count);
+    }
+
+    /**
+     * Build the given number of synthetic discs, numbered from first.
+     */
+    static ContentValues[] discs(int first, int count) {
+        ContentValues[] discs = new ContentValues[count];
+        for (int n = 0; n < count; n++) {
+            int i = first + n;
+            ContentValues values = new ContentValues();
+            values.put(DiscEntry.COLUMN_DISC_IMAGE,
+                    "android.resource://com.example.android.inventoryapp/drawable/dummy_image");
+            values.put(DiscEntry.COLUMN_DISC_ARTIST, "Artist " + (i % 997));
+            values.put(DiscEntry.COLUMN_DISC_TITLE, "Title " + i);
+            values.put(DiscEntry.COLUMN_DISC_PRICE, i % 50);
+            values.put(DiscEntry.COLUMN_DISC_QUANTITY, i % 20);
+            discs[n] = values;
+        }
+        return discs;
+    }
+
+    /**
+     * Insert the given number of synthetic discs into the provider, a chunk at a time so
+     * large tables can be built without holding all the rows in memory.
+     */
+    static void fill(DiscProvider provider, int count) {
+        final int chunk = 10000;
+        for (int first = 0; first < count; first += chunk) {
+            provider.bulkInsert(DiscEntry.CONTENT_URI, discs(first, Math.min(chunk, count - first)));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.example.android.inventoryapp;
 import android.Manifest;
 import android.app.Activity;
 import android.app.LoaderManager;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
@@ -31,6 +32,7 @@ import android.widget.ImageView;
 import android.widget.Toast;
 
 import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscWriter;
 
 
 /**
@@ -48,6 +50,16 @@ public class DetailsActivity extends AppCompatActivity
      * Identifier for the pet data loader
      */
     private static final int EXISTING_DISC_LOADER = 0;
+
+    /**
+     * Value of {@link #discVersion} while the version of the disc isn't known
+     */
+    private static final long NO_VERSION = -1;
+
+    /**
+     * Key of the saved state holding {@link #writing}
+     */
+    private static final String KEY_WRITING = "writing";
     /**
      * FAB button used to order more CDs
      */
@@ -72,6 +84,26 @@ public class DetailsActivity extends AppCompatActivity
      * ImageView field to enter the CD's cover image
      */
     private ImageView coverImageView;
+    /**
+     * Loader decoding the cover image in the background
+     */
+    private DiscImageLoader imageLoader;
+    /**
+     * Writer saving and deleting the disc in the background
+     */
+    private DiscWriter writer;
+    /**
+     * Boolean flag that is true while the disc is being saved or deleted, so it isn't done twice
+     */
+    private boolean writing = false;
+    /**
+     * Save or delete waiting for its result, kept across configuration changes, or null
+     */
+    private PendingWrite pendingWrite;
+    /**
+     * Size of the cover image, in pixels
+     */
+    private int imageSize;
     /**
      * EditText field to enter the CD's artist
      */
@@ -100,6 +132,11 @@ public class DetailsActivity extends AppCompatActivity
      * Boolean flag that keeps track of whether the disc has been edited (true) or not (false)
      */
     private boolean discHasChanged = false;
+    /**
+     * Version of the disc the editor was filled with. The disc is only updated if it still has
+     * this version, so a sale or an import made while it was edited is never overwritten.
+     */
+    private long discVersion = NO_VERSION;
     /**
      * OnTouchListener that listens for any user touches on a View, implying that they are modifying
      * the view, and we change the discHasChanged boolean to true.
@@ -178,6 +215,9 @@ public class DetailsActivity extends AppCompatActivity
         quantityEditText = (EditText) findViewById(R.id.edit_disc_quantity);
         increaseButton = (Button) findViewById(R.id.increase_quantity);
         decreaseButton = (Button) findViewById(R.id.decrease_quantity);
+        imageLoader = DiscImageLoader.getInstance(this);
+        writer = DiscWriter.getInstance(this);
+        imageSize = getResources().getDimensionPixelSize(R.dimen.image_size);
 
         // Setup OnTouchListeners on all the input fields, so we can determine if the user
         // has touched or modified them. This will let us know if there are unsaved changes
@@ -189,6 +229,29 @@ public class DetailsActivity extends AppCompatActivity
         quantityEditText.setOnTouchListener(touchListener);
         increaseButton.setOnTouchListener(touchListener);
         decreaseButton.setOnTouchListener(touchListener);
+
+        // A save or delete started before the activity was recreated reports to this instance
+        if (savedInstanceState != null) {
+            writing = savedInstanceState.getBoolean(KEY_WRITING);
+        }
+        pendingWrite = (PendingWrite) getLastCustomNonConfigurationInstance();
+        if (pendingWrite != null) {
+            pendingWrite.attach(this);
+        } else if (writing) {
+            // The process was restarted during the write, whose result is lost
+            writing = false;
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(KEY_WRITING, writing);
+    }
+
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return pendingWrite;
     }
 
     public void pickImage(View view) {
@@ -217,9 +280,14 @@ public class DetailsActivity extends AppCompatActivity
     }
 
     /**
-     * Get user input from editor and save disc into database.
+     * Get user input from editor and save disc into database in the background. The activity
+     * is closed once the disc has been saved.
      */
     private void saveDisc() {
+        if (writing) {
+            return;
+        }
+
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
         String artistString = artistEditText.getText().toString().trim();
@@ -235,6 +303,7 @@ public class DetailsActivity extends AppCompatActivity
                 discImageUri == null) {
             // Since no fields were modified, we can return early without creating a new disc.
             // No need to create ContentValues and no need to do any ContentProvider operations.
+            finish();
             return;
         }
 
@@ -279,38 +348,83 @@ public class DetailsActivity extends AppCompatActivity
         values.put(DiscEntry.COLUMN_DISC_QUANTITY, currentQuantity);
 
         // Determine if this is a new or existing disc by checking if currentUri is null or not
+        writing = true;
         if (currentUri == null) {
             // This is a NEW disc, so insert a new disc into the provider,
-            // returning the content URI for the new disc.
-            Uri newUri = getContentResolver().insert(DiscEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_disc_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_disc_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // which returns the content URI for the new disc.
+            writer.insert(values, startWrite(PendingWrite.INSERT));
         } else {
             // Otherwise this is an EXISTING disc, so update the disc with content URI: currentUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because currentUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(currentUri, values, null, null);
+            // and pass in the new ContentValues. currentUri already identifies the correct row
+            // in the database that we want to modify, which is only updated if nobody changed
+            // it since it was loaded.
+            Uri updateUri = discVersion == NO_VERSION ? currentUri
+                    : DiscEntry.buildExpectedVersionUri(ContentUris.parseId(currentUri), discVersion);
+            writer.update(updateUri, values, startWrite(PendingWrite.UPDATE));
+        }
+    }
+
+    /**
+     * Return the callback of a save or delete of the given kind, which reports its result to
+     * whichever instance of the activity is shown when the write completes.
+     */
+    private PendingWrite startWrite(int kind) {
+        pendingWrite = new PendingWrite(kind);
+        pendingWrite.attach(this);
+        return pendingWrite;
+    }
 
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
+    /**
+     * Called once the disc has been saved or deleted by the given write.
+     */
+    private void onWriteComplete(PendingWrite write, DiscWriter.Result result) {
+        pendingWrite = null;
+        switch (write.kind) {
+            case PendingWrite.INSERT:
+                // If the new content URI is null, then there was an error with insertion.
+                onDiscWritten(result.uri != null, R.string.editor_insert_disc_successful,
+                        R.string.editor_insert_disc_failed);
+                break;
+            case PendingWrite.UPDATE:
+                if (result.isConflict()) {
+                    // Let the user pick which changes to keep
+                    writing = false;
+                    showConflictDialog();
+                    return;
+                }
                 // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_disc_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_disc_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+                onDiscWritten(result.isSuccessful(), R.string.editor_update_disc_successful,
+                        R.string.editor_update_disc_failed);
+                break;
+            default:
+                // If no rows were deleted, then there was an error with the delete.
+                onDiscWritten(result.isSuccessful(), R.string.editor_delete_disc_successful,
+                        R.string.editor_delete_disc_failed);
+                break;
+        }
+    }
+
+    /**
+     * Called once the disc has been saved or deleted. Show a toast message depending on whether
+     * or not the write was successful, and close the activity if it was.
+     */
+    private void onDiscWritten(boolean successful, int successMessage, int failureMessage) {
+        writing = false;
+        Toast.makeText(this, getString(successful ? successMessage : failureMessage),
+                Toast.LENGTH_SHORT).show();
+        if (successful) {
+            finish();
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The cover image isn't needed anymore
+        imageLoader.cancel(coverImageView);
+        // A write still running reports to the next instance, or to nobody
+        if (pendingWrite != null) {
+            pendingWrite.detach();
         }
     }
 
@@ -330,8 +444,7 @@ public class DetailsActivity extends AppCompatActivity
         if (requestCode == 0 && resultCode == Activity.RESULT_OK) {
             if (data != null) {
                 discImageUri = data.getData();
-                coverImageView.setImageURI(discImageUri);
-                coverImageView.invalidate();
+                imageLoader.load(discImageUri, coverImageView, imageSize);
             }
         }
     }
@@ -365,10 +478,8 @@ public class DetailsActivity extends AppCompatActivity
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                // Save disc to database
+                // Save disc to database, the activity exits once it is saved
                 saveDisc();
-                // Exit activity
-                finish();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -439,7 +550,8 @@ public class DetailsActivity extends AppCompatActivity
                 DiscEntry.COLUMN_DISC_ARTIST,
                 DiscEntry.COLUMN_DISC_TITLE,
                 DiscEntry.COLUMN_DISC_PRICE,
-                DiscEntry.COLUMN_DISC_QUANTITY};
+                DiscEntry.COLUMN_DISC_QUANTITY,
+                DiscEntry.COLUMN_DISC_VERSION};
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
@@ -457,6 +569,12 @@ public class DetailsActivity extends AppCompatActivity
             return;
         }
 
+        // Keep the edits of the user when the disc is changed meanwhile, together with the
+        // version they were made on, so saving them finds the conflict
+        if (discHasChanged && discVersion != NO_VERSION) {
+            return;
+        }
+
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
@@ -466,6 +584,7 @@ public class DetailsActivity extends AppCompatActivity
             int titleColumnIndex = cursor.getColumnIndex(DiscEntry.COLUMN_DISC_TITLE);
             int priceColumnIndex = cursor.getColumnIndex(DiscEntry.COLUMN_DISC_PRICE);
             int quantityColumnIndex = cursor.getColumnIndex(DiscEntry.COLUMN_DISC_QUANTITY);
+            int versionColumnIndex = cursor.getColumnIndex(DiscEntry.COLUMN_DISC_VERSION);
 
             // Extract out the value from the Cursor for the given column index
             String image = cursor.getString(imageColumnIndex);
@@ -473,16 +592,18 @@ public class DetailsActivity extends AppCompatActivity
             String title = cursor.getString(titleColumnIndex);
             int price = cursor.getInt(priceColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
+            long version = cursor.getLong(versionColumnIndex);
 
             // Update the views on the screen with the values from the database
             discImageUri = Uri.parse(image);
-            coverImageView.setImageURI(discImageUri);
+            imageLoader.load(discImageUri, coverImageView, imageSize);
             artistEditText.setText(artist);
             titleEditText.setText(title);
             priceEditText.setText(Integer.toString(price));
             quantityEditText.setText(Integer.toString(quantity));
             currentPrice = price;
             currentQuantity = quantity;
+            discVersion = version;
         }
     }
 
@@ -525,6 +646,34 @@ public class DetailsActivity extends AppCompatActivity
         alertDialog.show();
     }
 
+    /**
+     * Tell the user that the disc was changed while they were editing it, and let them either
+     * overwrite those changes with theirs, or reload the disc and drop their edits.
+     */
+    private void showConflictDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage(R.string.conflict_dialog_msg);
+        builder.setPositiveButton(R.string.overwrite, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                // Save again, whatever the version of the disc is now
+                discVersion = NO_VERSION;
+                saveDisc();
+            }
+        });
+        builder.setNegativeButton(R.string.reload, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                // Fill the editor again with the disc as it is now
+                discHasChanged = false;
+                discVersion = NO_VERSION;
+                getLoaderManager().restartLoader(EXISTING_DISC_LOADER, null, DetailsActivity.this);
+            }
+        });
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
     /**
      * Prompt the user to confirm that they want to delete this disc.
      */
@@ -552,30 +701,21 @@ public class DetailsActivity extends AppCompatActivity
     }
 
     /**
-     * Perform the deletion of the disc in the database.
+     * Perform the deletion of the disc in the database in the background. The activity is
+     * closed once the disc has been deleted.
      */
     private void deleteDisc() {
         // Only perform the delete if this is an existing disc.
-        if (currentUri != null) {
-            // Call the ContentResolver to delete the disc at the given content URI.
-            // Pass in null for the selection and selection args because the currentUri
-            // content URI already identifies the disc that we want.
-            int rowsDeleted = getContentResolver().delete(currentUri, null, null);
-
-            // Show a toast message depending on whether or not the delete was successful.
-            if (rowsDeleted == 0) {
-                // If no rows were deleted, then there was an error with the delete.
-                Toast.makeText(this, getString(R.string.editor_delete_disc_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the delete was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_delete_disc_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+        if (currentUri == null) {
+            finish();
+            return;
         }
-
-        // Close the activity
-        finish();
+        if (writing) {
+            return;
+        }
+        writing = true;
+        // The currentUri content URI already identifies the disc that we want.
+        writer.delete(currentUri, startWrite(PendingWrite.DELETE));
     }
 
     /**
@@ -598,4 +738,62 @@ public class DetailsActivity extends AppCompatActivity
         currentQuantity -= 1;
         quantityEditText.setText(String.valueOf(currentQuantity));
     }
+
+    /**
+     * Callback of a save or delete, which outlives the activity instance which started it.
+     * Its result goes to the instance attached when it completes, or waits for the next one
+     * while the activity is being recreated, so a destroyed instance is never touched.
+     */
+    private static final class PendingWrite implements DiscWriter.Callback {
+
+        /** Kind of write inserting a new disc */
+        static final int INSERT = 0;
+
+        /** Kind of write updating the disc being edited */
+        static final int UPDATE = 1;
+
+        /** Kind of write deleting the disc being edited */
+        static final int DELETE = 2;
+
+        /** Kind of the write, one of the constants above */
+        final int kind;
+
+        /** Activity instance the result is delivered to, or null while there is none */
+        private DetailsActivity activity;
+
+        /** Result received while no instance was attached, or null */
+        private DiscWriter.Result result;
+
+        PendingWrite(int kind) {
+            this.kind = kind;
+        }
+
+        /**
+         * Deliver the result to the given instance, right away if it has already arrived.
+         */
+        void attach(DetailsActivity activity) {
+            this.activity = activity;
+            if (result != null) {
+                DiscWriter.Result arrived = result;
+                result = null;
+                activity.onWriteComplete(this, arrived);
+            }
+        }
+
+        /**
+         * Stop delivering the result to the instance attached, which is being destroyed.
+         */
+        void detach() {
+            activity = null;
+        }
+
+        @Override
+        public void onWriteComplete(DiscWriter.Result result) {
+            if (activity == null) {
+                this.result = result;
+            } else {
+                activity.onWriteComplete(this, result);
+            }
+        }
+    }
 }
@@ -0,0 +1,138 @@
+package com.example.android.inventoryapp;
+
+import android.database.Cursor;
+import android.text.TextUtils;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.util.List;
+
+/**
+ * Immutable copy of one row of the discs table, as displayed in the list.
+ */
+public final class Disc {
+
+    /** Columns needed to read a {@link Disc} from a cursor */
+    public static final String[] PROJECTION = {
+            DiscEntry._ID,
+            DiscEntry.COLUMN_DISC_IMAGE,
+            DiscEntry.COLUMN_DISC_ARTIST,
+            DiscEntry.COLUMN_DISC_TITLE,
+            DiscEntry.COLUMN_DISC_PRICE,
+            DiscEntry.COLUMN_DISC_QUANTITY};
+
+    /** Unique ID of the disc */
+    public final long id;
+
+    /** URI of the cover image of the disc */
+    public final String image;
+
+    /** Artist of the disc */
+    public final String artist;
+
+    /** Title of the disc */
+    public final String title;
+
+    /** Price of the disc */
+    public final int price;
+
+    /** Quantity of the disc in stock */
+    public final int quantity;
+
+    public Disc(long id, String image, String artist, String title, int price, int quantity) {
+        this.id = id;
+        this.image = image;
+        this.artist = artist;
+        this.title = title;
+        this.price = price;
+        this.quantity = quantity;
+    }
+
+    /**
+     * Read all the discs of the cursor and add them to the given list. The cursor has to
+     * contain all the columns of {@link #PROJECTION}.
+     */
+    public static void readAll(Cursor cursor, List<Disc> discs) {
+        // Find the columns of disc attributes once for the whole cursor
+        int idColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry._ID);
+        int imageColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_IMAGE);
+        int artistColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_ARTIST);
+        int titleColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_TITLE);
+        int priceColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_PRICE);
+        int quantityColumnIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_QUANTITY);
+
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            discs.add(new Disc(
+                    cursor.getLong(idColumnIndex),
+                    cursor.getString(imageColumnIndex),
+                    cursor.getString(artistColumnIndex),
+                    cursor.getString(titleColumnIndex),
+                    cursor.getInt(priceColumnIndex),
+                    cursor.getInt(quantityColumnIndex)));
+        }
+    }
+
+    /**
+     * Return the value of the sort key of the disc in the given order (one of the
+     * DiscEntry.SORT_* values), as passed to {@link DiscEntry#buildPageUri(String, long, String,
+     * int)}. Returns null for {@link DiscEntry#SORT_ADDED}, which is only sorted by ID.
+     */
+    public String sortKey(String sortOrder) {
+        switch (sortOrder) {
+            case DiscEntry.SORT_ARTIST:
+                return artist;
+            case DiscEntry.SORT_TITLE:
+                return title;
+            case DiscEntry.SORT_PRICE:
+            case DiscEntry.SORT_PRICE_DESC:
+                return String.valueOf(price);
+            case DiscEntry.SORT_LOW_STOCK:
+                return String.valueOf(quantity);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Return true if the disc is listed in the given order, which may filter the discs.
+     */
+    public boolean isListedIn(String sortOrder) {
+        return !DiscEntry.SORT_LOW_STOCK.equals(sortOrder)
+                || quantity <= DiscEntry.LOW_STOCK_QUANTITY;
+    }
+
+    /**
+     * Return true if the two discs only differ by their quantity.
+     */
+    public boolean sameExceptQuantity(Disc other) {
+        return id == other.id
+                && price == other.price
+                && TextUtils.equals(image, other.image)
+                && TextUtils.equals(artist, other.artist)
+                && TextUtils.equals(title, other.title);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Disc)) {
+            return false;
+        }
+        Disc other = (Disc) o;
+        return quantity == other.quantity && sameExceptQuantity(other);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + (image != null ? image.hashCode() : 0);
+        result = 31 * result + (artist != null ? artist.hashCode() : 0);
+        result = 31 * result + (title != null ? title.hashCode() : 0);
+        result = 31 * result + price;
+        result = 31 * result + quantity;
+        return result;
+    }
+}
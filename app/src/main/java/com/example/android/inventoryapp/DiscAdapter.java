@@ -0,0 +1,231 @@
+package com.example.android.inventoryapp;
+
+/**
+ * Created by HiirMii on 2017-07-10.
+ */
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import com.example.android.inventoryapp.data.DiscSellQueue;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link DiscAdapter} is an adapter for a {@link RecyclerView} that uses a {@link DiscList}
+ * as its data source. This adapter knows how to create list items for each disc, and applies
+ * the changes between two lists so only the rows which changed are bound again.
+ */
+public class DiscAdapter extends RecyclerView.Adapter<DiscAdapter.DiscViewHolder> {
+
+    /**
+     * Payload of a change where only the quantity of the disc changed
+     */
+    static final Object PAYLOAD_QUANTITY = new Object();
+
+    /**
+     * Listener notified when a disc of the list is clicked.
+     */
+    public interface OnDiscClickListener {
+        void onDiscClick(long id);
+    }
+
+    /** The context */
+    private final Context context;
+
+    /** Listener notified when a disc is clicked */
+    private final OnDiscClickListener clickListener;
+
+    /** Loader decoding the cover images in the background */
+    private final DiscImageLoader imageLoader;
+
+    /** Queue holding the sells back until they are written */
+    private final DiscSellQueue sellQueue;
+
+    /** Size of the cover image of a list item, in pixels */
+    private final int imageSize;
+
+    /** The displayed discs */
+    private List<Disc> discs = Collections.emptyList();
+
+    /**
+     * Constructs a new {@link DiscAdapter}.
+     *
+     * @param context       The context
+     * @param clickListener Listener notified when a disc is clicked
+     */
+    public DiscAdapter(Context context, OnDiscClickListener clickListener) {
+        this.context = context;
+        this.clickListener = clickListener;
+        imageLoader = DiscImageLoader.getInstance(context);
+        sellQueue = DiscSellQueue.getInstance(context);
+        imageSize = context.getResources().getDimensionPixelSize(R.dimen.list_item_image_size);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Display the given list of discs. If its changes were computed from the list displayed now,
+     * only those changes are applied, otherwise the whole list is bound again.
+     */
+    public void swapList(DiscList discList) {
+        if (discList == null) {
+            discList = DiscList.EMPTY;
+        }
+        List<Disc> displayed = discs;
+        discs = discList.discs;
+        if (discList.diff != null && discList.previous == displayed) {
+            discList.diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Bind the quantity of the disc with the given ID again, after its unsaved sells changed.
+     */
+    public void refreshQuantity(long id) {
+        for (int i = 0; i < discs.size(); i++) {
+            if (discs.get(i).id == id) {
+                notifyItemChanged(i, PAYLOAD_QUANTITY);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Bind the quantities of all the discs again.
+     */
+    public void refreshQuantities() {
+        notifyItemRangeChanged(0, discs.size(), PAYLOAD_QUANTITY);
+    }
+
+    @Override
+    public int getItemCount() {
+        return discs.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return discs.get(position).id;
+    }
+
+    /**
+     * Makes a new blank list item view, and the view holder caching its views.
+     */
+    @Override
+    public DiscViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate a list item view using the layout specified in list_item.xml
+        View view = LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+        return new DiscViewHolder(view);
+    }
+
+    /**
+     * This method binds the disc data at the given position to the views of the view holder.
+     * For example, the artist for the current disc can be set on the list_item_artist TextView
+     * in the list item layout.
+     */
+    @Override
+    public void onBindViewHolder(DiscViewHolder holder, int position) {
+        Disc disc = discs.get(position);
+
+        // Update the views with the attributes for the current disc. The cover image is
+        // decoded in the background, replacing the request of the disc this view showed before.
+        imageLoader.load(Uri.parse(disc.image), holder.discImageView, imageSize);
+        holder.artistTextView.setText(disc.artist);
+        holder.titleTextView.setText(disc.title);
+        holder.priceTextView.setText(Integer.toString(disc.price));
+        bindQuantity(holder, disc);
+    }
+
+    @Override
+    public void onBindViewHolder(DiscViewHolder holder, int position, List<Object> payloads) {
+        // If only the quantity changed, leave the other views alone
+        if (!payloads.isEmpty()
+                && Collections.frequency(payloads, PAYLOAD_QUANTITY) == payloads.size()) {
+            bindQuantity(holder, discs.get(position));
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    /**
+     * Return the quantity of the disc in stock, without the copies sold but not saved yet.
+     */
+    private int displayedQuantity(Disc disc) {
+        return Math.max(0, disc.quantity - sellQueue.getUnsavedCopies(disc.id));
+    }
+
+    /**
+     * Bind the quantity of the disc, and hide the sell button if it is out of stock.
+     */
+    private void bindQuantity(DiscViewHolder holder, Disc disc) {
+        int quantity = displayedQuantity(disc);
+        holder.quantityTextView.setText(Integer.toString(quantity));
+        if (quantity == 0) {
+            holder.sellButton.setVisibility(View.GONE);
+        } else {
+            holder.sellButton.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Sell one copy of the disc at the given position. The displayed quantity drops right away,
+     * and the sell is written in the background with the next ones, once the seller is idle.
+     */
+    private void sellDisc(int position) {
+        Disc disc = discs.get(position);
+        if (displayedQuantity(disc) > 0) {
+            sellQueue.sell(disc.id);
+            notifyItemChanged(position, PAYLOAD_QUANTITY);
+        }
+    }
+
+    /**
+     * Caches the views of a list item, so they are only looked up once.
+     */
+    class DiscViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final ImageView discImageView;
+        final TextView artistTextView;
+        final TextView titleTextView;
+        final TextView priceTextView;
+        final TextView quantityTextView;
+        final Button sellButton;
+
+        DiscViewHolder(View view) {
+            super(view);
+            // Find individual views that we want to modify in the list item layout
+            discImageView = (ImageView) view.findViewById(R.id.list_item_image);
+            artistTextView = (TextView) view.findViewById(R.id.list_item_artist);
+            titleTextView = (TextView) view.findViewById(R.id.list_item_title);
+            priceTextView = (TextView) view.findViewById(R.id.list_item_price_value);
+            quantityTextView = (TextView) view.findViewById(R.id.list_item_quantity_value);
+            sellButton = (Button) view.findViewById(R.id.list_item_sell_button);
+
+            view.setOnClickListener(this);
+            sellButton.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View v) {
+            int position = getAdapterPosition();
+            if (position == RecyclerView.NO_POSITION) {
+                return;
+            }
+            if (v == sellButton) {
+                // Decrease the quantity of the current disc when sell button is clicked
+                sellDisc(position);
+            } else {
+                clickListener.onDiscClick(discs.get(position).id);
+            }
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package com.example.android.inventoryapp;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads disc cover images into {@link ImageView}s off the main thread. Images are downsampled
+ * to the size they are displayed at, and kept in a memory cache and in a thumbnail cache on
+ * disk, so scrolling back to a disc doesn't decode its picture again.
+ */
+public class DiscImageLoader {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscImageLoader.class.getSimpleName();
+
+    /** Number of threads decoding images */
+    private static final int THREAD_COUNT = 2;
+
+    /** Maximum size of the thumbnails kept on disk */
+    private static final long DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Name of the directory, inside the cache directory of the app, holding the thumbnails */
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+
+    /** Quality of the JPEG thumbnails written to disk */
+    private static final int THUMBNAIL_QUALITY = 90;
+
+    /** The single instance of the loader, shared by all the screens */
+    private static DiscImageLoader instance;
+
+    /** Application context, used to open the images */
+    private final Context context;
+
+    /** Decoded thumbnails, bounded by their size in bytes */
+    private final LruCache<String, Bitmap> memoryCache;
+
+    /** Directory holding the thumbnails written to disk */
+    private final File diskCacheDirectory;
+
+    /** Executor decoding the images */
+    private final ExecutorService executor;
+
+    /** Handler used to display the decoded images on the main thread */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Pending request of every image view, only used on the main thread */
+    private final WeakHashMap<ImageView, Request> requests = new WeakHashMap<>();
+
+    /** Size of the thumbnails on disk, -1 until it has been computed */
+    private long diskCacheSize = -1;
+
+    private DiscImageLoader(Context context) {
+        this.context = context.getApplicationContext();
+
+        // Use an eighth of the memory available to the app for the memory cache
+        int memoryCacheBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+        memoryCache = new LruCache<String, Bitmap>(memoryCacheBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        diskCacheDirectory = new File(this.context.getCacheDir(), DISK_CACHE_DIRECTORY);
+        executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+
+    /**
+     * Return the image loader of the app.
+     */
+    public static synchronized DiscImageLoader getInstance(Context context) {
+        if (instance == null) {
+            instance = new DiscImageLoader(context);
+        }
+        return instance;
+    }
+
+    /**
+     * Display the image with the given URI in the image view, downsampled to fit the given size
+     * in pixels. A request made earlier for the same view is cancelled, so a recycled list row
+     * never shows the image of the disc it displayed before. Must be called on the main thread.
+     */
+    public void load(Uri uri, ImageView imageView, int size) {
+        cancel(imageView);
+
+        // Display the image right away if it has already been decoded
+        String key = uri + "@" + size;
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+
+        // Otherwise clear the view and decode the image in the background
+        imageView.setImageDrawable(null);
+        Request request = new Request(uri, key, size, imageView);
+        requests.put(imageView, request);
+        request.future = executor.submit(request);
+    }
+
+    /**
+     * Cancel the pending request of the given image view, if there is one.
+     * Must be called on the main thread.
+     */
+    public void cancel(ImageView imageView) {
+        Request request = requests.remove(imageView);
+        if (request != null) {
+            request.cancelled = true;
+            request.future.cancel(false);
+        }
+    }
+
+    /**
+     * Return the thumbnail of the given request, read from the disk cache or decoded from the
+     * original image. Called on a background thread.
+     */
+    private Bitmap loadBitmap(Request request) {
+        File thumbnail = new File(diskCacheDirectory, fileName(request.key));
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                // Mark the thumbnail as recently used
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodeSampledBitmap(request.uri, request.size);
+        if (bitmap != null && !request.cancelled) {
+            writeThumbnail(thumbnail, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the image with the given URI, skipping enough pixels for it to stay at least as
+     * large as the requested size. Return null if the image can't be read.
+     */
+    private Bitmap decodeSampledBitmap(Uri uri, int size) {
+        try {
+            // Read the dimensions of the image first, without decoding it
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            decodeStream(uri, options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+
+            // Decode the image, keeping every inSampleSize-th pixel of each row and column
+            options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, size);
+            options.inJustDecodeBounds = false;
+            return decodeStream(uri, options);
+        } catch (IOException | SecurityException e) {
+            Log.e(LOG_TAG, "Failed to decode image " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Decode the image with the given URI with the given options.
+     */
+    private Bitmap decodeStream(Uri uri, BitmapFactory.Options options) throws IOException {
+        InputStream input = context.getContentResolver().openInputStream(uri);
+        if (input == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Return the largest power of 2 which keeps both sides of the image at least as large
+     * as the requested size.
+     */
+    static int calculateInSampleSize(int width, int height, int size) {
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= size && height / (inSampleSize * 2) >= size) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Write the thumbnail to the disk cache, then remove the least recently used thumbnails
+     * if the cache is too big.
+     */
+    private synchronized void writeThumbnail(File thumbnail, Bitmap bitmap) {
+        if (!diskCacheDirectory.exists() && !diskCacheDirectory.mkdirs()) {
+            return;
+        }
+        if (diskCacheSize == -1) {
+            diskCacheSize = 0;
+            for (File file : listThumbnails()) {
+                diskCacheSize += file.length();
+            }
+        }
+
+        // Write to a temporary file first, so a half written thumbnail is never read
+        File temporary = new File(diskCacheDirectory, thumbnail.getName() + ".tmp");
+        try {
+            OutputStream output = new FileOutputStream(temporary);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+            } finally {
+                output.close();
+            }
+            if (!temporary.renameTo(thumbnail)) {
+                temporary.delete();
+                return;
+            }
+            diskCacheSize += thumbnail.length();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to write thumbnail " + thumbnail, e);
+            temporary.delete();
+            return;
+        }
+
+        if (diskCacheSize > DISK_CACHE_BYTES) {
+            trimDiskCache();
+        }
+    }
+
+    /**
+     * Delete the least recently used thumbnails until the disk cache is back to
+     * three quarters of its maximum size.
+     */
+    private void trimDiskCache() {
+        File[] files = listThumbnails();
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                long firstModified = first.lastModified();
+                long secondModified = second.lastModified();
+                return firstModified < secondModified ? -1 : (firstModified == secondModified ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (diskCacheSize <= DISK_CACHE_BYTES * 3 / 4) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                diskCacheSize -= length;
+            }
+        }
+    }
+
+    /**
+     * Return the files in the disk cache directory.
+     */
+    private File[] listThumbnails() {
+        File[] files = diskCacheDirectory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Return the file name of the thumbnail with the given key.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return String.valueOf(key.hashCode());
+        }
+    }
+
+    /**
+     * Request to load one image into one image view.
+     */
+    private class Request implements Runnable {
+
+        /** URI of the original image */
+        final Uri uri;
+
+        /** Key of the thumbnail in the caches */
+        final String key;
+
+        /** Size of the thumbnail, in pixels */
+        final int size;
+
+        /** Image view displaying the thumbnail, which may be collected before the image is ready */
+        final WeakReference<ImageView> imageViewReference;
+
+        /** Task decoding the image */
+        Future<?> future;
+
+        /** Set on the main thread when the image view doesn't need the image anymore */
+        volatile boolean cancelled;
+
+        Request(Uri uri, String key, int size, ImageView imageView) {
+            this.uri = uri;
+            this.key = key;
+            this.size = size;
+            this.imageViewReference = new WeakReference<>(imageView);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            final Bitmap bitmap = loadBitmap(this);
+            if (bitmap == null) {
+                return;
+            }
+            memoryCache.put(key, bitmap);
+
+            // Display the image, unless the view has been given another image meanwhile
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ImageView imageView = imageViewReference.get();
+                    if (cancelled || imageView == null || requests.get(imageView) != Request.this) {
+                        return;
+                    }
+                    requests.remove(imageView);
+                    imageView.setImageBitmap(bitmap);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.android.inventoryapp;
+
+import android.support.v7.util.DiffUtil;
+
+import com.example.android.inventoryapp.data.DiscSellQueue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * List of discs delivered by the {@link DiscPageLoader}. It carries the changes from the list
+ * delivered before it, computed on the loader thread, so the adapter only has to apply them.
+ * It also knows the write generation of the {@link DiscSellQueue} at which every disc was read,
+ * so the sales written after it are still counted by the queue.
+ */
+public final class DiscList implements DiscSellQueue.LoadedDiscs {
+
+    /** An empty list */
+    public static final DiscList EMPTY = new DiscList(Collections.<Disc>emptyList(), true, null,
+            null, 0, Collections.<Long, Long>emptyMap());
+
+    /** The discs, in the order they are displayed */
+    public final List<Disc> discs;
+
+    /** true if there are no more discs to load after these ones */
+    final boolean complete;
+
+    /** List the changes were computed from, or null if they weren't computed */
+    final List<Disc> previous;
+
+    /** Changes from the previous list to this one */
+    final DiffUtil.DiffResult diff;
+
+    /** Write generation at which all the discs were last read together */
+    final long writeGeneration;
+
+    /** Write generations at which discs were read again since then, by disc ID */
+    final Map<Long, Long> discWriteGenerations;
+
+    DiscList(List<Disc> discs, boolean complete, List<Disc> previous, DiffUtil.DiffResult diff,
+             long writeGeneration, Map<Long, Long> discWriteGenerations) {
+        this.discs = discs;
+        this.complete = complete;
+        this.previous = previous;
+        this.diff = diff;
+        this.writeGeneration = writeGeneration;
+        this.discWriteGenerations = discWriteGenerations;
+    }
+
+    /**
+     * Build a new list, computing the changes from the previous list.
+     */
+    static DiscList diff(List<Disc> previous, List<Disc> discs, boolean complete,
+                         long writeGeneration, Map<Long, Long> discWriteGenerations) {
+        return new DiscList(discs, complete, previous,
+                DiffUtil.calculateDiff(new DiffCallback(previous, discs), false),
+                writeGeneration, discWriteGenerations);
+    }
+
+    @Override
+    public long getWriteGeneration(long id) {
+        Long generation = discWriteGenerations.get(id);
+        return generation == null ? writeGeneration : generation;
+    }
+
+    /**
+     * Compares two lists of discs. Discs are identified by their ID, and a disc which only
+     * changed its quantity is reported with the {@link DiscAdapter#PAYLOAD_QUANTITY} payload,
+     * so only its quantity is bound again.
+     */
+    private static class DiffCallback extends DiffUtil.Callback {
+
+        private final List<Disc> oldDiscs;
+        private final List<Disc> newDiscs;
+
+        DiffCallback(List<Disc> oldDiscs, List<Disc> newDiscs) {
+            this.oldDiscs = oldDiscs;
+            this.newDiscs = newDiscs;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldDiscs.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newDiscs.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldDiscs.get(oldItemPosition).id == newDiscs.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldDiscs.get(oldItemPosition).equals(newDiscs.get(newItemPosition));
+        }
+
+        @Override
+        public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+            if (oldDiscs.get(oldItemPosition).sameExceptQuantity(newDiscs.get(newItemPosition))) {
+                return DiscAdapter.PAYLOAD_QUANTITY;
+            }
+            return null;
+        }
+    }
+}
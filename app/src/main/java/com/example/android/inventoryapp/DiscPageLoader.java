@@ -0,0 +1,507 @@
+package com.example.android.inventoryapp;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscSellQueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the list of discs one page at a time, in one of the named sort orders of
+ * {@link DiscEntry}. The first page is loaded when the loader starts, the next ones when
+ * {@link #loadNextPage()} is called (e.g. when the list is scrolled near its end). Every load
+ * delivers a {@link DiscList} of all the discs loaded so far, together with the changes from
+ * the list delivered before, computed in the background.
+ * <p>
+ * When a single disc changes, the provider notifies its own URI, and only that disc is queried
+ * again and patched into the loaded list. Changes which may affect any disc, or which move a
+ * disc to another place in the order, reload the list.
+ * <p>
+ * When the loader is created with a search query, it loads the best matches of that query
+ * instead, in a single page, and reloads them on every change since a change may move a disc
+ * in or out of the matches. A load which is no longer needed (e.g. because the loader was
+ * restarted with a newer query) is cancelled inside SQLite.
+ * <p>
+ * The write generation of the {@link DiscSellQueue} is read before every query, and kept with
+ * the discs it read, so the queue knows which written sales their quantities include.
+ */
+public class DiscPageLoader extends AsyncTaskLoader<DiscList> {
+
+    /** Number of discs loaded with each page */
+    public static final int PAGE_SIZE = 50;
+
+    /** Maximum number of discs loaded for a search query */
+    public static final int SEARCH_LIMIT = 200;
+
+    /** Number of changed discs above which the list is reloaded instead of patched */
+    private static final int MAX_PATCHED_DISCS = 100;
+
+    /** Result of {@link #patchDiscs} when the changes have been patched into the list */
+    private static final int PATCHED = 0;
+
+    /** Result of {@link #patchDiscs} when the list has to be reloaded to show the changes */
+    private static final int RELOAD_NEEDED = 1;
+
+    /** Result of {@link #patchDiscs} when the provider couldn't be queried */
+    private static final int PATCH_FAILED = 2;
+
+    /** Text searched in the artist and title of the discs, or null to load all the discs */
+    private final String query;
+
+    /** Order of the discs, one of the DiscEntry.SORT_* values (ignored by a search) */
+    private final String sortOrder;
+
+    /** Queue of the sells, giving the write generation of the discs read */
+    private final DiscSellQueue sellQueue;
+
+    /** Observer patching or reloading the discs when their data changes */
+    private final DiscObserver observer = new DiscObserver();
+
+    /** Discs changed since the last delivered list, guarded by itself */
+    private final Map<Long, RowChange> pendingChanges = new HashMap<>();
+
+    /** Last delivered list, read by the next load to build the following one */
+    private volatile DiscList discList;
+
+    /** Changes applied by the running load, forgotten once its list is delivered */
+    private volatile Map<Long, RowChange> appliedChanges;
+
+    /** Boolean flag that keeps track of whether everything loaded so far has to be loaded again */
+    private volatile boolean reloadRequested = true;
+
+    /** Boolean flag that keeps track of whether a next page is being loaded */
+    private volatile boolean nextPageRequested;
+
+    /** Boolean flag that keeps track of whether the observer is registered */
+    private boolean observerRegistered;
+
+    /** Signal used to cancel the query of the running load */
+    private CancellationSignal cancellationSignal;
+
+    /**
+     * Constructs a new {@link DiscPageLoader}.
+     *
+     * @param context   of the app
+     * @param query     text to search for, or null (or empty) to load all the discs
+     * @param sortOrder order of the discs, one of the DiscEntry.SORT_* values, or null for
+     *                  {@link DiscEntry#SORT_ADDED}. A search is ordered by relevance instead.
+     */
+    public DiscPageLoader(Context context, String query, String sortOrder) {
+        super(context);
+        this.query = TextUtils.isEmpty(query) ? null : query;
+        this.sortOrder = sortOrder == null ? DiscEntry.SORT_ADDED : sortOrder;
+        sellQueue = DiscSellQueue.getInstance(context);
+    }
+
+    /**
+     * Return the text searched by this loader, or null if it loads all the discs.
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Start loading the page following the loaded discs, unless the last disc has been
+     * loaded already or a page is being loaded. Must be called on the main thread.
+     */
+    public void loadNextPage() {
+        if (discList == null || discList.complete || discList.discs.isEmpty()
+                || nextPageRequested) {
+            return;
+        }
+        nextPageRequested = true;
+        forceLoad();
+    }
+
+    @Override
+    public DiscList loadInBackground() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            cancellationSignal = new CancellationSignal();
+        }
+        try {
+            // Take the changes known so far, they are only forgotten if this load is delivered
+            Map<Long, RowChange> changes;
+            synchronized (pendingChanges) {
+                changes = new HashMap<>(pendingChanges);
+            }
+            appliedChanges = changes;
+
+            DiscList previous = discList;
+            List<Disc> previousDiscs = previous == null
+                    ? Collections.<Disc>emptyList() : previous.discs;
+            List<Disc> discs = new ArrayList<>();
+            boolean complete = false;
+            long writeGeneration = 0;
+            Map<Long, Long> discWriteGenerations = new HashMap<>();
+            boolean reload = previous == null || reloadRequested || query != null
+                    || changes.size() > MAX_PATCHED_DISCS;
+            if (!reload) {
+                // Patch the changed discs into the loaded ones
+                discs.addAll(previousDiscs);
+                complete = previous.complete;
+                writeGeneration = previous.writeGeneration;
+                discWriteGenerations.putAll(previous.discWriteGenerations);
+                if (!changes.isEmpty()) {
+                    int result = patchDiscs(discs, changes, complete, discWriteGenerations);
+                    if (result == PATCH_FAILED) {
+                        return null;
+                    }
+                    reload = result == RELOAD_NEEDED;
+                }
+
+                // Add the next page after the last loaded disc
+                if (!reload && nextPageRequested && !complete) {
+                    Uri uri;
+                    if (discs.isEmpty()) {
+                        uri = DiscEntry.buildPageUri(sortOrder, DiscEntry.NO_ANCHOR, null, PAGE_SIZE);
+                    } else {
+                        Disc last = discs.get(discs.size() - 1);
+                        uri = DiscEntry.buildPageUri(sortOrder, last.id, last.sortKey(sortOrder),
+                                PAGE_SIZE);
+                    }
+                    long pageWriteGeneration = sellQueue.getWriteGeneration();
+                    int count = queryDiscs(uri, null, null, discs);
+                    if (count == -1) {
+                        return null;
+                    }
+                    complete = count < PAGE_SIZE;
+                    for (int i = discs.size() - count; i < discs.size(); i++) {
+                        discWriteGenerations.put(discs.get(i).id, pageWriteGeneration);
+                    }
+                }
+            }
+
+            if (reload) {
+                // Load again everything that has been loaded so far, starting with the first disc.
+                // A search is loaded in a single page of its best matches.
+                discs.clear();
+                Uri uri;
+                int limit;
+                if (query == null) {
+                    limit = Math.max(PAGE_SIZE, previousDiscs.size());
+                    uri = DiscEntry.buildPageUri(sortOrder, DiscEntry.NO_ANCHOR, null, limit);
+                } else {
+                    limit = SEARCH_LIMIT;
+                    uri = DiscEntry.buildSearchUri(query, limit);
+                }
+                writeGeneration = sellQueue.getWriteGeneration();
+                discWriteGenerations.clear();
+                int count = queryDiscs(uri, null, null, discs);
+                if (count == -1) {
+                    return null;
+                }
+                complete = query != null || count < limit;
+            }
+
+            // Compute the changes on this thread, so the adapter only has to apply them
+            return DiscList.diff(previousDiscs, Collections.unmodifiableList(discs), complete,
+                    writeGeneration, Collections.unmodifiableMap(discWriteGenerations));
+        } finally {
+            synchronized (this) {
+                cancellationSignal = null;
+            }
+        }
+    }
+
+    /**
+     * Query the changed discs again and replace them in the given list. Deleted discs are
+     * removed. In the {@link DiscEntry#SORT_ADDED} order, new discs are added if they belong
+     * among the loaded ones (the others come with a later page); in the other orders, a disc
+     * which is new or whose sort key changed can't be placed without the database, so the list
+     * has to be reloaded. The write generation of the discs queried again is put in the given
+     * map. Return {@link #PATCHED}, {@link #RELOAD_NEEDED} or {@link #PATCH_FAILED}.
+     */
+    private int patchDiscs(List<Disc> discs, Map<Long, RowChange> changes, boolean complete,
+                           Map<Long, Long> discWriteGenerations) {
+        // Deleted discs don't need to be queried
+        ArrayList<String> changedIds = new ArrayList<>();
+        for (Map.Entry<Long, RowChange> entry : changes.entrySet()) {
+            long id = entry.getKey();
+            if (entry.getValue().deleted) {
+                int index = indexOfDisc(discs, id);
+                if (index >= 0) {
+                    discs.remove(index);
+                }
+            } else {
+                changedIds.add(String.valueOf(id));
+            }
+        }
+        if (changedIds.isEmpty()) {
+            return PATCHED;
+        }
+
+        // Query all the other changed discs at once
+        StringBuilder selection = new StringBuilder(DiscEntry._ID).append(" IN (");
+        for (int i = 0; i < changedIds.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        selection.append(')');
+        List<Disc> changedDiscs = new ArrayList<>();
+        long patchWriteGeneration = sellQueue.getWriteGeneration();
+        if (queryDiscs(DiscEntry.CONTENT_URI, selection.toString(),
+                changedIds.toArray(new String[changedIds.size()]), changedDiscs) == -1) {
+            return PATCH_FAILED;
+        }
+        Map<Long, Disc> changedById = new HashMap<>();
+        for (Disc disc : changedDiscs) {
+            changedById.put(disc.id, disc);
+            discWriteGenerations.put(disc.id, patchWriteGeneration);
+        }
+
+        boolean orderedById = sortOrder.equals(DiscEntry.SORT_ADDED);
+        for (String changedId : changedIds) {
+            long id = Long.parseLong(changedId);
+            Disc disc = changedById.get(id);
+            int index = indexOfDisc(discs, id);
+            if (disc == null || !disc.isListedIn(sortOrder)) {
+                // The disc has been deleted since it was notified, or is no longer listed
+                if (index >= 0) {
+                    discs.remove(index);
+                }
+            } else if (index >= 0 && (orderedById || TextUtils.equals(
+                    disc.sortKey(sortOrder), discs.get(index).sortKey(sortOrder)))) {
+                discs.set(index, disc);
+            } else if (!orderedById) {
+                return RELOAD_NEEDED;
+            } else if (complete || -index - 1 < discs.size()) {
+                discs.add(-index - 1, disc);
+            }
+        }
+        return PATCHED;
+    }
+
+    /**
+     * Query the discs of the given URI and add them to the given list. Return the number of
+     * discs added, or -1 if the provider couldn't be queried.
+     */
+    private int queryDiscs(Uri uri, String selection, String[] selectionArgs, List<Disc> discs) {
+        Cursor cursor = getContext().getContentResolver().query(uri, Disc.PROJECTION, selection,
+                selectionArgs, null, cancellationSignal);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            int count = cursor.getCount();
+            Disc.readAll(cursor, discs);
+            return count;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the index of the disc with the given ID in the list. In the
+     * {@link DiscEntry#SORT_ADDED} order, the list is ordered by ID and (-(insertion point) - 1)
+     * is returned if the disc isn't in it; in the other orders -1 is returned.
+     */
+    private int indexOfDisc(List<Disc> discs, long id) {
+        if (!sortOrder.equals(DiscEntry.SORT_ADDED)) {
+            for (int i = 0; i < discs.size(); i++) {
+                if (discs.get(i).id == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int low = 0;
+        int high = discs.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = discs.get(middle).id;
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+
+        // Stop the query in SQLite, its result isn't needed anymore
+        synchronized (this) {
+            if (cancellationSignal != null) {
+                cancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void deliverResult(DiscList data) {
+        if (isReset()) {
+            // The loader was reset while loading, so the list isn't needed anymore
+            return;
+        }
+        if (data == null) {
+            nextPageRequested = false;
+            return;
+        }
+
+        // Every newer request would have cancelled this load, so they are all fulfilled
+        reloadRequested = false;
+        nextPageRequested = false;
+        Map<Long, RowChange> applied = appliedChanges;
+        if (applied != null) {
+            synchronized (pendingChanges) {
+                for (Map.Entry<Long, RowChange> entry : applied.entrySet()) {
+                    if (pendingChanges.get(entry.getKey()) == entry.getValue()) {
+                        pendingChanges.remove(entry.getKey());
+                    }
+                }
+            }
+        }
+
+        // The next page starts after the last disc of this list
+        discList = data;
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!observerRegistered) {
+            getContext().getContentResolver().registerContentObserver(DiscEntry.CONTENT_URI,
+                    true, observer);
+            observerRegistered = true;
+        }
+        if (discList != null) {
+            super.deliverResult(discList);
+        }
+        if (takeContentChanged() || discList == null || nextPageRequested) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        reloadRequested = true;
+        super.onContentChanged();
+    }
+
+    /**
+     * Called on the main thread when the discs at the given URI changed. A change of a single
+     * disc is patched into the loaded list, any other change reloads it.
+     */
+    private void onDiscsChanged(Uri uri) {
+        String op = uri == null ? null : uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_OP);
+        if (op == null || query != null) {
+            onContentChanged();
+            return;
+        }
+
+        // Updates of columns which aren't displayed don't change the list
+        if (op.equals(DiscEntry.OP_UPDATE) && !displaysAnyColumn(
+                uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_COLUMNS))) {
+            return;
+        }
+
+        synchronized (pendingChanges) {
+            pendingChanges.put(ContentUris.parseId(uri),
+                    new RowChange(op.equals(DiscEntry.OP_DELETE)));
+        }
+        // Load right away if started, otherwise when the loader starts again
+        super.onContentChanged();
+    }
+
+    /**
+     * Return true if one of the given comma separated columns (or null for all of them) is
+     * displayed in the list.
+     */
+    private static boolean displaysAnyColumn(String columns) {
+        if (columns == null) {
+            return true;
+        }
+        List<String> displayedColumns = Arrays.asList(Disc.PROJECTION);
+        for (String column : TextUtils.split(columns, ",")) {
+            if (displayedColumns.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected void onStopLoading() {
+        // Attempt to cancel the current load task if possible
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+
+        // Ensure the loader is stopped
+        onStopLoading();
+
+        if (observerRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            observerRegistered = false;
+        }
+        discList = null;
+        appliedChanges = null;
+        reloadRequested = true;
+        nextPageRequested = false;
+        synchronized (pendingChanges) {
+            pendingChanges.clear();
+        }
+    }
+
+    /**
+     * Change of one disc waiting to be patched into the list. A new instance is made for every
+     * notification, so a load only forgets the changes it has seen.
+     */
+    private static class RowChange {
+
+        /** Boolean flag that keeps track of whether the disc was deleted */
+        final boolean deleted;
+
+        RowChange(boolean deleted) {
+            this.deleted = deleted;
+        }
+    }
+
+    /**
+     * Observer receiving the change notifications of the discs on the main thread.
+     */
+    private class DiscObserver extends ContentObserver {
+
+        DiscObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onDiscsChanged(uri);
+        }
+    }
+}
@@ -9,24 +9,35 @@ import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
-import android.util.Log;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.widget.TextView;
+import android.widget.Toast;
 
 import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+import com.example.android.inventoryapp.data.DiscDeleter;
+import com.example.android.inventoryapp.data.DiscImporter;
+import com.example.android.inventoryapp.data.DiscSellQueue;
+import com.example.android.inventoryapp.data.DiscWriter;
 
 /**
  * Displays list of CDs in stock that were entered and stored in the app.
  */
 public class StockActivity extends AppCompatActivity implements
-        LoaderManager.LoaderCallbacks<Cursor>{
+        LoaderManager.LoaderCallbacks<DiscList>{
 
     /** Tag for the log messages */
     public static final String LOG_TAG = StockActivity.class.getSimpleName();
@@ -34,8 +45,161 @@ public class StockActivity extends AppCompatActivity implements
     /** Identifier for the disc data loader */
     private static final int DISC_LOADER = 0;
 
-    /** Adapter for the ListView */
-    private DiscCursorAdapter discCursorAdapter;
+    /** Identifier for the inventory totals loader */
+    private static final int STATS_LOADER = 1;
+
+    /** Request code of the file picked for an import */
+    private static final int REQUEST_IMPORT = 1;
+
+    /** Sort order menu items, in the same order as {@link #SORT_ORDERS} */
+    private static final int[] SORT_ITEM_IDS = {R.id.action_sort_added, R.id.action_sort_artist,
+            R.id.action_sort_title, R.id.action_sort_price, R.id.action_sort_price_desc,
+            R.id.action_sort_low_stock};
+
+    /** Sort orders picked by the items of {@link #SORT_ITEM_IDS} */
+    private static final String[] SORT_ORDERS = {DiscEntry.SORT_ADDED, DiscEntry.SORT_ARTIST,
+            DiscEntry.SORT_TITLE, DiscEntry.SORT_PRICE, DiscEntry.SORT_PRICE_DESC,
+            DiscEntry.SORT_LOW_STOCK};
+
+    /** Number of discs left below the visible ones when the next page starts loading */
+    private static final int PREFETCH_DISTANCE = DiscPageLoader.PAGE_SIZE / 2;
+
+    /** Time to wait after the last keystroke before the search runs */
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
+    /** Key of the loader argument and saved state holding the searched text */
+    private static final String KEY_QUERY = "query";
+
+    /** Key of the loader argument and preference holding the sort order of the list */
+    private static final String KEY_SORT_ORDER = "sort_order";
+
+    /** Adapter for the RecyclerView */
+    private DiscAdapter discAdapter;
+
+    /** View shown instead of the list when there are no discs */
+    private View emptyView;
+
+    /** View showing the inventory totals */
+    private TextView statsView;
+
+    /** Importer of the catalog files, which keeps running across configuration changes */
+    private DiscImporter importer;
+
+    /** Deleter of the discs, which keeps running across configuration changes */
+    private DiscDeleter deleter;
+
+    /** Queue holding the sells of the list back until they are written */
+    private DiscSellQueue sellQueue;
+
+    /** Handler used to delay the search until the user stops typing */
+    private final Handler searchHandler = new Handler();
+
+    /** Text typed in the search field which hasn't been searched yet */
+    private String pendingQuery;
+
+    /** Text the list is currently filtered with, or null if all the discs are listed */
+    private String currentQuery;
+
+    /** Order of the list, one of the DiscEntry.SORT_* values */
+    private String sortOrder;
+
+    /** Runnable restarting the disc loader with the pending query */
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            search(pendingQuery);
+        }
+    };
+
+    /** Callbacks of the loader reading the inventory totals */
+    private final LoaderManager.LoaderCallbacks<Cursor> statsLoaderCallbacks =
+            new LoaderManager.LoaderCallbacks<Cursor>() {
+                @Override
+                public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+                    // The totals are a single row kept up to date by the database, reloaded
+                    // whenever any disc changes
+                    String[] projection = {StatsEntry.COLUMN_UNIT_COUNT,
+                            StatsEntry.COLUMN_STOCK_VALUE, StatsEntry.COLUMN_LOW_STOCK_COUNT};
+                    return new CursorLoader(StockActivity.this, StatsEntry.CONTENT_URI,
+                            projection, null, null, null);
+                }
+
+                @Override
+                public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+                    if (cursor == null || !cursor.moveToFirst()) {
+                        statsView.setText(null);
+                        return;
+                    }
+                    statsView.setText(getString(R.string.stats_summary,
+                            cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_STOCK_VALUE)),
+                            cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_UNIT_COUNT)),
+                            cursor.getLong(cursor.getColumnIndexOrThrow(StatsEntry.COLUMN_LOW_STOCK_COUNT))));
+                }
+
+                @Override
+                public void onLoaderReset(Loader<Cursor> loader) {
+                    statsView.setText(null);
+                }
+            };
+
+    /** Listener showing the progress of the import in the app bar */
+    private final DiscImporter.Listener importListener = new DiscImporter.Listener() {
+        @Override
+        public void onImportProgress(DiscImporter.Progress progress) {
+            setImportSubtitle(progress.imported);
+        }
+
+        @Override
+        public void onImportFinished(DiscImporter.Progress progress) {
+            getSupportActionBar().setSubtitle(null);
+            invalidateOptionsMenu();
+            if (progress.error != null) {
+                Toast.makeText(StockActivity.this, getString(R.string.import_failed,
+                        progress.imported, progress.error), Toast.LENGTH_LONG).show();
+            } else if (progress.cancelled) {
+                Toast.makeText(StockActivity.this, getString(R.string.import_cancelled,
+                        progress.imported), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(StockActivity.this, getString(R.string.import_finished,
+                        progress.imported, progress.rejected), Toast.LENGTH_LONG).show();
+            }
+
+            // List the reasons of the first rejected rows, so the file can be fixed
+            if (!progress.rejects.isEmpty()) {
+                new AlertDialog.Builder(StockActivity.this)
+                        .setTitle(getString(R.string.import_rejects_title, progress.rejected))
+                        .setMessage(TextUtils.join("\n", progress.rejects))
+                        .setPositiveButton(android.R.string.ok, null)
+                        .show();
+            }
+        }
+    };
+
+    /** Listener showing the progress of the deletion in the app bar */
+    private final DiscDeleter.Listener deleteListener = new DiscDeleter.Listener() {
+        @Override
+        public void onDeleteProgress(int deleted, int total) {
+            getSupportActionBar().setSubtitle(getString(R.string.delete_progress, deleted, total));
+        }
+
+        @Override
+        public void onDeleteFinished(int deleted, boolean cancelled) {
+            getSupportActionBar().setSubtitle(null);
+            invalidateOptionsMenu();
+            Toast.makeText(StockActivity.this, getString(cancelled ? R.string.delete_cancelled
+                    : R.string.delete_finished, deleted), Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    /** Listener showing the real quantity of a disc again when its sells couldn't be saved */
+    private final DiscSellQueue.Listener sellListener = new DiscSellQueue.Listener() {
+        @Override
+        public void onSellFailed(long id, int copies) {
+            discAdapter.refreshQuantity(id);
+            Toast.makeText(StockActivity.this, getString(R.string.sell_failed, copies),
+                    Toast.LENGTH_SHORT).show();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -52,22 +216,23 @@ public class StockActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the disc data
-        ListView discListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView which will be populated with the disc data
+        RecyclerView discRecyclerView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        discRecyclerView.setLayoutManager(layoutManager);
 
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        discListView.setEmptyView(emptyView);
+        // Find the empty view, which is shown by {@link #onLoadFinished} when the list has 0 items
+        emptyView = findViewById(R.id.empty_view);
 
-        // Setup an Adapter to create a list item for each row of disc data in the Cursor.
-        // There is no disc data yet (until the loader finishes) so pass in null for the Cursor.
-        discCursorAdapter = new DiscCursorAdapter(this, null);
-        discListView.setAdapter(discCursorAdapter);
+        // Find the view showing the inventory totals, which are loaded next to the list
+        statsView = (TextView) findViewById(R.id.stats_text);
+        getLoaderManager().initLoader(STATS_LOADER, null, statsLoaderCallbacks);
 
-        // Setup the item click listener
-        discListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an Adapter to create a list item for each disc of the loaded list.
+        // There is no disc data yet (until the loader finishes), so the list starts empty.
+        discAdapter = new DiscAdapter(this, new DiscAdapter.OnDiscClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onDiscClick(long id) {
                 // Create new intent to go to {@link DetailsActivity}
                 Intent intent = new Intent(StockActivity.this, DetailsActivity.class);
 
@@ -85,9 +250,117 @@ public class StockActivity extends AppCompatActivity implements
                 startActivity(intent);
             }
         });
+        discRecyclerView.setAdapter(discAdapter);
+
+        // Load the next page of discs when the end of the loaded ones comes into view
+        discRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int itemCount = discAdapter.getItemCount();
+                if (itemCount > 0
+                        && layoutManager.findLastVisibleItemPosition() >= itemCount - PREFETCH_DISTANCE) {
+                    Loader<DiscList> loader = getLoaderManager().getLoader(DISC_LOADER);
+                    if (loader != null) {
+                        ((DiscPageLoader) loader).loadNextPage();
+                    }
+                }
+            }
+        });
+
+        // Kick off the loader, in the order picked last time and with the search which was
+        // active before a configuration change
+        sortOrder = getPreferences(MODE_PRIVATE).getString(KEY_SORT_ORDER, DiscEntry.SORT_ADDED);
+        if (savedInstanceState != null) {
+            currentQuery = savedInstanceState.getString(KEY_QUERY);
+        }
+        getLoaderManager().initLoader(DISC_LOADER, loaderArgs(), this);
+
+        importer = DiscImporter.getInstance(this);
+        deleter = DiscDeleter.getInstance(this);
+        sellQueue = DiscSellQueue.getInstance(this);
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Follow the import which may have been started before a configuration change
+        importer.setListener(importListener);
+        deleter.setListener(deleteListener);
+        if (importer.isRunning()) {
+            setImportSubtitle(0);
+        }
+        // Sells may have failed while this screen was hidden
+        sellQueue.setListener(sellListener);
+        discAdapter.refreshQuantities();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // Write the sells held back now, the app may not come back to the foreground
+        sellQueue.flush();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        // The import goes on in the background, without updating this screen
+        importer.setListener(null);
+        deleter.setListener(null);
+        sellQueue.setListener(null);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(KEY_QUERY, currentQuery);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Drop a search which hasn't run yet
+        searchHandler.removeCallbacks(searchRunnable);
+    }
+
+    /**
+     * Filter the list with the given text, or list all the discs if it is empty. The disc loader
+     * is restarted, which cancels a search that is still running, so only the result of the
+     * latest query is ever displayed.
+     */
+    private void search(String query) {
+        if (TextUtils.isEmpty(query)) {
+            query = null;
+        }
+        if (TextUtils.equals(query, currentQuery)) {
+            return;
+        }
+        currentQuery = query;
+        getLoaderManager().restartLoader(DISC_LOADER, loaderArgs(), this);
+    }
+
+    /**
+     * List the discs in the given order, one of the DiscEntry.SORT_* values, and remember it
+     * for the next time the app is started.
+     */
+    private void sort(String order) {
+        if (order.equals(sortOrder)) {
+            return;
+        }
+        sortOrder = order;
+        getPreferences(MODE_PRIVATE).edit().putString(KEY_SORT_ORDER, order).apply();
+        getLoaderManager().restartLoader(DISC_LOADER, loaderArgs(), this);
+        invalidateOptionsMenu();
+    }
 
-        // Kick off the loader
-        getLoaderManager().initLoader(DISC_LOADER, null, this);
+    /**
+     * Return the arguments of the disc loader for the current search and sort order.
+     */
+    private Bundle loaderArgs() {
+        Bundle args = new Bundle();
+        args.putString(KEY_QUERY, currentQuery);
+        args.putString(KEY_SORT_ORDER, sortOrder);
+        return args;
     }
 
     /**
@@ -107,19 +380,66 @@ public class StockActivity extends AppCompatActivity implements
                 = Uri.parse("android.resource://com.example.android.inventoryapp/drawable/dummy_image");
         values.put(DiscEntry.COLUMN_DISC_IMAGE, String.valueOf(imageUri));
 
-        // Insert a new row for dummy_data into the provider using the ContentResolver.
-        // Use the {@link DiscEntry#CONTENT_URI} to indicate that we want to insert
-        // into the discs database table.
-        // Receive the new content URI that will allow us to access dummy data in the future.
-        Uri newUri = getContentResolver().insert(DiscEntry.CONTENT_URI, values);
+        // Insert a new row for dummy_data into the discs database table in the background.
+        // The list is refreshed by the provider once it has been inserted.
+        DiscWriter.getInstance(this).insert(values, null);
     }
 
     /**
-     * Helper method to delete all discs in the database.
+     * Helper method to delete all discs in the database. The discs are deleted in the
+     * background, a chunk at a time, so the list stays responsive however many there are.
      */
     private void deleteAllDiscs() {
-        int rowsDeleted = getContentResolver().delete(DiscEntry.CONTENT_URI, null, null);
-        Log.v("StockActivity", rowsDeleted + " rows deleted from discs database");
+        if (!deleter.isRunning()) {
+            deleter.start(null, null);
+            invalidateOptionsMenu();
+        }
+    }
+
+    /**
+     * Let the user pick the CSV or JSON catalog file to import.
+     */
+    private void pickImportFile() {
+        Intent intent;
+        if (Build.VERSION.SDK_INT < 19) {
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+        } else {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        }
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.action_import)),
+                REQUEST_IMPORT);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode == REQUEST_IMPORT && resultCode == RESULT_OK && data != null
+                && data.getData() != null && !importer.isRunning()) {
+            importer.start(data.getData(), DiscImporter.DEFAULT_BATCH_SIZE);
+            setImportSubtitle(0);
+            invalidateOptionsMenu();
+        }
+    }
+
+    /**
+     * Show in the app bar that an import is running, with the number of discs imported so far.
+     */
+    private void setImportSubtitle(int imported) {
+        getSupportActionBar().setSubtitle(getString(R.string.import_progress, imported));
+    }
+
+    /**
+     * Let the user pick an app to send the CSV file of all the discs to. The app is granted
+     * read access to the export URI, and streams the file from the provider.
+     */
+    private void shareExport() {
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(DiscEntry.EXPORT_TYPE);
+        intent.putExtra(Intent.EXTRA_STREAM, DiscEntry.EXPORT_URI);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.action_export)));
     }
 
     private void deleteConfirmationDialog() {
@@ -152,6 +472,36 @@ public class StockActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_stock.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_stock, menu);
+
+        // Setup the search field to filter the list as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(searchItem);
+        searchView.setQueryHint(getString(R.string.search_hint));
+
+        // Restore the search which was active before a configuration change
+        if (currentQuery != null) {
+            searchItem.expandActionView();
+            searchView.setQuery(currentQuery, false);
+        }
+
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                // Search right away, without waiting for the delay
+                searchHandler.removeCallbacks(searchRunnable);
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                // Wait for the user to stop typing before searching
+                pendingQuery = newText;
+                searchHandler.removeCallbacks(searchRunnable);
+                searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
+                return true;
+            }
+        });
         return true;
     }
 
@@ -159,10 +509,29 @@ public class StockActivity extends AppCompatActivity implements
     public boolean onPrepareOptionsMenu(Menu menu) {
         super.onPrepareOptionsMenu(menu);
         // If the list is empty, hide the "Delete All Data" menu item.
-        if (discCursorAdapter.getCount() == 0) {
+        if (discAdapter.getItemCount() == 0) {
             MenuItem menuItem = menu.findItem(R.id.action_delete_all_entries);
             menuItem.setVisible(false);
         }
+
+        // Offer to cancel the import while it runs, and to start one otherwise
+        boolean importing = importer.isRunning();
+        menu.findItem(R.id.action_import).setVisible(!importing);
+        menu.findItem(R.id.action_cancel_import).setVisible(importing);
+
+        // Offer to cancel the deletion of all the discs while it runs
+        boolean deleting = deleter.isRunning();
+        menu.findItem(R.id.action_cancel_delete).setVisible(deleting);
+        if (deleting) {
+            menu.findItem(R.id.action_delete_all_entries).setVisible(false);
+        }
+
+        // Check the current sort order
+        for (int i = 0; i < SORT_ITEM_IDS.length; i++) {
+            if (SORT_ORDERS[i].equals(sortOrder)) {
+                menu.findItem(SORT_ITEM_IDS[i]).setChecked(true);
+            }
+        }
         return true;
     }
 
@@ -174,43 +543,68 @@ public class StockActivity extends AppCompatActivity implements
             case R.id.action_insert_dummy_data:
                 insertDisc();
                 return true;
+            // Respond to a click on the "Import catalog" menu option
+            case R.id.action_import:
+                pickImportFile();
+                return true;
+            // Respond to a click on the "Cancel import" menu option
+            case R.id.action_cancel_import:
+                importer.cancel();
+                return true;
+            // Respond to a click on the "Export catalog" menu option
+            case R.id.action_export:
+                shareExport();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Cancel delete" menu option
+            case R.id.action_cancel_delete:
+                deleter.cancel();
+                return true;
+        }
+
+        // Respond to a click on one of the sort orders
+        for (int i = 0; i < SORT_ITEM_IDS.length; i++) {
+            if (SORT_ITEM_IDS[i] == item.getItemId()) {
+                sort(SORT_ORDERS[i]);
+                return true;
+            }
         }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies the columns from the table we care about.
-        String[] projection = {
-                DiscEntry._ID,
-                DiscEntry.COLUMN_DISC_IMAGE,
-                DiscEntry.COLUMN_DISC_ARTIST,
-                DiscEntry.COLUMN_DISC_TITLE,
-                DiscEntry.COLUMN_DISC_PRICE,
-                DiscEntry.COLUMN_DISC_QUANTITY};
-
-        // This loader will execute the ContentProvider's query method on a background thread
-        return new CursorLoader(this,   // Parent activity context
-                DiscEntry.CONTENT_URI,  // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null);                  // Default sort order
+    public Loader<DiscList> onCreateLoader(int id, Bundle args) {
+        // This loader will execute the ContentProvider's query method on a background thread,
+        // one page at a time, so the first discs show up quickly however big the table is
+        // When a search is active, only its best matches are loaded
+        String query = args == null ? null : args.getString(KEY_QUERY);
+        String order = args == null ? null : args.getString(KEY_SORT_ORDER);
+        return new DiscPageLoader(this, query, order);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link DiscCursorAdapter} with this new cursor containing updated discs data
-        discCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<DiscList> loader, DiscList data) {
+        // Update {@link DiscAdapter} with the new list, only rebinding the discs that changed.
+        // Its quantities include the sells written before its discs were read.
+        sellQueue.onDiscsReloaded(data);
+        discAdapter.swapList(data);
+        updateEmptyView();
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
+    public void onLoaderReset(Loader<DiscList> loader) {
         // Callback called when the data needs to be deleted
-        discCursorAdapter.swapCursor(null);
+        discAdapter.swapList(null);
+        updateEmptyView();
+    }
+
+    /**
+     * Show the empty view only when the list has 0 items.
+     */
+    private void updateEmptyView() {
+        emptyView.setVisibility(discAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
     }
 }
@@ -0,0 +1,224 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the changes made to the discs table and notifies them once per row, a short moment
+ * after the first of them. Each disc changed in the meantime gets a single notification URI of
+ * the form "discs/#?op=update&columns=quantity", so observers can update that one disc instead
+ * of querying the whole table again. When too many discs changed, or when a change can't be
+ * tied to single rows, the whole table is notified instead.
+ * <p>
+ * While a batch is open (see {@link #beginBatch()}), changes are only collected, and they are
+ * notified once the last batch has ended.
+ */
+class DiscChangeNotifier {
+
+    /** Time during which changes are collected before they are notified */
+    static final long COALESCE_WINDOW_MILLIS = 50;
+
+    /** Number of changed discs above which the whole table is notified instead */
+    static final int MAX_ROW_CHANGES = 100;
+
+    /** Resolver used to send the notifications */
+    private final ContentResolver contentResolver;
+
+    /** Handler running the delayed notifications */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Pending change of every changed disc, in the order they first changed */
+    private final Map<Long, RowChange> pendingChanges = new LinkedHashMap<>();
+
+    /** Boolean flag that keeps track of whether the whole table has to be notified */
+    private boolean tableChanged;
+
+    /** Boolean flag that keeps track of whether a notification has been scheduled */
+    private boolean scheduled;
+
+    /** Number of batches which are currently open */
+    private int openBatches;
+
+    /** Runnable sending the pending notifications */
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DiscChangeNotifier(ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Record that the disc with the given ID was inserted.
+     */
+    synchronized void rowInserted(long id) {
+        RowChange pending = pendingChanges.get(id);
+        if (pending != null && pending.op.equals(DiscEntry.OP_DELETE)) {
+            // A row replacing a deleted one is seen by the observers as an update of all columns
+            putRowChange(id, new RowChange(DiscEntry.OP_UPDATE, null));
+        } else {
+            putRowChange(id, new RowChange(DiscEntry.OP_INSERT, null));
+        }
+    }
+
+    /**
+     * Record that the given columns of the disc with the given ID were updated. The columns may
+     * be null if any of them may have changed.
+     */
+    synchronized void rowUpdated(long id, Collection<String> columns) {
+        RowChange pending = pendingChanges.get(id);
+        if (pending == null) {
+            putRowChange(id, new RowChange(DiscEntry.OP_UPDATE,
+                    columns == null ? null : new HashSet<>(columns)));
+        } else if (pending.op.equals(DiscEntry.OP_UPDATE) && pending.columns != null) {
+            // Two updates of the same disc are notified as one update of all their columns
+            if (columns == null) {
+                putRowChange(id, new RowChange(DiscEntry.OP_UPDATE, null));
+            } else {
+                pending.columns.addAll(columns);
+            }
+        }
+        // An update following an insert is part of the inserted row, and a deleted row can't
+        // be updated, so the pending change stays as it is
+    }
+
+    /**
+     * Record that the disc with the given ID was deleted.
+     */
+    synchronized void rowDeleted(long id) {
+        RowChange pending = pendingChanges.get(id);
+        if (pending != null && pending.op.equals(DiscEntry.OP_INSERT)) {
+            // The observers never heard of this disc, so there is nothing to tell them
+            pendingChanges.remove(id);
+        } else {
+            putRowChange(id, new RowChange(DiscEntry.OP_DELETE, null));
+        }
+    }
+
+    /**
+     * Record a change which may have affected any disc, e.g. a delete with a selection.
+     */
+    synchronized void tableChanged() {
+        tableChanged = true;
+        pendingChanges.clear();
+        schedule();
+    }
+
+    /**
+     * Hold the notifications back until {@link #endBatch()} is called, e.g. while changes
+     * are made inside a transaction which hasn't been committed yet.
+     */
+    synchronized void beginBatch() {
+        openBatches++;
+    }
+
+    /**
+     * Release the notifications held back by {@link #beginBatch()}. Once the last batch has
+     * ended, the changes it made are notified right away.
+     */
+    void endBatch() {
+        synchronized (this) {
+            openBatches--;
+            if (openBatches > 0) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Send the pending notifications now, unless a batch is open.
+     */
+    void flush() {
+        List<Uri> uris = new ArrayList<>();
+        synchronized (this) {
+            handler.removeCallbacks(flushRunnable);
+            scheduled = false;
+            if (openBatches > 0) {
+                return;
+            }
+            if (tableChanged) {
+                uris.add(DiscEntry.CONTENT_URI);
+            } else {
+                for (Map.Entry<Long, RowChange> entry : pendingChanges.entrySet()) {
+                    RowChange change = entry.getValue();
+                    uris.add(DiscEntry.buildChangeUri(entry.getKey(), change.op, change.columns));
+                }
+            }
+            tableChanged = false;
+            pendingChanges.clear();
+        }
+
+        // Notify outside of the lock, observers may call the provider back
+        for (Uri uri : uris) {
+            contentResolver.notifyChange(uri, null, false);
+        }
+    }
+
+    /**
+     * Forget the pending changes and stop the scheduled notification.
+     */
+    synchronized void cancel() {
+        handler.removeCallbacks(flushRunnable);
+        scheduled = false;
+        tableChanged = false;
+        pendingChanges.clear();
+    }
+
+    /**
+     * Store the pending change of one disc, and fall back to notifying the whole table when
+     * too many discs changed.
+     */
+    private void putRowChange(long id, RowChange change) {
+        if (!tableChanged) {
+            pendingChanges.put(id, change);
+            if (pendingChanges.size() > MAX_ROW_CHANGES) {
+                tableChanged = true;
+                pendingChanges.clear();
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Schedule the notification of the pending changes, unless it already is.
+     */
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(flushRunnable, COALESCE_WINDOW_MILLIS);
+        }
+    }
+
+    /**
+     * Pending change of one disc.
+     */
+    private static class RowChange {
+
+        /** Kind of change, one of the DiscEntry.OP_* values */
+        final String op;
+
+        /** Names of the updated columns, or null if any column may have changed */
+        final Set<String> columns;
+
+        RowChange(String op, Set<String> columns) {
+            this.op = op;
+            this.columns = columns;
+        }
+    }
+}
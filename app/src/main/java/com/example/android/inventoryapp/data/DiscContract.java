@@ -6,8 +6,12 @@ package com.example.android.inventoryapp.data;
 
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
+import android.text.TextUtils;
+
+import java.util.Collection;
 
 /**
  * API Contract for the Inventory app.
@@ -33,6 +37,57 @@ public class DiscContract {
      * as the ContentProvider hasn't been given any information on what to do with "vinyl".
      */
     public static final String PATH_DISCS = "discs";
+    /**
+     * Path appended to a single disc URI to sell one copy of that disc,
+     * e.g. content://com.example.android.inventoryapp/discs/3/sell
+     */
+    public static final String PATH_SELL = "sell";
+    /**
+     * Path appended to a single disc URI to change the quantity of that disc by a given amount,
+     * e.g. content://com.example.android.inventoryapp/discs/3/adjust?delta=-2
+     */
+    public static final String PATH_ADJUST = "adjust";
+    /**
+     * Path appended to the discs URI to search discs by artist and title,
+     * e.g. content://com.example.android.inventoryapp/discs/search?q=dream
+     */
+    public static final String PATH_SEARCH = "search";
+    /**
+     * Path appended to the discs URI to read the inventory totals,
+     * e.g. content://com.example.android.inventoryapp/discs/stats
+     */
+    public static final String PATH_STATS = "stats";
+    /**
+     * Path appended to the discs URI to read all the discs as a CSV file,
+     * e.g. content://com.example.android.inventoryapp/discs/export
+     */
+    public static final String PATH_EXPORT = "export";
+    /**
+     * Path of the sales reports, e.g.
+     * content://com.example.android.inventoryapp/reports/top_sellers?from=...&to=...
+     */
+    public static final String PATH_REPORTS = "reports";
+    /**
+     * Path appended to the reports URI for the discs which sold the most copies
+     */
+    public static final String PATH_TOP_SELLERS = "top_sellers";
+    /**
+     * Path appended to the reports URI for the copies sold per hour, day, week or month
+     */
+    public static final String PATH_SERIES = "series";
+    /**
+     * Path of the sync state of the discs with the inventory server,
+     * e.g. content://com.example.android.inventoryapp/sync
+     */
+    public static final String PATH_SYNC = "sync";
+    /**
+     * Path appended to the sync URI for the discs changed since they were last pushed
+     */
+    public static final String PATH_CHANGES = "changes";
+    /**
+     * Path appended to the sync URI to apply the discs sent by the server
+     */
+    public static final String PATH_ROWS = "rows";
 
     // To prevent someone from accidentally instantiating the contract class,
     // give it an empty constructor.
@@ -59,6 +114,134 @@ public class DiscContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +PATH_DISCS;
 
+        /**
+         * The URI of the CSV file of all the discs, opened with
+         * {@link ContentResolver#openInputStream}. The file is written while it is read, so it
+         * can be streamed whatever the size of the catalog. Other apps can be granted access to
+         * it with {@link android.content.Intent#FLAG_GRANT_READ_URI_PERMISSION}.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The MIME type of the {@link #EXPORT_URI}.
+         */
+        public static final String EXPORT_TYPE = "text/csv";
+
+        /**
+         * Query parameter of the adjust URI holding the change of quantity (may be negative).
+         */
+        public static final String QUERY_PARAMETER_DELTA = "delta";
+
+        /**
+         * Query parameter of the sell URI holding the number of copies sold at once, one if
+         * it is missing.
+         */
+        public static final String QUERY_PARAMETER_COPIES = "copies";
+
+        /**
+         * Query parameter of the sell URI holding the sequence number of the last entry of the
+         * sell journal the sale covers, if the sale was journaled. The app only uses it
+         * internally, so a sale written before the app was killed is never replayed.
+         */
+        public static final String QUERY_PARAMETER_JOURNAL_SEQ = "journal_seq";
+
+        /**
+         * Query parameter of a disc URI holding the {@link #COLUMN_DISC_VERSION} the disc must
+         * still have for an update to be made. If the disc has changed since, the update
+         * changes nothing and returns {@link #UPDATE_CONFLICT}.
+         */
+        public static final String QUERY_PARAMETER_EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Result of an update with an expected version, when the disc exists but has another
+         * version. An update which found no disc returns 0.
+         */
+        public static final int UPDATE_CONFLICT = -1;
+
+        /**
+         * Query parameter of the {@link #CONTENT_URI} limiting the number of discs returned.
+         * When it is present the discs are returned one page at a time, in the order given by
+         * {@link #QUERY_PARAMETER_SORT}.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} query holding the ID of the last disc
+         * of the previous page. The page starts right after that disc.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} query holding the value of the sort
+         * key of the last disc of the previous page, see {@link #buildPageUri(String, long,
+         * String, int)}. It isn't needed for {@link #SORT_ADDED}.
+         */
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+        /**
+         * Query parameter of a paged {@link #CONTENT_URI} query holding the name of the order of
+         * the discs, one of the SORT_* values. Only these orders can be paged, as each of them
+         * is backed by an index. {@link #SORT_ADDED} is used when it is missing.
+         */
+        public static final String QUERY_PARAMETER_SORT = "sort";
+
+        /** Discs in the order they were added, oldest first */
+        public static final String SORT_ADDED = "added";
+
+        /** Discs ordered by artist, ignoring case */
+        public static final String SORT_ARTIST = "artist";
+
+        /** Discs ordered by title, ignoring case */
+        public static final String SORT_TITLE = "title";
+
+        /** Discs ordered by price, cheapest first */
+        public static final String SORT_PRICE = "price";
+
+        /** Discs ordered by price, most expensive first */
+        public static final String SORT_PRICE_DESC = "price_desc";
+
+        /**
+         * Only the discs with at most {@link #LOW_STOCK_QUANTITY} copies in stock, the ones
+         * with the fewest copies first
+         */
+        public static final String SORT_LOW_STOCK = "low_stock";
+
+        /** Largest quantity of a disc which is running low */
+        public static final int LOW_STOCK_QUANTITY = 5;
+
+        /**
+         * Query parameter of the search URI holding the text typed by the user. Every word of it
+         * has to match the start of a word of the artist or title.
+         */
+        public static final String QUERY_PARAMETER_QUERY = "q";
+
+        /**
+         * Query parameter of a change notification URI holding the kind of change made to the
+         * disc, one of {@link #OP_INSERT}, {@link #OP_UPDATE} or {@link #OP_DELETE}. A change
+         * notified on the {@link #CONTENT_URI} without it may have changed any disc.
+         */
+        public static final String QUERY_PARAMETER_OP = "op";
+
+        /**
+         * Query parameter of an update notification URI holding the comma separated names of
+         * the changed columns. When it is missing, any column may have changed.
+         */
+        public static final String QUERY_PARAMETER_COLUMNS = "columns";
+
+        /** Change notified for a disc which was inserted */
+        public static final String OP_INSERT = "insert";
+
+        /** Change notified for a disc which was updated */
+        public static final String OP_UPDATE = "update";
+
+        /** Change notified for a disc which was deleted */
+        public static final String OP_DELETE = "delete";
+
+        /**
+         * Value used instead of an ID when a page has to start with the first disc.
+         */
+        public static final long NO_ANCHOR = -1;
+
         /** Name of database table for discs */
         public static final String TABLE_NAME = "discs";
 
@@ -103,5 +286,611 @@ public class DiscContract {
          * Type: INTEGER
          */
         public final static String COLUMN_DISC_QUANTITY ="quantity";
+
+        /**
+         * Version of the disc, incremented by the database every time the disc is written. It
+         * can't be written by the apps.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DISC_VERSION ="version";
+
+        /**
+         * Build the URI notified when the disc with the given ID changed. The columns are only
+         * given for an update, and may be null if any column may have changed.
+         */
+        public static Uri buildChangeUri(long id, String op, Collection<String> columns) {
+            Uri.Builder builder = ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_OP, op);
+            if (columns != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_COLUMNS, TextUtils.join(",", columns));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the URI used to query one page of at most limit discs, starting right after
+         * the disc with the ID afterId (or with the first disc for {@link #NO_ANCHOR}).
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return buildPageUri(SORT_ADDED, afterId, null, limit);
+        }
+
+        /**
+         * Build the URI used to query one page of at most limit discs in the given order (one of
+         * the SORT_* values), starting right after the disc with the ID afterId (or with the
+         * first disc for {@link #NO_ANCHOR}). The afterKey is the value of the sort column of
+         * that disc: its artist, title, price or quantity.
+         */
+        public static Uri buildPageUri(String sortOrder, long afterId, String afterKey, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (!SORT_ADDED.equals(sortOrder)) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT, sortOrder);
+            }
+            if (afterId != NO_ANCHOR) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterId));
+                if (afterKey != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the URI used to search discs whose artist or title match the given text.
+         * The best matches come first.
+         */
+        public static Uri buildSearchUri(String query) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAMETER_QUERY, query)
+                    .build();
+        }
+
+        /**
+         * Build the URI used to search the best limit discs whose artist or title match
+         * the given text.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return buildSearchUri(query).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to update the disc with the given ID only if it still has the given
+         * version, so a change made since the disc was read is never overwritten.
+         */
+        public static Uri buildExpectedVersionUri(long id, long expectedVersion) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_EXPECTED_VERSION,
+                            String.valueOf(expectedVersion))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to sell one copy of the disc with the given ID. Updating it
+         * decreases the quantity by one, unless the disc is out of stock.
+         */
+        public static Uri buildSellUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_SELL)
+                    .build();
+        }
+
+        /**
+         * Build the URI used to sell the given number of copies of the disc with the given ID
+         * at once. Updating it decreases the quantity by copies, unless there are fewer copies
+         * in stock, in which case nothing is sold.
+         */
+        public static Uri buildSellUri(long id, int copies) {
+            return buildSellUri(id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_COPIES, String.valueOf(copies))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to sell the given number of copies of the disc with the given ID
+         * at once, covering the sell journal up to the entry with the given sequence number.
+         */
+        public static Uri buildSellUri(long id, int copies, long journalSeq) {
+            return buildSellUri(id, copies).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_JOURNAL_SEQ, String.valueOf(journalSeq))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to change the quantity of the disc with the given ID by delta.
+         * Updating it fails if the quantity would become negative.
+         */
+        public static Uri buildAdjustUri(long id, int delta) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_ADJUST)
+                    .appendQueryParameter(QUERY_PARAMETER_DELTA, String.valueOf(delta))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the inventory totals. The totals are a single
+     * row, kept up to date by the database whenever a disc is inserted, updated or deleted, so
+     * reading them costs the same however many discs there are.
+     */
+    public static final class StatsEntry implements BaseColumns {
+
+        /**
+         * The content URI to read the totals. Changes are notified on the
+         * {@link DiscEntry#CONTENT_URI}, as any change of a disc may change the totals.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(DiscEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/"
+                + CONTENT_AUTHORITY + "/" + PATH_DISCS + "/" + PATH_STATS;
+
+        /** Name of database table for the totals */
+        public static final String TABLE_NAME = "discs_stats";
+
+        /**
+         * ID of the single row of the table.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Number of discs.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DISC_COUNT = "disc_count";
+
+        /**
+         * Number of copies in stock, all discs together.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNIT_COUNT = "unit_count";
+
+        /**
+         * Value of the stock, the sum of price * quantity of all discs.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Number of discs with at most {@link DiscEntry#LOW_STOCK_QUANTITY} copies in stock.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the methods of the provider called through
+     * {@link ContentResolver#call(Uri, String, String, android.os.Bundle)} on the
+     * {@link #BASE_CONTENT_URI}. They answer with a small Bundle of primitive values and arrays
+     * in a single call, instead of a cursor to read, or one update call for every disc. The
+     * arg of the calls is unused, their parameters are passed in the extras.
+     */
+    public static final class CallEntry {
+
+        /**
+         * Count the discs matching {@link #EXTRA_SELECTION}, all of them if there is none.
+         * Answers with {@link #EXTRA_COUNT}.
+         */
+        public static final String METHOD_COUNT = "count";
+
+        /**
+         * Read the totals of all the discs, see {@link StatsEntry}. Answers with
+         * {@link #EXTRA_STATS}.
+         */
+        public static final String METHOD_STATS = "stats";
+
+        /**
+         * Change the quantity of every disc of {@link #EXTRA_IDS} by the delta at the same index
+         * of {@link #EXTRA_DELTAS}, in a single transaction. A quantity never goes below 0: a
+         * change which would make it negative is refused, the others are still made. Answers
+         * with {@link #EXTRA_QUANTITIES}.
+         */
+        public static final String METHOD_ADJUST = "adjust";
+
+        /**
+         * Read the IDs of the discs matching {@link #EXTRA_SELECTION}, in the order of
+         * {@link #EXTRA_SORT_ORDER} and at most {@link #EXTRA_LIMIT} of them if given. Answers
+         * with {@link #EXTRA_IDS}.
+         */
+        public static final String METHOD_IDS = "ids";
+
+        /** Extra holding the selection of the discs, a String */
+        public static final String EXTRA_SELECTION = "selection";
+
+        /** Extra holding the arguments of the selection, a String array */
+        public static final String EXTRA_SELECTION_ARGS = "selection_args";
+
+        /** Extra holding the sort order of the discs, a String */
+        public static final String EXTRA_SORT_ORDER = "sort_order";
+
+        /** Extra holding the maximum number of discs, an int */
+        public static final String EXTRA_LIMIT = "limit";
+
+        /** Extra holding the IDs of discs, a long array */
+        public static final String EXTRA_IDS = "ids";
+
+        /** Extra holding the changes of quantity of the discs, an int array */
+        public static final String EXTRA_DELTAS = "deltas";
+
+        /**
+         * Extra holding the new quantity of every disc adjusted, or -1 if its quantity wasn't
+         * changed (no such disc, or not enough copies in stock), a long array
+         */
+        public static final String EXTRA_QUANTITIES = "quantities";
+
+        /** Extra holding the number of discs, a long */
+        public static final String EXTRA_COUNT = "count";
+
+        /**
+         * Extra holding the totals of all the discs, a long array indexed by
+         * {@link #STATS_DISC_COUNT}, {@link #STATS_UNIT_COUNT}, {@link #STATS_STOCK_VALUE} and
+         * {@link #STATS_LOW_STOCK_COUNT}
+         */
+        public static final String EXTRA_STATS = "stats";
+
+        /** Index of {@link StatsEntry#COLUMN_DISC_COUNT} in {@link #EXTRA_STATS} */
+        public static final int STATS_DISC_COUNT = 0;
+
+        /** Index of {@link StatsEntry#COLUMN_UNIT_COUNT} in {@link #EXTRA_STATS} */
+        public static final int STATS_UNIT_COUNT = 1;
+
+        /** Index of {@link StatsEntry#COLUMN_STOCK_VALUE} in {@link #EXTRA_STATS} */
+        public static final int STATS_STOCK_VALUE = 2;
+
+        /** Index of {@link StatsEntry#COLUMN_LOW_STOCK_COUNT} in {@link #EXTRA_STATS} */
+        public static final int STATS_LOW_STOCK_COUNT = 3;
+    }
+
+    /**
+     * Inner class that defines constant values for the ledger of quantity changes. Every change
+     * of the quantity of a disc is appended to the ledger as an event, and the quantity stored in
+     * the discs table is the sum of the events of the disc. Old events are regularly folded into
+     * daily snapshots, see {@link DiscLedger}.
+     */
+    public static final class LedgerEntry implements BaseColumns {
+
+        /** Name of database table for the events */
+        public static final String TABLE_NAME = "disc_ledger";
+
+        /**
+         * Unique ID number for the event, in the order the events were appended.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * {@link DiscEntry#_ID} of the disc whose quantity changed. The disc may have been
+         * deleted since.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DISC_ID = "disc_id";
+
+        /**
+         * Change of quantity, negative when copies left the stock.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELTA = "delta";
+
+        /**
+         * Time of the change, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TIMESTAMP = "timestamp";
+
+        /**
+         * Reason of the change, one of the REASON_* values.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_REASON = "reason";
+
+        /** Copies in stock when the disc was added */
+        public static final String REASON_RECEIVED = "received";
+
+        /** Copies sold with the sell button */
+        public static final String REASON_SALE = "sale";
+
+        /** Quantity changed by a given amount */
+        public static final String REASON_ADJUSTMENT = "adjustment";
+
+        /** Quantity set to a new value, e.g. in the details screen */
+        public static final String REASON_EDIT = "edit";
+
+        /** Copies left in stock when the disc was deleted */
+        public static final String REASON_REMOVED = "removed";
+    }
+
+    /**
+     * Inner class that defines constant values for the sales reports. The reports are computed
+     * from rollups of the copies sold per hour, day and month, kept up to date as sales are
+     * recorded, so a report only reads the buckets covering its time range and never the
+     * history of single sales. Time ranges are widened to whole hours (UTC).
+     */
+    public static final class ReportEntry {
+
+        /** The content URI of the reports */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_REPORTS);
+
+        /**
+         * The MIME type of the reports, which are lists of rows.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_REPORTS;
+
+        /**
+         * Query parameter holding the start of the time range, in milliseconds since the epoch.
+         */
+        public static final String QUERY_PARAMETER_FROM = "from";
+
+        /**
+         * Query parameter holding the end of the time range (excluded), in milliseconds since
+         * the epoch.
+         */
+        public static final String QUERY_PARAMETER_TO = "to";
+
+        /**
+         * Query parameter of the top sellers report holding the maximum number of discs.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of the series report holding the size of the buckets, one of the
+         * GRANULARITY_* values.
+         */
+        public static final String QUERY_PARAMETER_GRANULARITY = "granularity";
+
+        /**
+         * Query parameter of the series report holding the ID of the disc, or {@link #ALL_DISCS}
+         * (the default) for the copies sold of all discs together.
+         */
+        public static final String QUERY_PARAMETER_DISC_ID = "disc_id";
+
+        /** Buckets of one hour */
+        public static final String GRANULARITY_HOUR = "hour";
+
+        /** Buckets of one day */
+        public static final String GRANULARITY_DAY = "day";
+
+        /** Buckets of one week, starting on Monday */
+        public static final String GRANULARITY_WEEK = "week";
+
+        /** Buckets of one month */
+        public static final String GRANULARITY_MONTH = "month";
+
+        /** Disc ID standing for all the discs together */
+        public static final long ALL_DISCS = 0;
+
+        /**
+         * {@link DiscEntry#_ID} of the disc of a top sellers row.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DISC_ID = "disc_id";
+
+        /**
+         * Artist of the disc of a top sellers row, null if the disc has been deleted since.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_ARTIST = DiscEntry.COLUMN_DISC_ARTIST;
+
+        /**
+         * Title of the disc of a top sellers row, null if the disc has been deleted since.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_TITLE = DiscEntry.COLUMN_DISC_TITLE;
+
+        /**
+         * Start of the bucket of a series row, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BUCKET_START = "bucket_start";
+
+        /**
+         * Number of copies sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Build the URI of the limit discs which sold the most copies in the given time range,
+         * best seller first. Columns: {@link #COLUMN_DISC_ID}, {@link #COLUMN_UNITS},
+         * {@link #COLUMN_ARTIST} and {@link #COLUMN_TITLE}.
+         */
+        public static Uri buildTopSellersUri(long from, long to, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_TOP_SELLERS)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(to))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of the copies of a disc (or of {@link #ALL_DISCS}) sold in each bucket of
+         * the given granularity in the time range, in time order. Buckets without sales are left
+         * out. Columns: {@link #COLUMN_BUCKET_START} and {@link #COLUMN_UNITS}.
+         */
+        public static Uri buildSeriesUri(String granularity, long from, long to, long discId) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SERIES)
+                    .appendQueryParameter(QUERY_PARAMETER_GRANULARITY, granularity)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_TO, String.valueOf(to))
+                    .appendQueryParameter(QUERY_PARAMETER_DISC_ID, String.valueOf(discId))
+                    .build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the sync of the discs with the inventory
+     * server, see {@link DiscSync}. Every disc written on this device is recorded in a change
+     * log by the database, and only the discs changed since the last sync are pushed; the
+     * server sends back only the discs changed since the last revision pulled. These URIs are
+     * only used by {@link DiscSync}.
+     */
+    public static final class SyncEntry {
+
+        /**
+         * The content URI of the sync state, a single row with the {@link #COLUMN_REVISION}
+         * pulled last and the {@link #COLUMN_DEVICE_ID}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SYNC);
+
+        /**
+         * The content URI of the discs changed since they were last pushed, in the order of
+         * their last change. Columns: {@link #COLUMN_SEQ}, {@link #COLUMN_SYNC_ID},
+         * {@link #COLUMN_REVISION}, {@link #COLUMN_BASE_QUANTITY}, {@link #COLUMN_APPLIED_TOTAL},
+         * {@link #COLUMN_DELETED}, {@link #COLUMN_MODIFIED} and the columns of the disc, null if
+         * it was deleted.
+         */
+        public static final Uri CHANGES_URI = Uri.withAppendedPath(CONTENT_URI, PATH_CHANGES);
+
+        /**
+         * The content URI the discs sent by the server are bulk inserted into, to be applied
+         * to the discs of this device in a single transaction.
+         */
+        public static final Uri ROWS_URI = Uri.withAppendedPath(CONTENT_URI, PATH_ROWS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI}.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC;
+
+        /**
+         * The MIME type of the {@link #CHANGES_URI} and {@link #ROWS_URI}.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC;
+
+        /**
+         * Query parameter of the changes URI holding the maximum number of discs.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of the rows URI holding the server revision the rows bring this
+         * device up to, stored as the revision pulled last.
+         */
+        public static final String QUERY_PARAMETER_REVISION = "revision";
+
+        /**
+         * Query parameter of the rows URI holding the {@link #COLUMN_SEQ} of the last change
+         * pushed: the rows are the answer of the server to the push, and the changes up to
+         * that one are dropped from the change log.
+         */
+        public static final String QUERY_PARAMETER_ACKED_SEQ = "acked_seq";
+
+        /**
+         * Position of a change in the change log, larger for later changes.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SEQ = "seq";
+
+        /**
+         * Identifier of this device for the server, 16 random bytes.
+         *
+         * Type: BLOB
+         */
+        public final static String COLUMN_DEVICE_ID = "device_id";
+
+        /**
+         * Identifier of the disc shared by all the devices and the server, 16 random bytes
+         * given to the disc by the device it was added on.
+         *
+         * Type: BLOB
+         */
+        public final static String COLUMN_SYNC_ID = "sync_id";
+
+        /**
+         * Revision of the disc on the server: the revision this device last got, for a change,
+         * or the revision of the row sent by the server.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_REVISION = "revision";
+
+        /**
+         * Quantity of the disc on the server at the {@link #COLUMN_REVISION} of a change.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_BASE_QUANTITY = "base_quantity";
+
+        /**
+         * Total change of quantity made on this device which the server had applied at the
+         * {@link #COLUMN_REVISION}: of a change, or of a row sent by the server. This device
+         * pushes its total change of quantity, this total plus the change made since the base
+         * quantity, and the server only applies its growth, so copies sold on several devices
+         * at once all count and a push made twice counts once.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_APPLIED_TOTAL = "applied_total";
+
+        /**
+         * 1 if the disc was deleted, 0 otherwise.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DELETED = "deleted";
+
+        /**
+         * Time of the last change of the disc, in milliseconds since the epoch. The latest
+         * change of the artist, title, image and price of a disc wins.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MODIFIED = "modified";
+
+        /**
+         * Build the URI of at most limit discs changed since they were last pushed.
+         */
+        public static Uri buildChangesUri(int limit) {
+            return CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to apply the rows pulled from the server, up to the given server
+         * revision.
+         */
+        public static Uri buildPulledRowsUri(long revision) {
+            return ROWS_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_REVISION, String.valueOf(revision))
+                    .build();
+        }
+
+        /**
+         * Build the URI used to apply the rows the server answered a push with, the push having
+         * covered the change log up to the given sequence number.
+         */
+        public static Uri buildPushedRowsUri(long ackedSeq) {
+            return ROWS_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_ACKED_SEQ, String.valueOf(ackedSeq))
+                    .build();
+        }
     }
 }
@@ -5,13 +5,13 @@ package com.example.android.inventoryapp.data;
  */
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
 import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
 
-import static com.example.android.inventoryapp.data.DiscContract.DiscEntry.TABLE_NAME;
-
 /**
  * Database helper for Inventory app. Manages database creation and version management.
  */
@@ -25,50 +25,153 @@ public class DiscDBHelper extends SQLiteOpenHelper {
     /**
      * Name of the database file
      */
-    private static final String DATABASE_NAME = "stock.db";
+    static final String DATABASE_NAME = "stock.db";
 
     /**
      * Database version. If you change the database schema, you must increment the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 10;
 
     /**
-     * Constructs a new instance of {@link DiscDBHelper}.
+     * Name of the full-text search table indexing the artist and title of every disc. The docid
+     * of each row is the {@link DiscEntry#_ID} of the disc it indexes.
+     */
+    static final String SEARCH_TABLE_NAME = "discs_fts";
+
+    /**
+     * Connection settings of the database
+     */
+    private final Settings settings;
+
+    /**
+     * Listener receiving the time spent on each migration step, or null
+     */
+    private DiscMigrations.Listener migrationListener;
+
+    /**
+     * Constructs a new instance of {@link DiscDBHelper} with the {@link Settings#DEFAULT} settings.
      *
      * @param context of the app
      */
     public DiscDBHelper(Context context) {
+        this(context, Settings.DEFAULT);
+    }
+
+    /**
+     * Constructs a new instance of {@link DiscDBHelper}.
+     *
+     * @param context  of the app
+     * @param settings journal mode and pragmas used for the database connection
+     */
+    public DiscDBHelper(Context context, Settings settings) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.settings = settings;
+
+        // With write-ahead logging, readers use their own connections and see the last committed
+        // data while a write transaction runs, instead of waiting for it to end
+        setWriteAheadLoggingEnabled(settings.writeAheadLogging);
+    }
+
+    /**
+     * This is called when the database connection is being configured, before the tables are
+     * created or upgraded. The pragmas are set on the primary connection, which runs every
+     * write; the read-only connections opened for write-ahead logging keep the SQLite defaults.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.execSQL("PRAGMA synchronous = " + settings.synchronous);
+        db.execSQL("PRAGMA cache_size = " + -settings.cacheSizeKb);
+
+        // The memory-mapped I/O size is returned by SQLite, so it is read as a query. Versions
+        // of SQLite older than 3.7.17 return nothing and ignore it.
+        Cursor cursor = db.rawQuery("PRAGMA mmap_size = " + settings.mmapSizeBytes, null);
+        try {
+            if (cursor.moveToFirst() && cursor.getLong(0) != settings.mmapSizeBytes) {
+                Log.i(LOG_TAG, "mmap_size limited to " + cursor.getLong(0) + " bytes");
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Set the listener receiving the time spent on each migration step. Must be called before
+     * the database is opened.
+     */
+    void setMigrationListener(DiscMigrations.Listener migrationListener) {
+        this.migrationListener = migrationListener;
     }
 
     /**
-     * This is called when the database is created for the first time.
+     * This is called when the database is created for the first time. The first version of
+     * the schema is created, then migrated like an existing database would be.
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        // Create a String that contains the SQL statement to create the discs table
-        String SQL_CREATE_DISCS_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
-                + DiscEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-                + DiscEntry.COLUMN_DISC_IMAGE + " TEXT NOT NULL, "
-                + DiscEntry.COLUMN_DISC_ARTIST + " TEXT NOT NULL, "
-                + DiscEntry.COLUMN_DISC_TITLE + " TEXT NOT NULL, "
-                + DiscEntry.COLUMN_DISC_PRICE + " INTEGER NOT NULL DEFAULT 0, "
-                + DiscEntry.COLUMN_DISC_QUANTITY + " INTEGER NOT NULL DEFAULT 0);";
-
-        // Execute the SQL statement
-        db.execSQL(SQL_CREATE_DISCS_TABLE);
+        DiscMigrations.createVersion1(db);
+        DiscMigrations.upgrade(db, 1, DATABASE_VERSION, migrationListener);
     }
 
+    /**
+     * This is called when the database has an older version. The data is kept, and each
+     * migration step is committed on its own, so an interrupted upgrade resumes where it stopped.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Create a String that contains the SQL statement to drop the discs table
-        String SQL_DELETE_ENTRIES = "DROP TABLE IF EXISTS " + TABLE_NAME;
+        DiscMigrations.upgrade(db, oldVersion, newVersion, migrationListener);
+    }
+
+    /**
+     * Journal mode and pragmas of the database connection.
+     */
+    public static final class Settings {
+
+        /** Value of the synchronous pragma for which SQLite never waits for the disk */
+        public static final int SYNCHRONOUS_OFF = 0;
+
+        /**
+         * Value of the synchronous pragma for which SQLite only waits for the disk at
+         * checkpoints. With write-ahead logging, committed transactions survive a crash of the
+         * app, but the last ones may be rolled back by a power loss.
+         */
+        public static final int SYNCHRONOUS_NORMAL = 1;
+
+        /** Value of the synchronous pragma for which SQLite waits for the disk at every commit */
+        public static final int SYNCHRONOUS_FULL = 2;
+
+        /**
+         * Settings used by the app: write-ahead logging, NORMAL synchronous, 4 MB page cache
+         * and 16 MB of memory-mapped I/O.
+         */
+        public static final Settings DEFAULT =
+                new Settings(true, SYNCHRONOUS_NORMAL, 4 * 1024, 16 * 1024 * 1024);
+
+        /** Boolean flag that keeps track of whether write-ahead logging is enabled */
+        public final boolean writeAheadLogging;
+
+        /** Value of the synchronous pragma, one of the SYNCHRONOUS_* values */
+        public final int synchronous;
 
-        // Execute the SQL statement to delete current discs table
-        db.execSQL(SQL_DELETE_ENTRIES);
+        /** Size of the page cache of the connection, in KB */
+        public final int cacheSizeKb;
 
-        // Create new table
-        onCreate(db);
+        /** Size of the database file accessed through memory-mapped I/O, in bytes (0 disables it) */
+        public final long mmapSizeBytes;
 
+        public Settings(boolean writeAheadLogging, int synchronous, int cacheSizeKb,
+                        long mmapSizeBytes) {
+            if (synchronous < SYNCHRONOUS_OFF || synchronous > SYNCHRONOUS_FULL) {
+                throw new IllegalArgumentException("Invalid synchronous value " + synchronous);
+            }
+            if (cacheSizeKb <= 0 || mmapSizeBytes < 0) {
+                throw new IllegalArgumentException("Invalid cache size " + cacheSizeKb
+                        + " KB or mmap size " + mmapSizeBytes);
+            }
+            this.writeAheadLogging = writeAheadLogging;
+            this.synchronous = synchronous;
+            this.cacheSizeKb = cacheSizeKb;
+            this.mmapSizeBytes = mmapSizeBytes;
+        }
     }
 }
@@ -0,0 +1,238 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Deletes many discs in the background, a bounded range of IDs at a time.
+ * <p>
+ * A single DELETE of a large catalog holds the write lock of the database for as long as it
+ * runs, and its one notification makes every observer reload everything at once. Here, every
+ * chunk covers at most {@link #CHUNK_IDS} consecutive IDs starting at the lowest matching disc
+ * left, and is deleted through the provider in its own short transaction. The readers get the
+ * database between two chunks, and the notifications of the chunks are coalesced by the
+ * provider. A deletion can be cancelled between two chunks; the discs already deleted stay
+ * deleted.
+ */
+public class DiscDeleter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscDeleter.class.getSimpleName();
+
+    /** Largest range of IDs deleted in a single transaction */
+    static final int CHUNK_IDS = 500;
+
+    /** The single instance of the deleter, shared by all the screens */
+    private static DiscDeleter instance;
+
+    /** Resolver the discs are deleted through */
+    private final ContentResolver resolver;
+
+    /** Executor running the deletions one after the other */
+    private final ExecutorService executor;
+
+    /** Handler used to report the progress on the main thread */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Listener of the deletions, only used on the main thread */
+    private Listener listener;
+
+    /** Deletion which is running, null if none, only used on the main thread */
+    private Run current;
+
+    /**
+     * Listener of the progress of the deletions, called on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after every chunk with the number of discs deleted so far, out of the number
+         * of discs matching when the deletion started.
+         */
+        void onDeleteProgress(int deleted, int total);
+
+        /**
+         * Called once the deletion has ended, cancelled or not.
+         */
+        void onDeleteFinished(int deleted, boolean cancelled);
+    }
+
+    DiscDeleter(ContentResolver resolver) {
+        this.resolver = resolver;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+
+    /**
+     * Return the deleter of the app.
+     */
+    public static synchronized DiscDeleter getInstance(Context context) {
+        if (instance == null) {
+            instance = new DiscDeleter(context.getApplicationContext().getContentResolver());
+        }
+        return instance;
+    }
+
+    /**
+     * Set the listener told about the progress of the deletions, or null to stop listening.
+     * Must be called on the main thread.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Return true if a deletion is running. Must be called on the main thread.
+     */
+    public boolean isRunning() {
+        return current != null;
+    }
+
+    /**
+     * Start deleting the discs matching the selection, or all the discs if it is null.
+     * Only one deletion runs at a time. Must be called on the main thread.
+     */
+    public void start(final String selection, final String[] selectionArgs) {
+        if (current != null) {
+            throw new IllegalStateException("A deletion is already running");
+        }
+        final Run run = new Run();
+        current = run;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute(selection, selectionArgs, CHUNK_IDS, run);
+            }
+        });
+    }
+
+    /**
+     * Stop the running deletion after the chunk being deleted. Must be called on the main thread.
+     */
+    public void cancel() {
+        if (current != null) {
+            current.cancelled = true;
+        }
+    }
+
+    /**
+     * Delete the discs matching the selection on the calling thread, with chunks of the given
+     * number of IDs. Return the number of discs deleted.
+     */
+    int deleteNow(String selection, String[] selectionArgs, int chunkIds) {
+        return execute(selection, selectionArgs, chunkIds, new Run());
+    }
+
+    /**
+     * Delete the matching discs chunk by chunk, then report the end of the deletion.
+     */
+    private int execute(String selection, String[] selectionArgs, int chunkIds, Run run) {
+        long start = SystemClock.elapsedRealtime();
+        int total = (int) queryLong("COUNT(*)", null, selection, selectionArgs, 0);
+        int deleted = 0;
+        int chunks = 0;
+        try {
+            long from = 0;
+            while (!run.cancelled) {
+                // Start the chunk at the lowest matching disc left, so gaps in the IDs never
+                // make empty chunks
+                from = queryLong("MIN(" + DiscEntry._ID + ")", from, selection, selectionArgs, -1);
+                if (from == -1) {
+                    break;
+                }
+                long to = from + chunkIds;
+                String range = DiscEntry._ID + " >= " + from + " AND " + DiscEntry._ID + " < " + to;
+                deleted += resolver.delete(DiscEntry.CONTENT_URI,
+                        DatabaseUtils.concatenateWhere(range, selection), selectionArgs);
+                chunks++;
+                from = to;
+                publish(run, deleted, total, false);
+            }
+        } catch (RuntimeException e) {
+            // The discs deleted so far stay deleted, the others can be deleted again
+            Log.e(LOG_TAG, "Failed to delete the discs", e);
+        }
+        Log.i(LOG_TAG, String.format(Locale.US, "Deleted %d discs in %d chunks, in %d ms",
+                deleted, chunks, SystemClock.elapsedRealtime() - start));
+        publish(run, deleted, total, true);
+        return deleted;
+    }
+
+    /**
+     * Return the value of an aggregate over the discs with an ID at least the given one (if
+     * not null) matching the selection, or the default value if it is null.
+     */
+    private long queryLong(String aggregate, Long fromId, String selection,
+                           String[] selectionArgs, long defaultValue) {
+        if (fromId != null) {
+            selection = DatabaseUtils.concatenateWhere(DiscEntry._ID + " >= " + fromId, selection);
+        }
+        Cursor cursor = resolver.query(DiscEntry.CONTENT_URI, new String[]{aggregate}, selection,
+                selectionArgs, null);
+        if (cursor == null) {
+            return defaultValue;
+        }
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : defaultValue;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Report the progress of the deletion to the listener.
+     */
+    private void publish(final Run run, final int deleted, final int total,
+                         final boolean finished) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (current != run) {
+                    return;
+                }
+                if (finished) {
+                    current = null;
+                }
+                if (listener == null) {
+                    return;
+                }
+                if (finished) {
+                    listener.onDeleteFinished(deleted, run.cancelled);
+                } else {
+                    listener.onDeleteProgress(deleted, total);
+                }
+            }
+        });
+    }
+
+    /**
+     * State of a running deletion.
+     */
+    private static final class Run {
+        volatile boolean cancelled;
+    }
+}
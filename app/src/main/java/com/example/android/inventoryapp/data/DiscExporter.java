@@ -0,0 +1,238 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.provider.OpenableColumns;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes all the discs as a CSV file (RFC 4180, UTF-8) to a channel, without ever holding the
+ * whole table in memory.
+ * <p>
+ * The discs are read in chunks of {@link #CHUNK_ROWS}, each chunk starting after the ID of the
+ * last disc of the previous one, so every chunk is a short range scan of the primary key. A
+ * single cursor over a large table would be re-run from the start every time its window is
+ * refilled. Every field is copied into a reusable char buffer and encoded straight into a
+ * reusable byte buffer, which is written to the channel whenever it is full: no String or byte
+ * array is allocated per row.
+ */
+final class DiscExporter {
+
+    /** Name of the exported file */
+    static final String FILE_NAME = "discs.csv";
+
+    /** Number of discs read per query */
+    static final int CHUNK_ROWS = 1000;
+
+    /** Size of the buffer holding the encoded rows before they are written */
+    static final int BUFFER_BYTES = 64 * 1024;
+
+    /** Columns exported, in the order of the file */
+    private static final String[] COLUMNS = {DiscEntry._ID, DiscEntry.COLUMN_DISC_IMAGE,
+            DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE,
+            DiscEntry.COLUMN_DISC_PRICE, DiscEntry.COLUMN_DISC_QUANTITY};
+
+    /** Whether each column of {@link #COLUMNS} holds text, the others holding integers */
+    private static final boolean[] TEXT_COLUMNS = {false, true, true, true, false, false};
+
+    /** Channel the file is written to */
+    private final WritableByteChannel channel;
+
+    /** Encoded bytes not written yet */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    /** Characters of the text field being encoded */
+    private final CharArrayBuffer text = new CharArrayBuffer(256);
+
+    /** Digits of the integer field being encoded, from the last one */
+    private final byte[] digits = new byte[20];
+
+    private DiscExporter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Write all the discs of the database to the channel, with a header naming the columns.
+     * The channel is not closed. Return the number of discs written.
+     */
+    static long export(SQLiteDatabase db, WritableByteChannel channel,
+                       CancellationSignal cancellationSignal) throws IOException {
+        return new DiscExporter(channel).exportDiscs(db, cancellationSignal);
+    }
+
+    /**
+     * Return the single row describing the exported file to the apps it is shared with, with
+     * the requested {@link OpenableColumns}. The size isn't known before the file is written.
+     */
+    static Cursor queryOpenable(String[] projection) {
+        if (projection == null) {
+            projection = new String[]{OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+        }
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+                row[i] = FILE_NAME;
+            } else if (!OpenableColumns.SIZE.equals(projection[i])) {
+                throw new IllegalArgumentException("Unknown column " + projection[i]);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    private long exportDiscs(SQLiteDatabase db, CancellationSignal cancellationSignal)
+            throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                putByte(',');
+            }
+            putAscii(COLUMNS[i]);
+        }
+        putByte('\n');
+
+        long rows = 0;
+        long lastId = 0;
+        String selection = DiscEntry._ID + " > ?";
+        String limit = String.valueOf(CHUNK_ROWS);
+        while (true) {
+            Cursor cursor = db.query(false, DiscEntry.TABLE_NAME, COLUMNS, selection,
+                    new String[]{String.valueOf(lastId)}, null, null, DiscEntry._ID, limit,
+                    cancellationSignal);
+            int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < COLUMNS.length; i++) {
+                        if (i > 0) {
+                            putByte(',');
+                        }
+                        if (TEXT_COLUMNS[i]) {
+                            putText(cursor, i);
+                        } else {
+                            putLong(cursor.getLong(i));
+                        }
+                    }
+                    putByte('\n');
+                    lastId = cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            rows += count;
+            if (count < CHUNK_ROWS) {
+                break;
+            }
+        }
+        flush();
+        return rows;
+    }
+
+    /**
+     * Encode a text field, quoted if it holds a comma, a quote or a line break.
+     */
+    private void putText(Cursor cursor, int column) throws IOException {
+        if (cursor.isNull(column)) {
+            return;
+        }
+        cursor.copyStringToBuffer(column, text);
+        char[] chars = text.data;
+        int length = text.sizeCopied;
+
+        boolean quoted = false;
+        for (int i = 0; i < length && !quoted; i++) {
+            char c = chars[i];
+            quoted = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (quoted) {
+            putByte('"');
+        }
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (buffer.remaining() < 4) {
+                flush();
+            }
+            if (c < 0x80) {
+                if (c == '"') {
+                    buffer.put((byte) '"');
+                }
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(chars[i + 1])) {
+                int codePoint = Character.toCodePoint(c, chars[++i]);
+                buffer.put((byte) (0xF0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // A lone surrogate can't be encoded
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3F));
+                buffer.put((byte) (0x80 | c & 0x3F));
+            }
+        }
+        if (quoted) {
+            putByte('"');
+        }
+    }
+
+    /**
+     * Encode an integer field in decimal.
+     */
+    private void putLong(long value) throws IOException {
+        if (buffer.remaining() < digits.length + 1) {
+            flush();
+        }
+        if (value == Long.MIN_VALUE) {
+            putAscii(String.valueOf(value));
+            return;
+        }
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buffer.put(digits, start, digits.length - start);
+    }
+
+    private void putAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            putByte(value.charAt(i));
+        }
+    }
+
+    private void putByte(char c) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) c);
+    }
+
+    /**
+     * Write the encoded bytes to the channel, and empty the buffer.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,727 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports a catalog of discs from a CSV or JSON file, given by a content or file URI, in the
+ * background.
+ * <p>
+ * The file is streamed through a parser which only holds the row it is reading, so a catalog of
+ * any size is imported in constant memory. Every row is checked with the same rules as a single
+ * insert of the {@link DiscProvider}; the invalid ones are rejected and reported, the others are
+ * gathered into batches which are each inserted in a single transaction. The parser and the
+ * writer run on two threads linked by a short queue: when the database falls behind, the queue
+ * fills up and the parser waits, so no more than a few batches are ever held in memory.
+ * <p>
+ * A CSV file starts with a header naming its columns after the {@link DiscEntry} columns, in
+ * any order. A JSON file holds an array of objects with the same names. Unknown columns are
+ * ignored, and discs without image get the placeholder cover.
+ */
+public class DiscImporter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscImporter.class.getSimpleName();
+
+    /** Number of discs inserted per transaction, unless another size is given */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Number of parsed batches which may wait for the writer */
+    private static final int QUEUE_BATCHES = 2;
+
+    /** Number of rejected rows whose reason is kept to be reported */
+    static final int MAX_REJECTS = 100;
+
+    /** Cover given to the discs imported without image */
+    static final String PLACEHOLDER_IMAGE =
+            "android.resource://com.example.android.inventoryapp/drawable/dummy_image";
+
+    /** Minimum time between two progress reports */
+    private static final long PROGRESS_INTERVAL_MILLIS = 200;
+
+    /** Columns which can be imported */
+    private static final String[] COLUMNS = {DiscEntry.COLUMN_DISC_IMAGE,
+            DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE, DiscEntry.COLUMN_DISC_PRICE,
+            DiscEntry.COLUMN_DISC_QUANTITY};
+
+    /** Batch telling the writer that the file has been read */
+    private static final Batch END = new Batch(new ContentValues[0], 0);
+
+    /** The single instance of the importer, shared by all the screens */
+    private static DiscImporter instance;
+
+    /** Resolver the files are read from and the discs written to */
+    private final ContentResolver resolver;
+
+    /** Executor running the parser and the writer of an import */
+    private final ExecutorService executor;
+
+    /** Handler used to report the progress on the main thread */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Listener of the imports, only used on the main thread */
+    private Listener listener;
+
+    /** Import which is running, null if none, only used on the main thread */
+    private Run current;
+
+    /**
+     * Listener of the progress of the imports, called on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called regularly while the discs are imported.
+         */
+        void onImportProgress(Progress progress);
+
+        /**
+         * Called once the import has ended, successfully or not.
+         */
+        void onImportFinished(Progress progress);
+    }
+
+    /**
+     * State of an import at some point.
+     */
+    public static final class Progress {
+
+        /** Number of bytes of the file read so far */
+        public final long bytesRead;
+
+        /** Size of the file in bytes, or -1 if it isn't known */
+        public final long totalBytes;
+
+        /** Number of discs inserted so far */
+        public final int imported;
+
+        /** Number of rows rejected so far */
+        public final int rejected;
+
+        /** Reasons of the first {@link #MAX_REJECTS} rejected rows */
+        public final List<String> rejects;
+
+        /** True if the import was cancelled before the end of the file */
+        public final boolean cancelled;
+
+        /** Reason the import stopped before the end of the file, or null */
+        public final String error;
+
+        Progress(long bytesRead, long totalBytes, int imported, int rejected, List<String> rejects,
+                 boolean cancelled, String error) {
+            this.bytesRead = bytesRead;
+            this.totalBytes = totalBytes;
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rejects = rejects;
+            this.cancelled = cancelled;
+            this.error = error;
+        }
+
+        /**
+         * Return the share of the file read so far, from 0 to 100, or -1 if the size of the file
+         * isn't known.
+         */
+        public int percent() {
+            if (totalBytes <= 0) {
+                return -1;
+            }
+            return (int) Math.min(100, bytesRead * 100 / totalBytes);
+        }
+    }
+
+    DiscImporter(ContentResolver resolver) {
+        this.resolver = resolver;
+        executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+
+    /**
+     * Return the importer of the app.
+     */
+    public static synchronized DiscImporter getInstance(Context context) {
+        if (instance == null) {
+            instance = new DiscImporter(context.getApplicationContext().getContentResolver());
+        }
+        return instance;
+    }
+
+    /**
+     * Set the listener told about the progress of the imports, or null to stop listening.
+     * Must be called on the main thread.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Return true if an import is running. Must be called on the main thread.
+     */
+    public boolean isRunning() {
+        return current != null;
+    }
+
+    /**
+     * Start importing the file with the given URI, inserting the given number of discs per
+     * transaction. Only one import runs at a time. Must be called on the main thread.
+     */
+    public void start(final Uri uri, final int batchSize) {
+        if (current != null) {
+            throw new IllegalStateException("An import is already running");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("You have to provide valid batch size.");
+        }
+        final Run run = new Run();
+        current = run;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                execute(uri, batchSize, run);
+            }
+        });
+    }
+
+    /**
+     * Stop the running import after the batch being written. The discs already written are
+     * kept. Must be called on the main thread.
+     */
+    public void cancel() {
+        if (current != null) {
+            current.cancelled = true;
+        }
+    }
+
+    /**
+     * Import the file with the given URI on the calling thread, and return the final progress.
+     */
+    Progress importNow(Uri uri, int batchSize) {
+        return execute(uri, batchSize, new Run());
+    }
+
+    /**
+     * Read the file and insert its discs, then report the end of the import.
+     */
+    private Progress execute(Uri uri, int batchSize, Run run) {
+        long start = SystemClock.elapsedRealtime();
+        AssetFileDescriptor descriptor = null;
+        try {
+            descriptor = resolver.openAssetFileDescriptor(uri, "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException("Can't open " + uri);
+            }
+            run.totalBytes = descriptor.getLength();
+            CountingInputStream in = new CountingInputStream(descriptor.createInputStream(), run);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            parse(openSource(reader), batchSize, run);
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to import " + uri, e);
+            run.error = e.getMessage() == null ? e.toString() : e.getMessage();
+        } finally {
+            if (descriptor != null) {
+                try {
+                    descriptor.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Failed to close " + uri, e);
+                }
+            }
+        }
+
+        Progress progress = run.progress();
+        Log.i(LOG_TAG, String.format(Locale.US, "Imported %d discs, rejected %d, in %d ms",
+                progress.imported, progress.rejected, SystemClock.elapsedRealtime() - start));
+        publish(run, true);
+        return progress;
+    }
+
+    /**
+     * Parse every row of the source and hand the valid ones to the writer, a batch at a time.
+     */
+    private void parse(RowSource source, int batchSize, Run run) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+        Future<?> writer = executor.submit(new Writer(queue, run));
+        try {
+            ContentValues[] discs = new ContentValues[batchSize];
+            int size = 0;
+            int row = 0;
+            ContentValues values = new ContentValues();
+            while (!run.cancelled && source.next(values)) {
+                row++;
+                String reason = toDisc(values);
+                if (reason != null) {
+                    run.reject("Row " + row + ": " + reason);
+                    values.clear();
+                    continue;
+                }
+                discs[size++] = values;
+                values = new ContentValues();
+                if (size == batchSize) {
+                    enqueue(queue, new Batch(discs, row), writer);
+                    discs = new ContentValues[batchSize];
+                    size = 0;
+                }
+            }
+            if (size > 0 && !run.cancelled) {
+                enqueue(queue, new Batch(Arrays.copyOf(discs, size), row), writer);
+            }
+        } finally {
+            // Let the writer finish the batches already parsed, then stop
+            enqueue(queue, END, writer);
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to write the discs", e.getCause());
+        }
+    }
+
+    /**
+     * Wait for room in the queue and add the batch to it. Stop waiting if the writer has
+     * stopped, as nobody would ever take the batch.
+     */
+    private static void enqueue(BlockingQueue<Batch> queue, Batch batch, Future<?> writer)
+            throws IOException {
+        try {
+            while (!queue.offer(batch, PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted");
+        }
+    }
+
+    /**
+     * Turn the text values of a row into the values of a disc, checked with the rules of the
+     * provider. Return the reason the row is rejected, or null if it is valid.
+     */
+    static String toDisc(ContentValues values) {
+        // An empty field is a missing value
+        for (String column : COLUMNS) {
+            String text = values.getAsString(column);
+            if (text != null && text.trim().isEmpty()) {
+                values.remove(column);
+            }
+        }
+        for (String column : new String[]{DiscEntry.COLUMN_DISC_PRICE,
+                DiscEntry.COLUMN_DISC_QUANTITY}) {
+            String text = values.getAsString(column);
+            if (text == null) {
+                continue;
+            }
+            try {
+                values.put(column, Integer.parseInt(text.trim()));
+            } catch (NumberFormatException e) {
+                return "You have to provide valid " + column + " for this item.";
+            }
+        }
+        if (!values.containsKey(DiscEntry.COLUMN_DISC_IMAGE)) {
+            values.put(DiscEntry.COLUMN_DISC_IMAGE, PLACEHOLDER_IMAGE);
+        }
+        try {
+            DiscProvider.validateDisc(values);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * Report the progress of the import to the listener, at most every
+     * {@link #PROGRESS_INTERVAL_MILLIS} until it has finished.
+     */
+    private void publish(final Run run, final boolean finished) {
+        long now = SystemClock.elapsedRealtime();
+        if (!finished) {
+            synchronized (run) {
+                if (now - run.publishedAt < PROGRESS_INTERVAL_MILLIS) {
+                    return;
+                }
+                run.publishedAt = now;
+            }
+        }
+        final Progress progress = run.progress();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (current != run) {
+                    return;
+                }
+                if (finished) {
+                    current = null;
+                }
+                if (listener == null) {
+                    return;
+                }
+                if (finished) {
+                    listener.onImportFinished(progress);
+                } else {
+                    listener.onImportProgress(progress);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the source of the rows of the file: JSON if it starts with an array, CSV otherwise.
+     */
+    private static RowSource openSource(BufferedReader reader) throws IOException {
+        // Skip the byte order mark some editors write
+        reader.mark(1);
+        if (reader.read() != '\uFEFF') {
+            reader.reset();
+        }
+
+        // Look at the first character which isn't a blank
+        reader.mark(4096);
+        int c;
+        do {
+            c = reader.read();
+        } while (c != -1 && Character.isWhitespace(c));
+        reader.reset();
+        return c == '[' ? new JsonSource(reader) : new CsvSource(reader);
+    }
+
+    /**
+     * Return the disc column with the given name, or null if it can't be imported.
+     */
+    private static String column(String name) {
+        String column = name.trim().toLowerCase(Locale.US);
+        for (String known : COLUMNS) {
+            if (known.equals(column)) {
+                return known;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Source of the rows of a file.
+     */
+    private interface RowSource {
+
+        /**
+         * Put the text values of the next row into values, keyed by disc column.
+         * Return false at the end of the file.
+         */
+        boolean next(ContentValues values) throws IOException;
+    }
+
+    /**
+     * Rows of a CSV file (RFC 4180): fields separated by commas, quoted with double quotes when
+     * they hold commas, quotes or line breaks. Blank lines are skipped.
+     */
+    private static final class CsvSource implements RowSource {
+
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int limit;
+
+        /** Field being read */
+        private final StringBuilder field = new StringBuilder();
+
+        /** Fields of the record being read */
+        private final List<String> fields = new ArrayList<>();
+
+        /** Disc column of every field, null for the ignored ones */
+        private final String[] columns;
+
+        CsvSource(Reader reader) throws IOException {
+            this.reader = reader;
+            if (!readRecord()) {
+                columns = new String[0];
+                return;
+            }
+            columns = new String[fields.size()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = column(fields.get(i));
+            }
+        }
+
+        @Override
+        public boolean next(ContentValues values) throws IOException {
+            while (readRecord()) {
+                if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                    continue;
+                }
+                int count = Math.min(fields.size(), columns.length);
+                for (int i = 0; i < count; i++) {
+                    if (columns[i] != null) {
+                        values.put(columns[i], fields.get(i));
+                    }
+                }
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Read the fields of the next record. Return false at the end of the file.
+         */
+        private boolean readRecord() throws IOException {
+            fields.clear();
+            field.setLength(0);
+            int c = read();
+            if (c == -1) {
+                return false;
+            }
+            boolean quoted = false;
+            while (c != -1) {
+                if (quoted) {
+                    if (c == '"') {
+                        // A doubled quote stands for a quote, a single one ends the field
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.append((char) c);
+                } else if (c == '"' && field.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '\n' || c == '\r') {
+                    // "\r\n" ends the record as well as "\n"
+                    if (c == '\r' && read() != '\n' && limit > 0) {
+                        position--;
+                    }
+                    break;
+                } else {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+            fields.add(field.toString());
+            return true;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+    }
+
+    /**
+     * Rows of a JSON file holding an array of objects. Values which are neither strings, numbers
+     * nor booleans are ignored.
+     */
+    private static final class JsonSource implements RowSource {
+
+        private final JsonReader reader;
+        private boolean started;
+
+        JsonSource(Reader reader) {
+            this.reader = new JsonReader(reader);
+        }
+
+        @Override
+        public boolean next(ContentValues values) throws IOException {
+            if (!started) {
+                reader.beginArray();
+                started = true;
+            }
+            if (!reader.hasNext()) {
+                reader.endArray();
+                return false;
+            }
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                // Not a disc: the empty row is rejected
+                reader.skipValue();
+                return true;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String column = column(reader.nextName());
+                JsonToken token = reader.peek();
+                if (column == null || (token != JsonToken.STRING && token != JsonToken.NUMBER
+                        && token != JsonToken.BOOLEAN)) {
+                    reader.skipValue();
+                } else if (token == JsonToken.BOOLEAN) {
+                    values.put(column, String.valueOf(reader.nextBoolean()));
+                } else {
+                    values.put(column, reader.nextString());
+                }
+            }
+            reader.endObject();
+            return true;
+        }
+    }
+
+    /**
+     * Discs parsed from the file, to be inserted in a single transaction.
+     */
+    private static final class Batch {
+
+        final ContentValues[] discs;
+
+        /** Number of the last row of the batch */
+        final int lastRow;
+
+        Batch(ContentValues[] discs, int lastRow) {
+            this.discs = discs;
+            this.lastRow = lastRow;
+        }
+    }
+
+    /**
+     * Inserts the batches taken from the queue, until the end of the file.
+     */
+    private final class Writer implements Runnable {
+
+        private final BlockingQueue<Batch> queue;
+        private final Run run;
+
+        Writer(BlockingQueue<Batch> queue, Run run) {
+            this.queue = queue;
+            this.run = run;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != END) {
+                    int inserted = resolver.bulkInsert(DiscEntry.CONTENT_URI, batch.discs);
+                    run.imported(inserted);
+                    if (inserted < batch.discs.length) {
+                        run.reject((batch.discs.length - inserted) + " rows up to row "
+                                + batch.lastRow + " were refused by the database");
+                    }
+                    publish(run, false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * State of a running import, shared by its parser and its writer.
+     */
+    private static final class Run {
+
+        volatile boolean cancelled;
+        volatile long bytesRead;
+        volatile long totalBytes = -1;
+        volatile String error;
+
+        private int imported;
+        private int rejected;
+        private final List<String> rejects = new ArrayList<>();
+
+        /** Time the progress was last reported */
+        long publishedAt;
+
+        synchronized void imported(int count) {
+            imported += count;
+        }
+
+        synchronized void reject(String reason) {
+            rejected++;
+            if (rejects.size() < MAX_REJECTS) {
+                rejects.add(reason);
+            }
+        }
+
+        synchronized Progress progress() {
+            return new Progress(bytesRead, totalBytes, imported, rejected,
+                    Collections.unmodifiableList(new ArrayList<>(rejects)), cancelled, error);
+        }
+    }
+
+    /**
+     * Stream counting the bytes read from the file, for the progress.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final Run run;
+
+        CountingInputStream(InputStream in, Run run) {
+            super(in);
+            this.run = run;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                run.bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                run.bytesRead += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            run.bytesRead += skipped;
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped journal of the sells which haven't been written to the database yet, so they
+ * survive the process being killed before the {@link DiscSellQueue} writes them.
+ * <p>
+ * Appending a sell is a handful of stores into the mapped file: no system call, no fsync. The
+ * pages are written back by the kernel, so they survive the death of the process (but not a
+ * power loss). Every entry has a sequence number, the number following the one of the entry
+ * before, and a checksum written last; reading stops at the first entry whose sequence number
+ * or checksum doesn't match, so an entry torn by a kill is simply not there.
+ * <p>
+ * When the sells of a disc are written, the sequence number of the last entry they cover is
+ * stored in the {@link #MARKS_TABLE_NAME} table, in the same transaction. When the provider
+ * starts, it replays the entries of every disc past its mark, then empties the journal: a sell
+ * written before the kill is never applied twice, and a sell which wasn't is never lost. The
+ * sequence numbers go on from one emptied journal to the next, so the marks left behind never
+ * cover a newer entry.
+ */
+final class DiscJournal {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscJournal.class.getSimpleName();
+
+    /** Name of the journal file, next to the database */
+    static final String FILE_NAME = "sells.journal";
+
+    /** Name of the table holding the last journal entry written of each disc */
+    static final String MARKS_TABLE_NAME = "journal_marks";
+
+    /** ID of the disc of a mark */
+    static final String COLUMN_DISC_ID = "disc_id";
+
+    /** Sequence number of the last journal entry written of the disc */
+    static final String COLUMN_SEQ = "seq";
+
+    /** Sequence number of a sell which isn't in the journal */
+    static final long NO_SEQ = -1;
+
+    /** Size of the journal file */
+    static final int FILE_BYTES = 64 * 1024;
+
+    /** Marks a file written by this class */
+    private static final int MAGIC = 0x44534a31;
+
+    /** Magic number, then the sequence number of the first entry */
+    static final int HEADER_BYTES = 16;
+
+    /** Sequence number, disc ID, copies and checksum */
+    static final int ENTRY_BYTES = 24;
+
+    /** Bytes of an entry covered by its checksum */
+    private static final int CHECKED_BYTES = 20;
+
+    /** Largest number of entries of the file */
+    static final int CAPACITY = (FILE_BYTES - HEADER_BYTES) / ENTRY_BYTES;
+
+    /** Offset of the sequence number of the first entry in the header */
+    private static final int FIRST_SEQ_OFFSET = 8;
+
+    /** The mapped file */
+    private final MappedByteBuffer buffer;
+
+    /** Channel of the file, closed with the journal */
+    private final FileChannel channel;
+
+    /** Checksum of the entries, reused */
+    private final CRC32 crc = new CRC32();
+
+    /** Bytes of the entry being checked, reused */
+    private final byte[] checked = new byte[CHECKED_BYTES];
+
+    /** Sequence number of the first entry */
+    private long firstSeq;
+
+    /** Number of valid entries */
+    private int size;
+
+    private DiscJournal(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            // A new file, or one never written completely
+            firstSeq = 1;
+            buffer.putLong(FIRST_SEQ_OFFSET, firstSeq);
+            buffer.putInt(0, MAGIC);
+        } else {
+            firstSeq = buffer.getLong(FIRST_SEQ_OFFSET);
+        }
+        while (size < CAPACITY && isValid(size)) {
+            size++;
+        }
+    }
+
+    /**
+     * Return the journal file of the database of the given context.
+     */
+    static File getFile(Context context) {
+        return context.getDatabasePath(FILE_NAME);
+    }
+
+    /**
+     * Map the journal file, creating it if needed, and find the entries written before.
+     */
+    static DiscJournal open(File file) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+            return new DiscJournal(channel, buffer);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the number of entries of the journal.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Append the sell of the given copies of a disc. Return the sequence number of the entry,
+     * or {@link #NO_SEQ} if the journal is full.
+     */
+    synchronized long append(long discId, int copies) {
+        if (size == CAPACITY) {
+            return NO_SEQ;
+        }
+        long seq = firstSeq + size;
+        int offset = offset(size);
+        buffer.putLong(offset, seq);
+        buffer.putLong(offset + 8, discId);
+        buffer.putInt(offset + 16, copies);
+        // Written last, so a torn entry never has a matching checksum
+        buffer.putInt(offset + CHECKED_BYTES, checksum(offset));
+        size++;
+        return seq;
+    }
+
+    /**
+     * Empty the journal, once all its entries have been written. The next entry follows the
+     * last one.
+     */
+    synchronized void reset() {
+        if (size == 0) {
+            return;
+        }
+        // The old entries can't match the new sequence numbers, no need to erase them
+        firstSeq += size;
+        buffer.putLong(FIRST_SEQ_OFFSET, firstSeq);
+        size = 0;
+    }
+
+    /**
+     * Close the file. The journal can't be used afterwards.
+     */
+    synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to close the journal", e);
+        }
+    }
+
+    /**
+     * Apply the entries of the journal which are past the mark of their disc, a single sale
+     * per disc, and mark them in the same transaction. Return the number of copies sold.
+     */
+    synchronized int replay(SQLiteDatabase db, DiscStatements statements) {
+        LongSparseArray<Long> marks = new LongSparseArray<>();
+        Cursor cursor = db.query(MARKS_TABLE_NAME, new String[]{COLUMN_DISC_ID, COLUMN_SEQ},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                marks.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // Copies sold and last sequence number of every disc, past its mark
+        LongSparseArray<long[]> sales = new LongSparseArray<>();
+        for (int i = 0; i < size; i++) {
+            int offset = offset(i);
+            long seq = buffer.getLong(offset);
+            long discId = buffer.getLong(offset + 8);
+            if (seq <= marks.get(discId, NO_SEQ)) {
+                continue;
+            }
+            long[] sale = sales.get(discId);
+            if (sale == null) {
+                sale = new long[2];
+                sales.put(discId, sale);
+            }
+            sale[0] += buffer.getInt(offset + 16);
+            sale[1] = seq;
+        }
+
+        int sold = 0;
+        for (int i = 0; i < sales.size(); i++) {
+            long discId = sales.keyAt(i);
+            long[] sale = sales.valueAt(i);
+            if (statements.adjustQuantity(discId, -sale[0], LedgerEntry.REASON_SALE, sale[1])
+                    == -1) {
+                Log.w(LOG_TAG, "Dropped " + sale[0] + " copies of disc " + discId
+                        + ", not enough in stock");
+            } else {
+                sold += sale[0];
+            }
+        }
+        return sold;
+    }
+
+    /**
+     * Delete the marks, once the journal has been emptied.
+     */
+    static void clearMarks(SQLiteDatabase db) {
+        db.delete(MARKS_TABLE_NAME, null, null);
+    }
+
+    private static int offset(int index) {
+        return HEADER_BYTES + index * ENTRY_BYTES;
+    }
+
+    /**
+     * Return true if the entry at the given index is complete and follows the entry before.
+     */
+    private boolean isValid(int index) {
+        int offset = offset(index);
+        return buffer.getLong(offset) == firstSeq + index
+                && buffer.getInt(offset + CHECKED_BYTES) == checksum(offset);
+    }
+
+    private int checksum(int offset) {
+        for (int i = 0; i < CHECKED_BYTES; i++) {
+            checked[i] = buffer.get(offset + i);
+        }
+        crc.reset();
+        crc.update(checked, 0, CHECKED_BYTES);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+/**
+ * Ledger of the quantity changes of the discs. Every change is appended to the
+ * {@link LedgerEntry#TABLE_NAME} table in the same transaction as the write to the discs table,
+ * whose quantity column is the projection of the events: for every disc, its quantity is the
+ * quantity of its latest daily snapshot (or 0) plus the deltas of its events still in the ledger.
+ * <p>
+ * The events older than {@link #RETENTION_DAYS} are regularly folded into the
+ * {@link #SNAPSHOT_TABLE_NAME} table by {@link #compact}, one day at a time, so the ledger only
+ * holds the recent events. A snapshot holds the quantity of a disc at the end of a day, and the
+ * number of copies sold that day.
+ */
+final class DiscLedger {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscLedger.class.getSimpleName();
+
+    /** Name of the table of daily snapshots */
+    static final String SNAPSHOT_TABLE_NAME = "disc_snapshots";
+
+    /** Column of the snapshots holding the {@link DiscEntry#_ID} of the disc */
+    static final String COLUMN_DISC_ID = LedgerEntry.COLUMN_DISC_ID;
+
+    /** Column of the snapshots holding the day, in days since the epoch (UTC) */
+    static final String COLUMN_DAY = "day";
+
+    /** Column of the snapshots holding the quantity at the end of the day */
+    static final String COLUMN_QUANTITY = "quantity";
+
+    /** Column of the snapshots holding the number of copies sold during the day */
+    static final String COLUMN_SOLD = "sold";
+
+    /** Length of a day, in milliseconds */
+    static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** Number of days the events are kept in the ledger before being folded into snapshots */
+    static final int RETENTION_DAYS = 7;
+
+    /**
+     * SQL statement used to append a single event
+     */
+    static final String SQL_APPEND = "INSERT INTO " + LedgerEntry.TABLE_NAME + " ("
+            + LedgerEntry.COLUMN_DISC_ID + ", "
+            + LedgerEntry.COLUMN_DELTA + ", "
+            + LedgerEntry.COLUMN_TIMESTAMP + ", "
+            + LedgerEntry.COLUMN_REASON + ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * Start of the SQL statements appending one event per disc, computed from the discs table
+     */
+    private static final String SQL_APPEND_SELECT = "INSERT INTO " + LedgerEntry.TABLE_NAME + " ("
+            + LedgerEntry.COLUMN_DISC_ID + ", "
+            + LedgerEntry.COLUMN_DELTA + ", "
+            + LedgerEntry.COLUMN_TIMESTAMP + ", "
+            + LedgerEntry.COLUMN_REASON + ") SELECT " + DiscEntry._ID + ", ";
+
+    /**
+     * SQL statement used to append the change made by setting the quantity of a single disc,
+     * before the disc is updated. Nothing is appended if the quantity doesn't change.
+     * Parameters: new quantity, timestamp, ID, new quantity.
+     */
+    static final String SQL_APPEND_QUANTITY_SET = SQL_APPEND_SELECT + "? - "
+            + DiscEntry.COLUMN_DISC_QUANTITY + ", ?, '" + LedgerEntry.REASON_EDIT + "' FROM "
+            + DiscEntry.TABLE_NAME + " WHERE " + DiscEntry._ID + " = ? AND "
+            + DiscEntry.COLUMN_DISC_QUANTITY + " <> ?";
+
+    /**
+     * SQL statement used to append the removal of the copies of a single disc, before the disc
+     * is deleted. Parameters: timestamp, ID.
+     */
+    static final String SQL_APPEND_REMOVAL = SQL_APPEND_SELECT + "-"
+            + DiscEntry.COLUMN_DISC_QUANTITY + ", ?, '" + LedgerEntry.REASON_REMOVED + "' FROM "
+            + DiscEntry.TABLE_NAME + " WHERE " + DiscEntry._ID + " = ? AND "
+            + DiscEntry.COLUMN_DISC_QUANTITY + " <> 0";
+
+    private DiscLedger() {}
+
+    /**
+     * Append an event for the current quantity of every disc matching the selection, multiplied
+     * by sign: 1 for the copies of discs just inserted, -1 for the copies of discs about to be
+     * deleted. Discs out of stock get no event.
+     */
+    static void appendQuantities(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                 int sign, String reason, long timestamp) {
+        db.execSQL(SQL_APPEND_SELECT + sign + " * " + DiscEntry.COLUMN_DISC_QUANTITY + ", "
+                        + timestamp + ", " + DatabaseUtils.sqlEscapeString(reason)
+                        + " FROM " + DiscEntry.TABLE_NAME + " WHERE "
+                        + DatabaseUtils.concatenateWhere(DiscEntry.COLUMN_DISC_QUANTITY + " <> 0",
+                        selection),
+                selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Append the change made by setting the quantity of every disc matching the selection to the
+     * given quantity, before the discs are updated. Discs already at that quantity get no event.
+     */
+    static void appendQuantitySet(SQLiteDatabase db, String selection, String[] selectionArgs,
+                                  long quantity, long timestamp) {
+        db.execSQL(SQL_APPEND_SELECT + quantity + " - " + DiscEntry.COLUMN_DISC_QUANTITY + ", "
+                        + timestamp + ", '" + LedgerEntry.REASON_EDIT + "' FROM "
+                        + DiscEntry.TABLE_NAME + " WHERE "
+                        + DatabaseUtils.concatenateWhere(DiscEntry.COLUMN_DISC_QUANTITY + " <> "
+                        + quantity, selection),
+                selectionArgs == null ? new Object[0] : selectionArgs);
+    }
+
+    /**
+     * Fold the events older than the day of the cutoff time into daily snapshots, one day per
+     * transaction so the database is never locked for long. Return the number of days folded.
+     */
+    static int compact(SQLiteDatabase db, long cutoffMillis) {
+        long cutoffDay = cutoffMillis / DAY_MILLIS;
+        int days = 0;
+        while (true) {
+            String oldest = DatabaseUtils.stringForQuery(db, "SELECT MIN("
+                    + LedgerEntry.COLUMN_TIMESTAMP + ") FROM " + LedgerEntry.TABLE_NAME, null);
+            if (oldest == null || Long.parseLong(oldest) / DAY_MILLIS >= cutoffDay) {
+                break;
+            }
+            compactDay(db, Long.parseLong(oldest) / DAY_MILLIS);
+            days++;
+        }
+        if (days > 0) {
+            Log.i(LOG_TAG, "Folded " + days + " days of events into snapshots");
+        }
+        return days;
+    }
+
+    /**
+     * Fold all the events up to the end of the given day into snapshots of that day. If the
+     * clock went back, events may be older than the latest snapshot; they are then folded into
+     * the day of the latest snapshot instead, which stays the latest one.
+     */
+    private static void compactDay(SQLiteDatabase db, long eventDay) {
+        db.beginTransaction();
+        try {
+            String latestDay = DatabaseUtils.stringForQuery(db, "SELECT MAX(" + COLUMN_DAY
+                    + ") FROM " + SNAPSHOT_TABLE_NAME, null);
+            long day = latestDay == null ? eventDay : Math.max(eventDay, Long.parseLong(latestDay));
+            long dayEnd = (eventDay + 1) * DAY_MILLIS;
+
+            String snapshotOfDisc = " FROM " + SNAPSHOT_TABLE_NAME + " s WHERE s." + COLUMN_DISC_ID
+                    + " = l." + LedgerEntry.COLUMN_DISC_ID;
+            db.execSQL("INSERT OR REPLACE INTO " + SNAPSHOT_TABLE_NAME + " ("
+                            + TextUtils.join(", ", new String[]{COLUMN_DISC_ID, COLUMN_DAY,
+                            COLUMN_QUANTITY, COLUMN_SOLD}) + ") SELECT "
+                            + "l." + LedgerEntry.COLUMN_DISC_ID + ", " + day + ", "
+                            + "IFNULL((SELECT s." + COLUMN_QUANTITY + snapshotOfDisc
+                            + " ORDER BY s." + COLUMN_DAY + " DESC LIMIT 1), 0)"
+                            + " + SUM(l." + LedgerEntry.COLUMN_DELTA + "), "
+                            + "IFNULL((SELECT s." + COLUMN_SOLD + snapshotOfDisc
+                            + " AND s." + COLUMN_DAY + " = " + day + "), 0)"
+                            + " + SUM(CASE WHEN l." + LedgerEntry.COLUMN_REASON + " = '"
+                            + LedgerEntry.REASON_SALE + "' THEN -l." + LedgerEntry.COLUMN_DELTA
+                            + " ELSE 0 END)"
+                            + " FROM " + LedgerEntry.TABLE_NAME + " l"
+                            + " WHERE l." + LedgerEntry.COLUMN_TIMESTAMP + " < ?"
+                            + " GROUP BY l." + LedgerEntry.COLUMN_DISC_ID,
+                    new Object[]{dayEnd});
+            db.delete(LedgerEntry.TABLE_NAME, LedgerEntry.COLUMN_TIMESTAMP + " < ?",
+                    new String[]{String.valueOf(dayEnd)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.inventoryapp.data;
+
+import com.example.android.inventoryapp.data.DiscSyncBatch.Row;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stand-in for the inventory server, kept in memory in the same process. It resolves the
+ * changes the same way as the real server (see {@link DiscSyncServer}), and exchanges the same
+ * encoded batches, so several devices can be synced against it without any network, e.g. to
+ * load test the sync with many devices writing at once.
+ * <p>
+ * Every call is synchronized, as the calls of a real server are serialized by its database.
+ */
+final class DiscLocalSyncServer implements DiscSyncServer {
+
+    /** State of every disc, by sync ID */
+    private final Map<ByteBuffer, Disc> discs = new HashMap<>();
+
+    /** State of every disc, by revision */
+    private final TreeMap<Long, Disc> revisions = new TreeMap<>();
+
+    /** Last revision given out */
+    private long lastRevision;
+
+    /** Number of changes pushed from a revision older than the one of the server */
+    private int conflicts;
+
+    /**
+     * State of a disc on the server.
+     */
+    private static final class Disc {
+
+        /** Latest row of the disc, whose total is unused */
+        Row row;
+
+        /** Total change of quantity applied of every device, by device ID */
+        final Map<ByteBuffer, Long> totals = new HashMap<>();
+
+        /**
+         * Return the row of the disc sent to the given device.
+         */
+        Row rowFor(ByteBuffer device) {
+            if (row.deleted) {
+                return row;
+            }
+            Long total = totals.get(device);
+            return new Row(row.syncId, row.revision, row.modified, false, row.quantity,
+                    total == null ? 0 : total, row.price, row.image, row.artist, row.title);
+        }
+    }
+
+    @Override
+    public synchronized byte[] pull(byte[] deviceId, long revision, int limit) {
+        ByteBuffer device = ByteBuffer.wrap(deviceId);
+        List<Row> batch = new ArrayList<>();
+        long upTo = lastRevision;
+        boolean more = false;
+        for (Disc disc : revisions.tailMap(revision, false).values()) {
+            if (batch.size() == limit) {
+                upTo = batch.get(batch.size() - 1).revision;
+                more = true;
+                break;
+            }
+            batch.add(disc.rowFor(device));
+        }
+        return new DiscSyncBatch(batch, upTo, more).encode();
+    }
+
+    @Override
+    public synchronized byte[] push(byte[] deviceId, byte[] changes) throws IOException {
+        ByteBuffer device = ByteBuffer.wrap(deviceId);
+        DiscSyncBatch batch = DiscSyncBatch.decode(changes);
+        List<Row> results = new ArrayList<>(batch.rows.size());
+        for (Row change : batch.rows) {
+            results.add(apply(device, change).rowFor(device));
+        }
+        return new DiscSyncBatch(results, lastRevision, false).encode();
+    }
+
+    /**
+     * Return the number of discs known to the server, deleted ones included.
+     */
+    synchronized int size() {
+        return discs.size();
+    }
+
+    /**
+     * Return the number of changes pushed from a revision older than the one of the server.
+     */
+    synchronized int getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * Return the latest row of the disc with the given sync ID, or null if the server doesn't
+     * know it.
+     */
+    synchronized Row get(byte[] syncId) {
+        Disc disc = discs.get(ByteBuffer.wrap(syncId));
+        return disc == null ? null : disc.row;
+    }
+
+    /**
+     * Apply a change pushed by a device, and return the resulting state of the disc.
+     */
+    private Disc apply(ByteBuffer device, Row change) {
+        ByteBuffer key = ByteBuffer.wrap(change.syncId);
+        Disc disc = discs.get(key);
+        if (disc != null && disc.row.deleted) {
+            return disc;
+        }
+        if (disc == null) {
+            disc = new Disc();
+            discs.put(key, disc);
+        } else {
+            revisions.remove(disc.row.revision);
+            if (change.revision != disc.row.revision) {
+                conflicts++;
+            }
+        }
+
+        if (change.deleted) {
+            disc.row = Row.deleted(change.syncId, ++lastRevision, change.modified);
+            disc.totals.clear();
+        } else {
+            // Only the part of the total of the device not applied yet changes the quantity
+            Long applied = disc.totals.get(device);
+            long quantity = (disc.row == null ? 0 : disc.row.quantity) + change.total
+                    - (applied == null ? 0 : applied);
+            disc.totals.put(device, change.total);
+
+            Row fields = disc.row == null || change.revision == disc.row.revision
+                    || change.modified > disc.row.modified ? change : disc.row;
+            disc.row = new Row(change.syncId, ++lastRevision, fields.modified, false,
+                    (int) Math.max(0, Math.min(Integer.MAX_VALUE, quantity)), 0, fields.price,
+                    fields.image, fields.artist, fields.title);
+        }
+        revisions.put(disc.row.revision, disc);
+        return disc;
+    }
+}
@@ -0,0 +1,551 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+import com.example.android.inventoryapp.data.DiscContract.ReportEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+import com.example.android.inventoryapp.data.DiscContract.SyncEntry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.android.inventoryapp.data.DiscContract.DiscEntry.TABLE_NAME;
+
+/**
+ * Schema migrations of the discs database. The database is created with the version 1 schema,
+ * then every {@link Step} up to the current version is applied in order, so a new install and
+ * an upgraded one always end up with the same schema.
+ * <p>
+ * Each step is committed in its own transaction together with the version it leads to. If the
+ * app is killed during an upgrade, the steps already applied are kept and the next start
+ * resumes with the step which was interrupted. Steps copying many rows commit them a chunk at
+ * a time (see {@link #copyInChunks} and {@link #rebuildTable}), so an upgrade never needs a
+ * journal as large as the table.
+ */
+final class DiscMigrations {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscMigrations.class.getSimpleName();
+
+    /** Number of rows copied by each transaction of a chunked copy */
+    static final int CHUNK_ROWS = 10000;
+
+    /**
+     * Expression which is 1 for a disc running low, 0 otherwise, where "%s" stands for the
+     * row ("new" or "old" in a trigger)
+     */
+    private static final String LOW_STOCK_OF = "(%s." + DiscEntry.COLUMN_DISC_QUANTITY + " <= "
+            + DiscEntry.LOW_STOCK_QUANTITY + ")";
+
+    /**
+     * Same as {@link #LOW_STOCK_OF}, for the rows of a query
+     */
+    private static final String LOW_STOCK = "(" + DiscEntry.COLUMN_DISC_QUANTITY + " <= "
+            + DiscEntry.LOW_STOCK_QUANTITY + ")";
+
+    /**
+     * Migration from one version of the schema to the next one.
+     */
+    abstract static class Step {
+
+        /** Version of the schema once the step has been applied */
+        final int version;
+
+        /** Short description of the step, used in the logs */
+        final String description;
+
+        Step(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        /**
+         * Apply the step to the database, which is at the previous version. A step may commit
+         * its work in several transactions through {@link #commit(SQLiteDatabase)}, as long as
+         * it can resume from any of those commits.
+         */
+        abstract void apply(SQLiteDatabase db);
+    }
+
+    /**
+     * Receives the time spent on each step of an upgrade.
+     */
+    interface Listener {
+
+        /**
+         * Called once the given step has been committed.
+         */
+        void onStepApplied(Step step, long millis);
+    }
+
+    /**
+     * All the steps, ordered by version. A schema change is made by adding a step at the end
+     * and incrementing the database version, never by changing a step which has shipped.
+     */
+    static final List<Step> STEPS = Collections.unmodifiableList(Arrays.asList(
+            new Step(2, "Create the full-text search index") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS "
+                            + DiscDBHelper.SEARCH_TABLE_NAME + " USING fts4("
+                            + DiscEntry.COLUMN_DISC_ARTIST + ", "
+                            + DiscEntry.COLUMN_DISC_TITLE + ");");
+                    commit(db);
+
+                    // Index the discs which already exist, then keep the index up to date
+                    copyInChunks(db, DiscDBHelper.SEARCH_TABLE_NAME, "docid, "
+                                    + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE,
+                            TABLE_NAME, DiscEntry._ID + ", " + DiscEntry.COLUMN_DISC_ARTIST + ", "
+                                    + DiscEntry.COLUMN_DISC_TITLE);
+                    createSearchTriggers(db);
+                }
+            },
+            new Step(3, "Rebuild the discs table with checks on price and quantity") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // Negative values which may have been stored before are clamped to 0
+                    rebuildTable(db, TABLE_NAME, "CREATE TABLE %s ("
+                                    + DiscEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                                    + DiscEntry.COLUMN_DISC_IMAGE + " TEXT NOT NULL, "
+                                    + DiscEntry.COLUMN_DISC_ARTIST + " TEXT NOT NULL, "
+                                    + DiscEntry.COLUMN_DISC_TITLE + " TEXT NOT NULL, "
+                                    + DiscEntry.COLUMN_DISC_PRICE + " INTEGER NOT NULL DEFAULT 0"
+                                    + " CHECK (" + DiscEntry.COLUMN_DISC_PRICE + " >= 0), "
+                                    + DiscEntry.COLUMN_DISC_QUANTITY + " INTEGER NOT NULL DEFAULT 0"
+                                    + " CHECK (" + DiscEntry.COLUMN_DISC_QUANTITY + " >= 0));",
+                            DiscEntry._ID + ", " + DiscEntry.COLUMN_DISC_IMAGE + ", "
+                                    + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE
+                                    + ", " + DiscEntry.COLUMN_DISC_PRICE + ", "
+                                    + DiscEntry.COLUMN_DISC_QUANTITY,
+                            DiscEntry._ID + ", " + DiscEntry.COLUMN_DISC_IMAGE + ", "
+                                    + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE
+                                    + ", MAX(" + DiscEntry.COLUMN_DISC_PRICE + ", 0), MAX("
+                                    + DiscEntry.COLUMN_DISC_QUANTITY + ", 0)");
+
+                    // The triggers of the search index were dropped with the old table
+                    createSearchTriggers(db);
+                }
+            },
+            new Step(4, "Create the indexes of the sort orders") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    createSortIndexes(db);
+                }
+            },
+            new Step(5, "Create the inventory totals") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + StatsEntry.TABLE_NAME + " ("
+                            + StatsEntry._ID + " INTEGER PRIMARY KEY CHECK (" + StatsEntry._ID + " = 1), "
+                            + StatsEntry.COLUMN_DISC_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                            + StatsEntry.COLUMN_UNIT_COUNT + " INTEGER NOT NULL DEFAULT 0, "
+                            + StatsEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL DEFAULT 0, "
+                            + StatsEntry.COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+
+                    // Compute the totals of the discs which already exist once, in the same
+                    // transaction which creates the triggers keeping them up to date
+                    db.execSQL("INSERT OR REPLACE INTO " + StatsEntry.TABLE_NAME + " ("
+                            + StatsEntry._ID + ", " + StatsEntry.COLUMN_DISC_COUNT + ", "
+                            + StatsEntry.COLUMN_UNIT_COUNT + ", " + StatsEntry.COLUMN_STOCK_VALUE + ", "
+                            + StatsEntry.COLUMN_LOW_STOCK_COUNT + ") SELECT 1, COUNT(*), "
+                            + "IFNULL(SUM(" + DiscEntry.COLUMN_DISC_QUANTITY + "), 0), "
+                            + "IFNULL(SUM(" + DiscEntry.COLUMN_DISC_PRICE + " * "
+                            + DiscEntry.COLUMN_DISC_QUANTITY + "), 0), "
+                            + "IFNULL(SUM(" + LOW_STOCK + "), 0) FROM " + TABLE_NAME + ";");
+                    createStatsTriggers(db);
+                }
+            },
+            new Step(6, "Create the ledger of quantity changes") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + LedgerEntry.TABLE_NAME + " ("
+                            + LedgerEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + LedgerEntry.COLUMN_DISC_ID + " INTEGER NOT NULL, "
+                            + LedgerEntry.COLUMN_DELTA + " INTEGER NOT NULL, "
+                            + LedgerEntry.COLUMN_TIMESTAMP + " INTEGER NOT NULL, "
+                            + LedgerEntry.COLUMN_REASON + " TEXT NOT NULL);");
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + LedgerEntry.TABLE_NAME
+                            + "_timestamp_index ON " + LedgerEntry.TABLE_NAME + " ("
+                            + LedgerEntry.COLUMN_TIMESTAMP + ");");
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + DiscLedger.SNAPSHOT_TABLE_NAME + " ("
+                            + DiscLedger.COLUMN_DISC_ID + " INTEGER NOT NULL, "
+                            + DiscLedger.COLUMN_DAY + " INTEGER NOT NULL, "
+                            + DiscLedger.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                            + DiscLedger.COLUMN_SOLD + " INTEGER NOT NULL DEFAULT 0, "
+                            + "PRIMARY KEY (" + DiscLedger.COLUMN_DISC_ID + ", "
+                            + DiscLedger.COLUMN_DAY + "));");
+
+                    // The quantities of the discs which already exist are their first events,
+                    // so every quantity is the sum of its events from the start
+                    DiscLedger.appendQuantities(db, null, null, 1, LedgerEntry.REASON_RECEIVED,
+                            System.currentTimeMillis());
+                }
+            },
+            new Step(7, "Create the sales rollups") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + DiscReports.ROLLUP_TABLE_NAME + " ("
+                            + DiscReports.COLUMN_GRANULARITY + " TEXT NOT NULL, "
+                            + DiscReports.COLUMN_DISC_ID + " INTEGER NOT NULL, "
+                            + DiscReports.COLUMN_BUCKET_START + " INTEGER NOT NULL, "
+                            + DiscReports.COLUMN_UNITS + " INTEGER NOT NULL DEFAULT 0, "
+                            + "PRIMARY KEY (" + DiscReports.COLUMN_GRANULARITY + ", "
+                            + DiscReports.COLUMN_DISC_ID + ", " + DiscReports.COLUMN_BUCKET_START
+                            + "));");
+
+                    // The series of a disc are read through the primary key, the top sellers
+                    // of a time range through this index
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + DiscReports.ROLLUP_TABLE_NAME
+                            + "_bucket_index ON " + DiscReports.ROLLUP_TABLE_NAME + " ("
+                            + DiscReports.COLUMN_GRANULARITY + ", "
+                            + DiscReports.COLUMN_BUCKET_START + ");");
+
+                    // Roll up the sales recorded so far: the events still in the ledger and the
+                    // daily snapshots of the older ones, which have no hour buckets
+                    StringBuilder sales = new StringBuilder();
+                    for (String granularity : DiscReports.GRANULARITIES) {
+                        if (sales.length() > 0) {
+                            sales.append(" UNION ALL ");
+                        }
+                        sales.append("SELECT '").append(granularity).append("' AS g, ")
+                                .append(LedgerEntry.COLUMN_DISC_ID).append(" AS disc, ")
+                                .append(DiscReports.bucketStart(granularity,
+                                        LedgerEntry.COLUMN_TIMESTAMP))
+                                .append(" AS bucket, -").append(LedgerEntry.COLUMN_DELTA)
+                                .append(" AS units FROM ").append(LedgerEntry.TABLE_NAME)
+                                .append(" WHERE ").append(LedgerEntry.COLUMN_REASON).append(" = '")
+                                .append(LedgerEntry.REASON_SALE).append("'");
+                        if (!granularity.equals(ReportEntry.GRANULARITY_HOUR)) {
+                            sales.append(" UNION ALL SELECT '").append(granularity).append("', ")
+                                    .append(DiscLedger.COLUMN_DISC_ID).append(", ")
+                                    .append(DiscReports.bucketStart(granularity,
+                                            DiscLedger.COLUMN_DAY + " * " + DiscLedger.DAY_MILLIS))
+                                    .append(", ").append(DiscLedger.COLUMN_SOLD).append(" FROM ")
+                                    .append(DiscLedger.SNAPSHOT_TABLE_NAME).append(" WHERE ")
+                                    .append(DiscLedger.COLUMN_SOLD).append(" > 0");
+                        }
+                    }
+                    String columns = DiscReports.COLUMN_GRANULARITY + ", " + DiscReports.COLUMN_DISC_ID
+                            + ", " + DiscReports.COLUMN_BUCKET_START + ", " + DiscReports.COLUMN_UNITS;
+                    db.execSQL("INSERT OR REPLACE INTO " + DiscReports.ROLLUP_TABLE_NAME + " ("
+                            + columns + ") SELECT g, disc, bucket, SUM(units) FROM (" + sales
+                            + ") GROUP BY g, disc, bucket;");
+                    db.execSQL("INSERT OR REPLACE INTO " + DiscReports.ROLLUP_TABLE_NAME + " ("
+                            + columns + ") SELECT " + DiscReports.COLUMN_GRANULARITY + ", "
+                            + ReportEntry.ALL_DISCS + ", " + DiscReports.COLUMN_BUCKET_START
+                            + ", SUM(" + DiscReports.COLUMN_UNITS + ") FROM "
+                            + DiscReports.ROLLUP_TABLE_NAME + " GROUP BY "
+                            + DiscReports.COLUMN_GRANULARITY + ", " + DiscReports.COLUMN_BUCKET_START
+                            + ";");
+                    DiscReports.createRollupTrigger(db);
+                }
+            },
+            new Step(8, "Create the marks of the sell journal") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE IF NOT EXISTS " + DiscJournal.MARKS_TABLE_NAME + " ("
+                            + DiscJournal.COLUMN_DISC_ID + " INTEGER PRIMARY KEY, "
+                            + DiscJournal.COLUMN_SEQ + " INTEGER NOT NULL);");
+                }
+            },
+            new Step(9, "Add the version of the discs") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    // A column with a constant default is added without rewriting the rows, so
+                    // the table keeps its indexes and triggers
+                    db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                            + DiscEntry.COLUMN_DISC_VERSION + " INTEGER NOT NULL DEFAULT 0;");
+                    createVersionTrigger(db);
+                }
+            },
+            new Step(10, "Create the change log of the sync") {
+                @Override
+                void apply(SQLiteDatabase db) {
+                    DiscSyncLog.createTables(db);
+                    commit(db);
+
+                    // Give the discs which already exist their sync IDs, then record them all
+                    // as changed, so the first sync pushes them
+                    copyInChunks(db, DiscSyncLog.ROWS_TABLE_NAME, DiscSyncLog.COLUMN_DISC_ID
+                                    + ", " + SyncEntry.COLUMN_SYNC_ID, TABLE_NAME,
+                            DiscEntry._ID + ", randomblob(" + DiscSyncBatch.SYNC_ID_BYTES + ")");
+                    DiscSyncLog.recordAllDiscs(db);
+                    DiscSyncLog.createTriggers(db);
+                }
+            }));
+
+
+    private DiscMigrations() {}
+
+    /**
+     * Return the version the database is at once all the steps have been applied.
+     */
+    static int headVersion() {
+        return STEPS.get(STEPS.size() - 1).version;
+    }
+
+    /**
+     * Create the first version of the schema, which every database starts from.
+     */
+    static void createVersion1(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + DiscEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + DiscEntry.COLUMN_DISC_IMAGE + " TEXT NOT NULL, "
+                + DiscEntry.COLUMN_DISC_ARTIST + " TEXT NOT NULL, "
+                + DiscEntry.COLUMN_DISC_TITLE + " TEXT NOT NULL, "
+                + DiscEntry.COLUMN_DISC_PRICE + " INTEGER NOT NULL DEFAULT 0, "
+                + DiscEntry.COLUMN_DISC_QUANTITY + " INTEGER NOT NULL DEFAULT 0);");
+        db.setVersion(1);
+    }
+
+    /**
+     * Apply the steps leading from oldVersion to newVersion, each one committed together with
+     * the version it leads to. Must be called inside a transaction (as in
+     * {@link android.database.sqlite.SQLiteOpenHelper#onUpgrade}), which is left open.
+     */
+    static void upgrade(SQLiteDatabase db, int oldVersion, int newVersion, Listener listener) {
+        for (Step step : STEPS) {
+            if (step.version <= oldVersion || step.version > newVersion) {
+                continue;
+            }
+            long start = SystemClock.elapsedRealtime();
+            step.apply(db);
+            db.setVersion(step.version);
+            commit(db);
+            long millis = SystemClock.elapsedRealtime() - start;
+
+            Log.i(LOG_TAG, "Upgraded to version " + step.version + " (" + step.description
+                    + ") in " + millis + " ms");
+            if (listener != null) {
+                listener.onStepApplied(step, millis);
+            }
+        }
+    }
+
+    /**
+     * Commit the current transaction and start a new one.
+     */
+    static void commit(SQLiteDatabase db) {
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        db.beginTransaction();
+    }
+
+    /**
+     * Copy the rows of the source table into the target table, in order of their
+     * {@link DiscEntry#_ID} and a chunk at a time. Only the source rows with an ID greater than
+     * the largest rowid of the target are copied, so an interrupted copy carries on where it
+     * stopped. The source expressions are evaluated for every row and inserted into the target
+     * columns; the first of them has to be the ID, inserted as the rowid of the target.
+     */
+    static void copyInChunks(SQLiteDatabase db, String target, String targetColumns,
+                             String source, String sourceExpressions) {
+        long lastId = DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(MAX(rowid), 0) FROM " + target, null);
+        SQLiteStatement copy = db.compileStatement("INSERT INTO " + target + " ("
+                + targetColumns + ") SELECT " + sourceExpressions + " FROM " + source
+                + " WHERE " + DiscEntry._ID + " > ? ORDER BY " + DiscEntry._ID
+                + " LIMIT " + CHUNK_ROWS);
+        SQLiteStatement selectLastId = db.compileStatement(
+                "SELECT IFNULL(MAX(rowid), 0) FROM " + target);
+        try {
+            while (true) {
+                copy.bindLong(1, lastId);
+                if (copy.executeUpdateDelete() == 0) {
+                    break;
+                }
+                lastId = selectLastId.simpleQueryForLong();
+                commit(db);
+            }
+        } finally {
+            copy.close();
+            selectLastId.close();
+        }
+    }
+
+    /**
+     * Replace a table by a new one created with the given statement (where "%s" stands for the
+     * table name), to make changes ALTER TABLE can't do. The rows are copied a chunk at a time
+     * into a temporary table, which then replaces the old one, keeping the AUTOINCREMENT
+     * sequence so IDs are never reused. The indexes and triggers of the old table are dropped
+     * with it, the calling step has to create them again.
+     */
+    static void rebuildTable(SQLiteDatabase db, String table, String createSql,
+                             String columns, String sourceExpressions) {
+        String newTable = table + "_rebuild";
+
+        // The table may have been created by an interrupted run of the same step
+        if (!tableExists(db, newTable)) {
+            db.execSQL(String.format(createSql, newTable));
+            commit(db);
+        }
+        copyInChunks(db, newTable, columns, table, sourceExpressions);
+
+        // Swap the tables in a single transaction
+        long sequence = readSequence(db, table);
+        db.execSQL("DROP TABLE " + table);
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table);
+        if (sequence > readSequence(db, table)) {
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name = ?", new Object[]{table});
+            db.execSQL("INSERT INTO sqlite_sequence (name, seq) VALUES (?, ?)",
+                    new Object[]{table, sequence});
+        }
+    }
+
+    /**
+     * Return true if the table with the given name exists.
+     */
+    private static boolean tableExists(SQLiteDatabase db, String table) {
+        return DatabaseUtils.longForQuery(db,
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                new String[]{table}) > 0;
+    }
+
+    /**
+     * Return the last AUTOINCREMENT value given out for the table, or 0 if there is none.
+     */
+    private static long readSequence(SQLiteDatabase db, String table) {
+        Cursor cursor = db.rawQuery("SELECT seq FROM sqlite_sequence WHERE name = ?",
+                new String[]{table});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Create the trigger incrementing the version of a disc after every update which didn't
+     * increment it itself. The updates of the {@link DiscStatements} do, so they only write
+     * the row once. A step rebuilding the discs table has to create it again.
+     */
+    private static void createVersionTrigger(SQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + TABLE_NAME + "_version AFTER UPDATE ON "
+                + TABLE_NAME + " WHEN new." + DiscEntry.COLUMN_DISC_VERSION + " = old."
+                + DiscEntry.COLUMN_DISC_VERSION + " BEGIN UPDATE " + TABLE_NAME + " SET "
+                + DiscEntry.COLUMN_DISC_VERSION + " = old." + DiscEntry.COLUMN_DISC_VERSION
+                + " + 1 WHERE " + DiscEntry._ID + " = new." + DiscEntry._ID + "; END;");
+    }
+
+    /**
+     * Create an index for each of the {@link DiscSortOrder}s. The artist and title indexes use
+     * the same case-insensitive collation as the orders, and the low stock discs are indexed by
+     * a partial index, which only holds the few discs running low. SQLite older than 3.8.0
+     * (before Android 5.0) has no partial indexes, all the quantities are indexed instead.
+     */
+    private static void createSortIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_artist_index ON " + TABLE_NAME
+                + " (" + DiscEntry.COLUMN_DISC_ARTIST + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_title_index ON " + TABLE_NAME
+                + " (" + DiscEntry.COLUMN_DISC_TITLE + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_price_index ON " + TABLE_NAME
+                + " (" + DiscEntry.COLUMN_DISC_PRICE + ");");
+        String lowStockIndex = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_low_stock_index ON "
+                + TABLE_NAME + " (" + DiscEntry.COLUMN_DISC_QUANTITY + ")";
+        if (supportsPartialIndexes(db)) {
+            lowStockIndex += " WHERE " + DiscEntry.COLUMN_DISC_QUANTITY + " <= "
+                    + DiscEntry.LOW_STOCK_QUANTITY;
+        }
+        db.execSQL(lowStockIndex + ";");
+    }
+
+    /**
+     * Return true if the SQLite library supports partial indexes (version 3.8.0 and later).
+     */
+    private static boolean supportsPartialIndexes(SQLiteDatabase db) {
+        String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null)
+                .split("\\.");
+        int major = Integer.parseInt(version[0]);
+        int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+        return major > 3 || (major == 3 && minor >= 8);
+    }
+
+    /**
+     * Create the triggers which keep the inventory totals in sync with the discs table. Each of
+     * them only applies the difference made by the changed disc to the single row of totals.
+     * A step rebuilding the discs table drops them, and has to create them again.
+     */
+    private static void createStatsTriggers(SQLiteDatabase db) {
+        String statsTable = StatsEntry.TABLE_NAME;
+
+        // Add every new disc to the totals
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + statsTable + "_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN UPDATE " + statsTable + " SET "
+                + StatsEntry.COLUMN_DISC_COUNT + " = " + StatsEntry.COLUMN_DISC_COUNT + " + 1, "
+                + statsChange(null, "new") + "; END;");
+
+        // Only a change of price or quantity changes the totals
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + statsTable + "_update AFTER UPDATE OF "
+                + DiscEntry.COLUMN_DISC_PRICE + ", " + DiscEntry.COLUMN_DISC_QUANTITY
+                + " ON " + TABLE_NAME + " BEGIN UPDATE " + statsTable + " SET "
+                + statsChange("old", "new") + "; END;");
+
+        // Remove deleted discs from the totals
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + statsTable + "_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN UPDATE " + statsTable + " SET "
+                + StatsEntry.COLUMN_DISC_COUNT + " = " + StatsEntry.COLUMN_DISC_COUNT + " - 1, "
+                + statsChange("old", null) + "; END;");
+    }
+
+    /**
+     * Return the assignments of a trigger removing the removed row ("old", or null) from the
+     * unit count, stock value and low stock count, and adding the added row ("new", or null).
+     */
+    private static String statsChange(String removed, String added) {
+        String[] columns = {StatsEntry.COLUMN_UNIT_COUNT, StatsEntry.COLUMN_STOCK_VALUE,
+                StatsEntry.COLUMN_LOW_STOCK_COUNT};
+        String[] valuesOf = {"%s." + DiscEntry.COLUMN_DISC_QUANTITY,
+                "%s." + DiscEntry.COLUMN_DISC_PRICE + " * %<s." + DiscEntry.COLUMN_DISC_QUANTITY,
+                LOW_STOCK_OF};
+        StringBuilder assignments = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                assignments.append(", ");
+            }
+            assignments.append(columns[i]).append(" = ").append(columns[i]);
+            if (removed != null) {
+                assignments.append(" - ").append(String.format(valuesOf[i], removed));
+            }
+            if (added != null) {
+                assignments.append(" + ").append(String.format(valuesOf[i], added));
+            }
+        }
+        return assignments.toString();
+    }
+
+    /**
+     * Create the triggers which keep the search index in sync with the discs table.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db) {
+        String searchTable = DiscDBHelper.SEARCH_TABLE_NAME;
+
+        // Index every new disc
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + searchTable + "_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN INSERT INTO " + searchTable + " (docid, "
+                + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE + ")"
+                + " VALUES (new." + DiscEntry._ID + ", new." + DiscEntry.COLUMN_DISC_ARTIST
+                + ", new." + DiscEntry.COLUMN_DISC_TITLE + "); END;");
+
+        // Re-index a disc only when its artist or title changes, so selling it costs nothing
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + searchTable + "_update AFTER UPDATE OF "
+                + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE
+                + " ON " + TABLE_NAME
+                + " BEGIN UPDATE " + searchTable + " SET "
+                + DiscEntry.COLUMN_DISC_ARTIST + " = new." + DiscEntry.COLUMN_DISC_ARTIST + ", "
+                + DiscEntry.COLUMN_DISC_TITLE + " = new." + DiscEntry.COLUMN_DISC_TITLE
+                + " WHERE docid = old." + DiscEntry._ID + "; END;");
+
+        // Remove deleted discs from the index
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + searchTable + "_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN DELETE FROM " + searchTable
+                + " WHERE docid = old." + DiscEntry._ID + "; END;");
+    }
+}
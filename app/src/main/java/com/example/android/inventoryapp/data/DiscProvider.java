@@ -1,17 +1,39 @@
 package com.example.android.inventoryapp.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.example.android.inventoryapp.data.DiscContract.CallEntry;
 import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+import com.example.android.inventoryapp.data.DiscContract.ReportEntry;
+import com.example.android.inventoryapp.data.DiscContract.StatsEntry;
+import com.example.android.inventoryapp.data.DiscContract.SyncEntry;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Created by HiirMii on 2017-07-08.
@@ -37,6 +59,61 @@ public class DiscProvider extends ContentProvider {
      */
     private static final int DISC_ID = 101;
 
+    /**
+     * URI matcher code for the content URI used to sell one copy of a single disc
+     */
+    private static final int DISC_SELL = 102;
+
+    /**
+     * URI matcher code for the content URI used to adjust the quantity of a single disc
+     */
+    private static final int DISC_ADJUST = 103;
+
+    /**
+     * URI matcher code for the content URI used to search discs
+     */
+    private static final int DISCS_SEARCH = 104;
+
+    /**
+     * URI matcher code for the content URI of the inventory totals
+     */
+    private static final int DISCS_STATS = 105;
+
+    /**
+     * URI matcher code for the content URI of the top sellers report
+     */
+    private static final int REPORTS_TOP_SELLERS = 106;
+
+    /**
+     * URI matcher code for the content URI of the sales series report
+     */
+    private static final int REPORTS_SERIES = 107;
+
+    /**
+     * URI matcher code for the content URI of the CSV file of all the discs
+     */
+    private static final int DISCS_EXPORT = 108;
+
+    /**
+     * URI matcher code for the content URI of the sync state
+     */
+    private static final int SYNC = 109;
+
+    /**
+     * URI matcher code for the content URI of the discs changed since they were last pushed
+     */
+    private static final int SYNC_CHANGES = 110;
+
+    /**
+     * URI matcher code for the content URI the rows sent by the sync server are applied through
+     */
+    private static final int SYNC_ROWS = 111;
+
+    /**
+     * Value used instead of a disc ID for changes which may affect any disc
+     */
+    private static final long ANY_DISC = -1;
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -63,24 +140,218 @@ public class DiscProvider extends ContentProvider {
         // For example, "content://com.example.android.discs/discs/3" matches, but
         // "content://com.example.android.discs/discs" (without a number at the end) doesn't match.
         uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY, DiscContract.PATH_DISCS + "/#", DISC_ID);
+
+        // The content URI of the form "content://com.example.android.discs/discs/search?q=text"
+        // will map to the integer code {@link #DISCS_SEARCH}. This URI is used to search the
+        // discs by artist and title.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_DISCS + "/" + DiscContract.PATH_SEARCH, DISCS_SEARCH);
+
+        // The content URI of the form "content://com.example.android.discs/discs/stats" will map
+        // to the integer code {@link #DISCS_STATS}. This URI is used to read the single row of
+        // inventory totals.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_DISCS + "/" + DiscContract.PATH_STATS, DISCS_STATS);
+
+        // The content URI of the form "content://com.example.android.discs/discs/export"
+        // is opened as a CSV file of all the discs.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_DISCS + "/" + DiscContract.PATH_EXPORT, DISCS_EXPORT);
+
+        // The content URIs of the form "content://com.example.android.discs/reports/top_sellers"
+        // and "content://com.example.android.discs/reports/series" read the sales reports,
+        // with their time range given by query parameters.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_REPORTS + "/" + DiscContract.PATH_TOP_SELLERS, REPORTS_TOP_SELLERS);
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_REPORTS + "/" + DiscContract.PATH_SERIES, REPORTS_SERIES);
+
+        // The content URIs of the form "content://com.example.android.discs/discs/#/sell" and
+        // "content://com.example.android.discs/discs/#/adjust?delta=n" change the quantity
+        // of ONE single disc, without reading it first.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_DISCS + "/#/" + DiscContract.PATH_SELL, DISC_SELL);
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_DISCS + "/#/" + DiscContract.PATH_ADJUST, DISC_ADJUST);
+
+        // The content URIs of the form "content://com.example.android.discs/sync/..." are only
+        // used by the sync of the discs with the inventory server.
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY, DiscContract.PATH_SYNC, SYNC);
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_SYNC + "/" + DiscContract.PATH_CHANGES, SYNC_CHANGES);
+        uriMatcher.addURI(DiscContract.CONTENT_AUTHORITY,
+                DiscContract.PATH_SYNC + "/" + DiscContract.PATH_ROWS, SYNC_ROWS);
     }
 
+    /**
+     * Columns written by the compiled insert statement of {@link DiscStatements}
+     */
+    private static final Set<String> DISC_COLUMNS = new HashSet<>(Arrays.asList(
+            DiscEntry.COLUMN_DISC_IMAGE, DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE,
+            DiscEntry.COLUMN_DISC_PRICE, DiscEntry.COLUMN_DISC_QUANTITY));
+
     /**
      * Database helper object
      */
     private DiscDBHelper discDBHelper;
 
+    /**
+     * Notifier telling the observers which discs changed, coalescing bursts of changes
+     */
+    private DiscChangeNotifier changeNotifier;
+
+    /**
+     * Cache of the recent query results, made stale by every write
+     */
+    private final DiscQueryCache queryCache = new DiscQueryCache();
+
+    /**
+     * Compiled statements of the common writes, for the currently open database
+     */
+    private DiscStatements statements;
+
     @Override
     public boolean onCreate() {
         discDBHelper = new DiscDBHelper(getContext());
+        changeNotifier = new DiscChangeNotifier(getContext().getContentResolver());
+
+        // Write the sells the app was killed before writing, before any new sell is journaled
+        replayJournal();
+
+        // Fold the old events of the ledger into snapshots in the background, the database
+        // being opened (and upgraded if needed) by the same thread
+        Thread compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DiscLedger.compact(discDBHelper.getWritableDatabase(),
+                            System.currentTimeMillis()
+                                    - DiscLedger.RETENTION_DAYS * DiscLedger.DAY_MILLIS);
+                } catch (SQLException | IllegalStateException e) {
+                    // The days not folded yet are folded the next time the provider starts
+                    Log.e(LOG_TAG, "Failed to compact the ledger", e);
+                }
+            }
+        }, "DiscLedgerCompaction");
+        compaction.setPriority(Thread.MIN_PRIORITY);
+        compaction.start();
         return true;
     }
 
+    /**
+     * Apply the sells of the journal which weren't written to the database, then empty it.
+     * The journal is almost always empty, in which case the database isn't even opened.
+     */
+    private void replayJournal() {
+        DiscJournal journal;
+        try {
+            journal = DiscJournal.open(DiscJournal.getFile(getContext()));
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to open the sell journal", e);
+            return;
+        }
+        try {
+            if (journal.size() == 0) {
+                return;
+            }
+            SQLiteDatabase database = discDBHelper.getWritableDatabase();
+            int sold = journal.replay(database, statements());
+            Log.i(LOG_TAG, "Replayed " + journal.size() + " journaled sells, " + sold
+                    + " copies sold");
+            // The marks are only dropped once the entries they cover are gone
+            journal.reset();
+            DiscJournal.clearMarks(database);
+        } catch (SQLException e) {
+            // The journal is kept, and replayed the next time the provider starts
+            Log.e(LOG_TAG, "Failed to replay the sell journal", e);
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // Release the database, used by tests which create their own provider instance
+        synchronized (this) {
+            if (statements != null) {
+                statements.close();
+                statements = null;
+            }
+        }
+        changeNotifier.cancel();
+        discDBHelper.close();
+        super.shutdown();
+    }
+
+    /**
+     * Return the compiled statements of the writable database, compiling a new pool if the
+     * database was re-opened since the last write.
+     */
+    private DiscStatements statements() {
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+        synchronized (this) {
+            if (statements == null || !statements.isFor(database)) {
+                if (statements != null) {
+                    statements.close();
+                }
+                statements = new DiscStatements(database);
+            }
+            return statements;
+        }
+    }
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
                         @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
 
+    /**
+     * Query the provider. If the cancellation signal is triggered while the query runs
+     * (e.g. because the user typed a newer search), SQLite stops it and an
+     * {@link android.os.OperationCanceledException} is thrown.
+     * <p>
+     * Results are answered from the {@link DiscQueryCache} when the same query was already run
+     * since the last write.
+     */
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder,
+                        @Nullable CancellationSignal cancellationSignal) {
+        // The generation is read before the query runs, so a write committed meanwhile
+        // keeps the result out of the cache
+        DiscQueryCache.Key key = new DiscQueryCache.Key(uri, projection, selection,
+                selectionArgs, sortOrder);
+        long generation = queryCache.generation();
+
+        Cursor cursor = queryCache.get(key);
+        if (cursor == null) {
+            cursor = queryCache.put(key, queryDatabase(uri, projection, selection, selectionArgs,
+                    sortOrder, cancellationSignal), generation);
+        }
+
+        // Set notification URI on the Cursor,
+        // so we know what content URI the Cursor was created for.
+        // If the data at this URI changes, then we know we need to update the Cursor.
+        // The totals and reports change with every disc, so they are notified on the changes
+        // of any disc.
+        int match = uriMatcher.match(uri);
+        Uri notificationUri = match == DISCS_STATS || match == REPORTS_TOP_SELLERS
+                || match == REPORTS_SERIES ? DiscEntry.CONTENT_URI : uri;
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        // Return the cursor
+        return cursor;
+    }
+
+    /**
+     * Run a query in the database, without going through the cache.
+     */
+    private Cursor queryDatabase(Uri uri, String[] projection, String selection,
+                                 String[] selectionArgs, String sortOrder,
+                                 CancellationSignal cancellationSignal) {
         // Get readable database
         SQLiteDatabase database = discDBHelper.getReadableDatabase();
 
@@ -91,11 +362,18 @@ public class DiscProvider extends ContentProvider {
         int match = uriMatcher.match(uri);
         switch (match) {
             case DISCS:
+                // If the URI asks for a limited number of discs, only query one page
+                if (uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_LIMIT) != null) {
+                    cursor = queryDiscsPage(database, uri, projection, selection, selectionArgs,
+                            sortOrder, cancellationSignal);
+                    break;
+                }
+
                 // For the DISCS code, query the discs table directly with the given
                 // projection, selection, selection arguments, and sort order. The cursor
                 // could contain multiple rows of the discs table.
-                cursor = database.query(DiscEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                cursor = database.query(false, DiscEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, null, cancellationSignal);
                 break;
             case DISC_ID:
                 // For the DISC_ID code, extract out the ID from the URI.
@@ -114,17 +392,174 @@ public class DiscProvider extends ContentProvider {
                 cursor = database.query(DiscEntry.TABLE_NAME, projection, selection, selectionArgs,
                         null, null, sortOrder);
                 break;
+            case DISCS_SEARCH:
+                // For the DISCS_SEARCH code, look the text up in the search index
+                cursor = searchDiscs(database, uri, projection, selection, selectionArgs,
+                        cancellationSignal);
+                break;
+            case DISCS_STATS:
+                // For the DISCS_STATS code, read the row of totals kept up to date by the
+                // database, instead of adding up all the discs
+                cursor = database.query(false, StatsEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder, null, cancellationSignal);
+                break;
+            case REPORTS_TOP_SELLERS:
+                // The reports have fixed columns, read from the sales rollups
+                cursor = DiscReports.queryTopSellers(database, uri, cancellationSignal);
+                break;
+            case REPORTS_SERIES:
+                cursor = DiscReports.querySeries(database, uri, cancellationSignal);
+                break;
+            case DISCS_EXPORT:
+                // The apps the export is shared with ask for its name
+                cursor = DiscExporter.queryOpenable(projection);
+                break;
+            case SYNC:
+                cursor = DiscSyncLog.queryState(database);
+                break;
+            case SYNC_CHANGES:
+                // The changes have fixed columns, read from the change log
+                long limit = parseQueryParameter(uri, SyncEntry.QUERY_PARAMETER_LIMIT);
+                if (limit <= 0) {
+                    throw new IllegalArgumentException("You have to provide valid limit for " + uri);
+                }
+                cursor = DiscSyncLog.queryChanges(database, limit);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI: " + uri);
         }
+        return cursor;
+    }
 
-        // Set notification URI on the Cursor,
-        // so we know what content URI the Cursor was created for.
-        // If the data at this URI changes, then we know we need to update the Cursor.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+    /**
+     * Return the database helper, used by tests to check the tables behind the provider.
+     */
+    DiscDBHelper getDatabaseHelper() {
+        return discDBHelper;
+    }
 
-        // Return the cursor
-        return cursor;
+    /**
+     * Return the cache of query results, used by tests to read its hit and miss counts.
+     */
+    DiscQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Query one page of discs. Pages are ordered by one of the named sort orders (see
+     * {@link DiscSortOrder}) and use the sort key and ID of the last disc of the previous page
+     * as a keyset anchor, so each page is a range scan of an index and costs the same no matter
+     * how deep into the table it starts.
+     */
+    private Cursor queryDiscsPage(SQLiteDatabase database, Uri uri, String[] projection,
+                                  String selection, String[] selectionArgs, String sortOrder,
+                                  CancellationSignal cancellationSignal) {
+        // Pages can only be ordered by the whitelisted sort orders
+        if (sortOrder != null && !sortOrder.equals(DiscEntry._ID)
+                && !sortOrder.equals(DiscEntry._ID + " ASC")) {
+            throw new IllegalArgumentException("Paged queries are ordered by the "
+                    + DiscEntry.QUERY_PARAMETER_SORT + " parameter, cannot sort by " + sortOrder);
+        }
+        DiscSortOrder order = DiscSortOrder.forName(
+                uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_SORT));
+
+        // Check that the page size is a positive number
+        long limit = parseQueryParameter(uri, DiscEntry.QUERY_PARAMETER_LIMIT);
+        if (limit <= 0) {
+            throw new IllegalArgumentException("You have to provide valid limit for " + uri);
+        }
+
+        // Only keep the discs listed by the order, starting right after the anchor disc
+        // if there is one
+        boolean after = uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_AFTER) != null;
+        selection = DatabaseUtils.concatenateWhere(selection, order.pageSelection(after));
+        if (after) {
+            long afterId = parseQueryParameter(uri, DiscEntry.QUERY_PARAMETER_AFTER);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs, order.afterArgs(
+                    uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_AFTER_KEY), afterId));
+        }
+
+        return database.query(false, DiscEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, order.orderBy(), String.valueOf(limit), cancellationSignal);
+    }
+
+    /**
+     * Query the discs whose artist or title match the "q" query parameter, using the full-text
+     * search index instead of scanning the table. Every word typed has to match the start of a
+     * word of the disc, and discs whose artist or title start with the first word come first.
+     */
+    private Cursor searchDiscs(SQLiteDatabase database, Uri uri, String[] projection,
+                               String selection, String[] selectionArgs,
+                               CancellationSignal cancellationSignal) {
+        String[] words = splitWords(uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_QUERY));
+
+        // Without any word to look for, nothing matches
+        if (words.length == 0) {
+            return database.query(DiscEntry.TABLE_NAME, projection, "0", null,
+                    null, null, null, "0");
+        }
+
+        // Each word becomes a prefix query, and all of them have to match
+        StringBuilder match = new StringBuilder();
+        for (String word : words) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+        selection = DatabaseUtils.concatenateWhere(selection, DiscEntry._ID + " IN (SELECT docid FROM "
+                + DiscDBHelper.SEARCH_TABLE_NAME + " WHERE " + DiscDBHelper.SEARCH_TABLE_NAME
+                + " MATCH ?)");
+        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                new String[]{match.toString()});
+
+        // Rank the matches, the LIKE tests only run on the rows found by the index
+        String startsWith = DatabaseUtils.sqlEscapeString(words[0] + "%");
+        String rankOrder = "CASE WHEN " + DiscEntry.COLUMN_DISC_ARTIST + " LIKE " + startsWith
+                + " THEN 0 WHEN " + DiscEntry.COLUMN_DISC_TITLE + " LIKE " + startsWith
+                + " THEN 1 ELSE 2 END, "
+                + DiscEntry.COLUMN_DISC_ARTIST + ", " + DiscEntry.COLUMN_DISC_TITLE + ", " + DiscEntry._ID;
+
+        // Optionally only return the best matches
+        String limit = null;
+        if (uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_LIMIT) != null) {
+            limit = String.valueOf(parseQueryParameter(uri, DiscEntry.QUERY_PARAMETER_LIMIT));
+        }
+
+        return database.query(false, DiscEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, rankOrder, limit, cancellationSignal);
+    }
+
+    /**
+     * Split the text typed by the user into the words understood by the search index
+     * (runs of letters and digits).
+     */
+    private static String[] splitWords(String text) {
+        ArrayList<String> words = new ArrayList<>();
+        if (text != null) {
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if (wordCharacter && start == -1) {
+                    start = i;
+                } else if (!wordCharacter && start != -1) {
+                    words.add(text.substring(start, i));
+                    start = -1;
+                }
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Read a numeric query parameter of the given URI.
+     */
+    private static long parseQueryParameter(Uri uri, String name) {
+        try {
+            return Long.parseLong(uri.getQueryParameter(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("You have to provide valid " + name + " for " + uri);
+        }
     }
 
     @Nullable
@@ -133,14 +568,77 @@ public class DiscProvider extends ContentProvider {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case DISCS:
+            case DISCS_SEARCH:
                 return DiscEntry.CONTENT_LIST_TYPE;
             case DISC_ID:
+            case DISC_SELL:
+            case DISC_ADJUST:
                 return DiscEntry.CONTENT_ITEM_TYPE;
+            case DISCS_STATS:
+                return StatsEntry.CONTENT_ITEM_TYPE;
+            case REPORTS_TOP_SELLERS:
+            case REPORTS_SERIES:
+                return ReportEntry.CONTENT_LIST_TYPE;
+            case DISCS_EXPORT:
+                return DiscEntry.EXPORT_TYPE;
+            case SYNC:
+                return SyncEntry.CONTENT_ITEM_TYPE;
+            case SYNC_CHANGES:
+            case SYNC_ROWS:
+                return SyncEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
         }
     }
 
+    /**
+     * Open the CSV file of all the discs for reading. The file is the read end of a pipe, whose
+     * write end is filled by a background thread while the caller reads, so the export is
+     * never materialized, neither in memory nor on disk. If the reader closes the file early,
+     * the writing thread stops.
+     */
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode)
+            throws FileNotFoundException {
+        if (uriMatcher.match(uri) != DISCS_EXPORT) {
+            throw new FileNotFoundException("No file at " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The export can only be read, not opened with "
+                    + mode);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to open " + uri + ": " + e.getMessage());
+        }
+        final SQLiteDatabase database = discDBHelper.getReadableDatabase();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+                try {
+                    long rows = DiscExporter.export(database, out.getChannel(), null);
+                    Log.i(LOG_TAG, "Exported " + rows + " discs");
+                } catch (IOException | SQLException e) {
+                    Log.w(LOG_TAG, "Export stopped", e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        Log.w(LOG_TAG, "Failed to close the export", e);
+                    }
+                }
+            }
+        }, "DiscExport");
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+        return pipe[0];
+    }
+
     @Nullable
     @Override
     public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
@@ -158,6 +656,67 @@ public class DiscProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertDisc(Uri uri, ContentValues values) {
+        // Check that the values describe a valid disc
+        validateDisc(values);
+
+        // Insert the new disc with the given values. A disc made of the usual columns goes
+        // through the compiled insert statement, anything else through the generic insert.
+        long id;
+        if (DISC_COLUMNS.containsAll(values.keySet())) {
+            try {
+                id = insertDisc(statements(), values);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Failed to insert row for " + uri, e);
+                return null;
+            }
+        } else {
+            id = insertDiscValues(values);
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        // Notify all listeners that this disc has been inserted
+        queryCache.invalidate();
+        changeNotifier.rowInserted(id);
+
+        // Return the new URI with the ID (of the newly inserted row) appended at the end
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert a disc with the generic insert, and append its quantity to the ledger in the same
+     * transaction. Return the new disc ID, or -1 if the insertion failed.
+     */
+    private long insertDiscValues(ContentValues values) {
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            long id = database.insert(DiscEntry.TABLE_NAME, null, values);
+            if (id != -1) {
+                DiscLedger.appendQuantities(database, DiscEntry._ID + "=" + id, null, 1,
+                        LedgerEntry.REASON_RECEIVED, System.currentTimeMillis());
+            }
+            database.setTransactionSuccessful();
+            return id;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Check that the given content values describe a valid new disc. Throws an
+     * {@link IllegalArgumentException} for the first invalid field. Also used by the
+     * {@link DiscImporter} to reject the invalid rows of a catalog before they are written.
+     */
+    static void validateDisc(ContentValues values) {
+        // Check that the image field is not null
+        String image = values.getAsString(DiscEntry.COLUMN_DISC_IMAGE);
+        if (image == null) {
+            throw new IllegalArgumentException("You have to provide image for this item.");
+        }
         // Check that the artist field is not null
         String artist = values.getAsString(DiscEntry.COLUMN_DISC_ARTIST);
         if (artist == null) {
@@ -179,23 +738,242 @@ public class DiscProvider extends ContentProvider {
         if (quantity != null && quantity < 0) {
             throw new IllegalArgumentException("You have to provide valid quantity for this item.");
         }
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = uriMatcher.match(uri);
+        switch (match) {
+            case DISCS:
+                return bulkInsertDiscs(uri, values);
+            case SYNC_ROWS:
+                return applySyncRows(uri, values);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
+
+    /**
+     * Insert all the given discs inside a single transaction, re-using the compiled insert
+     * statement. Listeners are notified after the transaction has been committed.
+     * Return the number of rows that were inserted.
+     */
+    private int bulkInsertDiscs(Uri uri, ContentValues[] values) {
+        // Validate every disc before anything is written, so an invalid row fails the whole batch
+        for (ContentValues discValues : values) {
+            validateDisc(discValues);
+        }
 
         // Get writeable database
         SQLiteDatabase database = discDBHelper.getWritableDatabase();
 
-        // Insert the new disc with the given values
-        long id = database.insert(DiscEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+        // Track the number of rows that were inserted
+        int rowsInserted = 0;
+
+        DiscStatements statements = statements();
+        changeNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            for (ContentValues discValues : values) {
+                try {
+                    changeNotifier.rowInserted(insertDisc(statements, discValues));
+                    rowsInserted++;
+                } catch (SQLException e) {
+                    // Same as a single insert, a row the database still refuses is logged and
+                    // skipped: the compiled insert runs in this transaction, so only its own
+                    // statement fails
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri, e);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            // Notify all listeners of the inserted discs at once
+            queryCache.invalidate();
+            changeNotifier.endBatch();
         }
 
-        // Notify all listeners that the data has changed for the disc content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Return the number of rows inserted
+        return rowsInserted;
+    }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Insert the given disc values with the compiled insert statement. Missing price and
+     * quantity are inserted as 0, which matches the column defaults. Return the new disc ID.
+     */
+    private static long insertDisc(DiscStatements statements, ContentValues values) {
+        Integer price = values.getAsInteger(DiscEntry.COLUMN_DISC_PRICE);
+        Integer quantity = values.getAsInteger(DiscEntry.COLUMN_DISC_QUANTITY);
+        return statements.insertDisc(values.getAsString(DiscEntry.COLUMN_DISC_IMAGE),
+                values.getAsString(DiscEntry.COLUMN_DISC_ARTIST),
+                values.getAsString(DiscEntry.COLUMN_DISC_TITLE),
+                price == null ? 0 : price, quantity == null ? 0 : quantity);
+    }
+
+    /**
+     * Apply the rows sent by the sync server in a single transaction, see
+     * {@link DiscSyncLog#applyRows}. Listeners are notified once, if any disc changed.
+     * Return the number of discs which changed.
+     */
+    private int applySyncRows(Uri uri, ContentValues[] values) {
+        long revision = uri.getQueryParameter(SyncEntry.QUERY_PARAMETER_REVISION) == null
+                ? DiscSyncLog.NO_REVISION
+                : parseQueryParameter(uri, SyncEntry.QUERY_PARAMETER_REVISION);
+        long ackedSeq = uri.getQueryParameter(SyncEntry.QUERY_PARAMETER_ACKED_SEQ) == null
+                ? DiscSyncLog.NO_SEQ
+                : parseQueryParameter(uri, SyncEntry.QUERY_PARAMETER_ACKED_SEQ);
+        int changed = DiscSyncLog.applyRows(discDBHelper.getWritableDatabase(), values,
+                revision, ackedSeq);
+
+        // The change log changed even if no disc did
+        queryCache.invalidate();
+        if (changed > 0) {
+            changeNotifier.tableChanged();
+        }
+        return changed;
+    }
+
+    /**
+     * Apply all the operations inside a single transaction. If any of them fails, none of the
+     * changes are stored. Listeners are notified after the batch has been committed.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Get writeable database
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+
+        // The changes of the single operations are held back until the batch has ended
+        changeNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+            return results;
+        } finally {
+            database.endTransaction();
+            // The operations already made the cache stale, but a query may have cached
+            // what it read before the batch was committed
+            queryCache.invalidate();
+            changeNotifier.endBatch();
+        }
+    }
+
+    /**
+     * Run one of the methods of {@link CallEntry}. The answer is a Bundle of primitive values
+     * and arrays, so the caller gets it in a single call instead of reading a cursor window, or
+     * making one update call for every disc.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (extras == null) {
+            extras = Bundle.EMPTY;
+        }
+        Bundle result = new Bundle();
+        switch (method) {
+            case CallEntry.METHOD_COUNT:
+                result.putLong(CallEntry.EXTRA_COUNT, DatabaseUtils.queryNumEntries(
+                        discDBHelper.getReadableDatabase(), DiscEntry.TABLE_NAME,
+                        extras.getString(CallEntry.EXTRA_SELECTION),
+                        extras.getStringArray(CallEntry.EXTRA_SELECTION_ARGS)));
+                break;
+            case CallEntry.METHOD_STATS:
+                result.putLongArray(CallEntry.EXTRA_STATS, queryStats());
+                break;
+            case CallEntry.METHOD_ADJUST:
+                result.putLongArray(CallEntry.EXTRA_QUANTITIES, adjustQuantities(
+                        extras.getLongArray(CallEntry.EXTRA_IDS),
+                        extras.getIntArray(CallEntry.EXTRA_DELTAS)));
+                break;
+            case CallEntry.METHOD_IDS:
+                result.putLongArray(CallEntry.EXTRA_IDS, queryIds(
+                        extras.getString(CallEntry.EXTRA_SELECTION),
+                        extras.getStringArray(CallEntry.EXTRA_SELECTION_ARGS),
+                        extras.getString(CallEntry.EXTRA_SORT_ORDER),
+                        extras.getInt(CallEntry.EXTRA_LIMIT, 0)));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+        return result;
+    }
+
+    /**
+     * Read the totals of all the discs, indexed as in {@link CallEntry#EXTRA_STATS}.
+     */
+    private long[] queryStats() {
+        Cursor cursor = discDBHelper.getReadableDatabase().query(StatsEntry.TABLE_NAME,
+                new String[]{StatsEntry.COLUMN_DISC_COUNT, StatsEntry.COLUMN_UNIT_COUNT,
+                        StatsEntry.COLUMN_STOCK_VALUE, StatsEntry.COLUMN_LOW_STOCK_COUNT},
+                null, null, null, null, null);
+        try {
+            long[] stats = new long[cursor.getColumnCount()];
+            if (cursor.moveToFirst()) {
+                for (int i = 0; i < stats.length; i++) {
+                    stats[i] = cursor.getLong(i);
+                }
+            }
+            return stats;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the IDs of the matching discs, at most limit of them unless limit is 0.
+     */
+    private long[] queryIds(String selection, String[] selectionArgs, String sortOrder,
+                            int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("You have to provide valid limit.");
+        }
+        Cursor cursor = discDBHelper.getReadableDatabase().query(DiscEntry.TABLE_NAME,
+                new String[]{DiscEntry._ID}, selection, selectionArgs, null, null, sortOrder,
+                limit == 0 ? null : String.valueOf(limit));
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Change the quantity of every given disc by the delta at the same index, in a single
+     * transaction, with the compiled statement of a single adjustment. Return the new quantity
+     * of every disc, or -1 if it wasn't changed. Listeners are notified once the transaction
+     * has been committed.
+     */
+    private long[] adjustQuantities(long[] ids, int[] deltas) {
+        if (ids == null || deltas == null || ids.length != deltas.length) {
+            throw new IllegalArgumentException("You have to provide a delta for every disc.");
+        }
+        DiscStatements statements = statements();
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+        long[] quantities = new long[ids.length];
+        changeNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                quantities[i] = statements.adjustQuantity(ids[i], deltas[i],
+                        LedgerEntry.REASON_ADJUSTMENT);
+                if (quantities[i] != -1) {
+                    changeNotifier.rowUpdated(ids[i],
+                            Collections.singleton(DiscEntry.COLUMN_DISC_QUANTITY));
+                }
+            }
+            database.setTransactionSuccessful();
+            return quantities;
+        } finally {
+            database.endTransaction();
+            queryCache.invalidate();
+            changeNotifier.endBatch();
+        }
     }
 
     @Override
@@ -209,25 +987,40 @@ public class DiscProvider extends ContentProvider {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case DISCS:
-                // Delete all rows that match the selection and selection args
-                rowsDeleted = database.delete(DiscEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete all rows that match the selection and selection args, after their
+                // copies in stock were taken out of the ledger
+                database.beginTransaction();
+                try {
+                    DiscLedger.appendQuantities(database, selection, selectionArgs, -1,
+                            LedgerEntry.REASON_REMOVED, System.currentTimeMillis());
+                    rowsDeleted = database.delete(DiscEntry.TABLE_NAME, selection, selectionArgs);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+
+                // If 1 or more rows were deleted, then notify all listeners that any disc
+                // may have changed
+                if (rowsDeleted != 0) {
+                    queryCache.invalidate();
+                    changeNotifier.tableChanged();
+                }
                 break;
             case DISC_ID:
-                // Delete a single row given by the ID in the URI
-                selection = DiscEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(DiscEntry.TABLE_NAME, selection, selectionArgs);
+                // Delete a single row given by the ID in the URI with the compiled statement
+                long id = ContentUris.parseId(uri);
+                rowsDeleted = statements().deleteDisc(id);
+
+                // If the row was deleted, then notify all listeners that this disc is gone
+                if (rowsDeleted != 0) {
+                    queryCache.invalidate();
+                    changeNotifier.rowDeleted(id);
+                }
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
-
         // Return the number of rows deleted
         return rowsDeleted;
     }
@@ -238,25 +1031,160 @@ public class DiscProvider extends ContentProvider {
         final int match = uriMatcher.match(uri);
         switch (match) {
             case DISCS:
-                return updateDisc(uri, values, selection, selectionArgs);
+                return updateDisc(ANY_DISC, values, selection, selectionArgs, false);
             case DISC_ID:
                 // For the DISC_ID code, extract out the ID from the URI,
                 // so we know which row to update. Selection will be "_id=?" and selection
                 // arguments will be a String array containing the actual ID.
+                long id = ContentUris.parseId(uri);
                 selection = DiscEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateDisc(uri, values, selection, selectionArgs);
+                selectionArgs = new String[]{String.valueOf(id)};
+                if (uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_EXPECTED_VERSION) != null) {
+                    return updateDiscIfUnchanged(id, values, parseQueryParameter(uri,
+                            DiscEntry.QUERY_PARAMETER_EXPECTED_VERSION));
+                }
+                return updateDisc(id, values, selection, selectionArgs, true);
+            case DISC_SELL:
+                // Selling a disc decreases its quantity by the number of copies sold
+                return adjustQuantity(parseDiscId(uri), -parseCopies(uri), LedgerEntry.REASON_SALE,
+                        parseJournalSeq(uri));
+            case DISC_ADJUST:
+                // The change of quantity is given by the "delta" query parameter
+                return adjustQuantity(parseDiscId(uri), parseDelta(uri),
+                        LedgerEntry.REASON_ADJUSTMENT, DiscJournal.NO_SEQ);
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
+    /**
+     * Extract the disc ID from a URI of the form "discs/#/..."
+     */
+    private static long parseDiscId(Uri uri) {
+        return Long.parseLong(uri.getPathSegments().get(1));
+    }
+
+    /**
+     * Extract the number of copies sold from the "copies" query parameter of a sell URI, one if
+     * it is missing.
+     */
+    private static int parseCopies(Uri uri) {
+        if (uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_COPIES) == null) {
+            return 1;
+        }
+        long copies = parseQueryParameter(uri, DiscEntry.QUERY_PARAMETER_COPIES);
+        if (copies < 1 || copies > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("You have to provide valid copies for " + uri);
+        }
+        return (int) copies;
+    }
+
+    /**
+     * Extract the sequence number of the last journal entry covered by a sell URI, or
+     * {@link DiscJournal#NO_SEQ} if the sale wasn't journaled.
+     */
+    private static long parseJournalSeq(Uri uri) {
+        if (uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_JOURNAL_SEQ) == null) {
+            return DiscJournal.NO_SEQ;
+        }
+        return parseQueryParameter(uri, DiscEntry.QUERY_PARAMETER_JOURNAL_SEQ);
+    }
+
+    /**
+     * Extract the change of quantity from the "delta" query parameter of an adjust URI.
+     */
+    private static int parseDelta(Uri uri) {
+        String delta = uri.getQueryParameter(DiscEntry.QUERY_PARAMETER_DELTA);
+        if (delta == null) {
+            throw new IllegalArgumentException("You have to provide delta for " + uri);
+        }
+        try {
+            return Integer.parseInt(delta);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("You have to provide valid delta for " + uri);
+        }
+    }
+
+    /**
+     * Change the quantity of the disc with the given ID by delta, for the given ledger reason,
+     * marking the sell journal up to the given entry. Return 1 if the quantity was changed, or 0
+     * if there is no such disc or the quantity would become negative.
+     */
+    private int adjustQuantity(long id, int delta, String reason, long journalSeq) {
+        long newQuantity = statements().adjustQuantity(id, delta, reason, journalSeq);
+        if (newQuantity == -1) {
+            return 0;
+        }
+
+        // Notify all listeners that the quantity of this disc has changed
+        queryCache.invalidate();
+        changeNotifier.rowUpdated(id, Collections.singleton(DiscEntry.COLUMN_DISC_QUANTITY));
+        return 1;
+    }
+
+    /**
+     * Update discs with the generic update. If the quantity is set, the change of every updated
+     * disc is appended to the ledger in the same transaction. Return the number of rows updated.
+     */
+    private int updateDiscValues(ContentValues values, String selection, String[] selectionArgs) {
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+        database.beginTransaction();
+        try {
+            Long quantity = values.getAsLong(DiscEntry.COLUMN_DISC_QUANTITY);
+            if (quantity != null) {
+                DiscLedger.appendQuantitySet(database, selection, selectionArgs, quantity,
+                        System.currentTimeMillis());
+            }
+            int rowsUpdated = database.update(DiscEntry.TABLE_NAME, values, selection, selectionArgs);
+            database.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Update the disc with the given ID only if it still has the expected version. Return 1 if
+     * it was updated, 0 if there is no such disc, or {@link DiscEntry#UPDATE_CONFLICT} if it
+     * has another version. No lock is held between reading a disc and writing it back: the
+     * version is compared by the UPDATE itself.
+     */
+    private int updateDiscIfUnchanged(long id, ContentValues values, long expectedVersion) {
+        SQLiteDatabase database = discDBHelper.getWritableDatabase();
+        String selection = DiscEntry._ID + "=? AND " + DiscEntry.COLUMN_DISC_VERSION + "=?";
+        String[] selectionArgs = {String.valueOf(id), String.valueOf(expectedVersion)};
+
+        // The check for a conflict is in the transaction of the update, so a disc deleted in
+        // between is never reported as a conflict. The change of the disc is held back until
+        // the transaction has been committed.
+        changeNotifier.beginBatch();
+        database.beginTransaction();
+        try {
+            int rowsUpdated = updateDisc(id, values, selection, selectionArgs, false);
+            if (rowsUpdated == 0 && DatabaseUtils.queryNumEntries(database, DiscEntry.TABLE_NAME,
+                    DiscEntry._ID + "=?", new String[]{String.valueOf(id)}) > 0) {
+                rowsUpdated = DiscEntry.UPDATE_CONFLICT;
+            }
+            database.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            database.endTransaction();
+            // The update made the cache stale, but a query may have cached what it read
+            // before the transaction was committed
+            queryCache.invalidate();
+            changeNotifier.endBatch();
+        }
+    }
+
     /**
      * Update discs in the database with the given content values. Apply the changes to the rows
      * specified in the selection and selection arguments (which could be 0 or 1 or more discs).
+     * The ID is the one of the single updated disc, or {@link #ANY_DISC} if the
+     * selection may match any disc, and byIdOnly is true if the selection is only that ID.
      * Return the number of rows that were successfully updated.
      */
-    private int updateDisc(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updateDisc(long id, ContentValues values, String selection, String[] selectionArgs,
+                           boolean byIdOnly) {
         // If the {@link DiscEntry#COLUMN_DISC_ARTIST} key is present,
         // check that the artist field value is not null.
         if (values.containsKey(DiscEntry.COLUMN_DISC_ARTIST)) {
@@ -295,21 +1223,39 @@ public class DiscProvider extends ContentProvider {
             }
         }
 
+        // The version is only written by the database
+        if (values.containsKey(DiscEntry.COLUMN_DISC_VERSION)) {
+            throw new IllegalArgumentException("The version of a disc can't be written.");
+        }
+
         // If there are no values to update, then don't try to update the database
         if (values.size() == 0) {
             return 0;
         }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = discDBHelper.getWritableDatabase();
-
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(DiscEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. Changing only
+        // the quantity or only the price of a single disc, selected by its ID alone, goes
+        // through a compiled statement.
+        int rowsUpdated;
+        Long singleValue = !byIdOnly || values.size() != 1 ? null
+                : values.getAsLong(values.keySet().iterator().next());
+        if (singleValue != null && values.containsKey(DiscEntry.COLUMN_DISC_QUANTITY)) {
+            rowsUpdated = statements().updateQuantity(id, singleValue);
+        } else if (singleValue != null && values.containsKey(DiscEntry.COLUMN_DISC_PRICE)) {
+            rowsUpdated = statements().updatePrice(id, singleValue);
+        } else {
+            rowsUpdated = updateDiscValues(values, selection, selectionArgs);
+        }
 
-        // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // If 1 or more rows were updated, then notify all listeners which columns of which
+        // disc have changed
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            queryCache.invalidate();
+            if (id == ANY_DISC) {
+                changeNotifier.tableChanged();
+            } else {
+                changeNotifier.rowUpdated(id, values.keySet());
+            }
         }
 
         // Return the number of rows updated
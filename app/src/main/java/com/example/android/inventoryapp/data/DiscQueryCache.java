@@ -0,0 +1,304 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of query results kept by the {@link DiscProvider}, so a query repeated while the data
+ * hasn't changed (e.g. after the device is rotated) is answered without touching SQLite.
+ * <p>
+ * Results are stored as immutable snapshots of their rows, and each hit gets its own cursor
+ * over the shared snapshot. The cache is bounded by the estimated size of the snapshots in
+ * bytes, the least recently used ones being dropped first. Every write increments a generation
+ * counter once it has been committed; a snapshot read at an older generation is never returned.
+ */
+class DiscQueryCache {
+
+    /** Estimated size of the snapshots kept in the cache, in bytes */
+    static final int MAX_BYTES = 1024 * 1024;
+
+    /** Number of rows above which a result is not cached */
+    static final int MAX_ROWS = 1000;
+
+    /** Snapshots by query, bounded by their size */
+    private final LruCache<Key, Snapshot> snapshots = new LruCache<Key, Snapshot>(MAX_BYTES) {
+        @Override
+        protected int sizeOf(Key key, Snapshot snapshot) {
+            return snapshot.bytes;
+        }
+    };
+
+    /** Generation of the data, incremented after every write */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Number of queries answered from the cache */
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /** Number of queries which had to run in SQLite */
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Key of a cached query, made of all the arguments of the query.
+     */
+    static final class Key {
+
+        final Uri uri;
+        final String[] projection;
+        final String selection;
+        final String[] selectionArgs;
+        final String sortOrder;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+            this.uri = uri;
+            this.projection = projection == null ? null : projection.clone();
+            this.selection = selection;
+            this.selectionArgs = selectionArgs == null ? null : selectionArgs.clone();
+            this.sortOrder = sortOrder;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return uri.equals(other.uri)
+                    && Arrays.equals(projection, other.projection)
+                    && (selection == null ? other.selection == null : selection.equals(other.selection))
+                    && Arrays.equals(selectionArgs, other.selectionArgs)
+                    && (sortOrder == null ? other.sortOrder == null : sortOrder.equals(other.sortOrder));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + Arrays.hashCode(projection);
+            result = 31 * result + (selection != null ? selection.hashCode() : 0);
+            result = 31 * result + Arrays.hashCode(selectionArgs);
+            result = 31 * result + (sortOrder != null ? sortOrder.hashCode() : 0);
+            return result;
+        }
+    }
+
+    /**
+     * Return the generation of the data. It has to be read before the query runs, and passed
+     * to {@link #put}, so a write committed meanwhile makes the result stale.
+     */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Return a new cursor over the cached result of the query, or null if there is no result
+     * of the current generation.
+     */
+    Cursor get(Key key) {
+        Snapshot snapshot = snapshots.get(key);
+        if (snapshot != null && snapshot.generation != generation.get()) {
+            snapshots.remove(key);
+            snapshot = null;
+        }
+        if (snapshot == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Cache the result of the query, read at the given generation, unless it is too large.
+     * The given cursor is closed, and a cursor over the cached result is returned instead.
+     */
+    Cursor put(Key key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS) {
+            return cursor;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = new Snapshot(cursor, generation);
+        } finally {
+            cursor.close();
+        }
+        if (generation == this.generation.get()) {
+            snapshots.put(key, snapshot);
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Make all the cached results stale. Called after every committed write.
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+        snapshots.evictAll();
+    }
+
+    /**
+     * Return the number of queries answered from the cache.
+     */
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Return the number of queries which had to run in SQLite.
+     */
+    long missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Immutable copy of the rows of a query result.
+     */
+    private static final class Snapshot {
+
+        final String[] columnNames;
+        final Object[][] rows;
+        final long generation;
+
+        /** Estimated size of the snapshot in memory, in bytes */
+        final int bytes;
+
+        Snapshot(Cursor cursor, long generation) {
+            this.columnNames = cursor.getColumnNames();
+            this.generation = generation;
+            this.rows = new Object[cursor.getCount()][];
+
+            int size = 64;
+            int row = 0;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                Object[] values = new Object[columnNames.length];
+                size += 16 + 4 * values.length;
+                for (int i = 0; i < values.length; i++) {
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[i] = cursor.getLong(i);
+                            size += 16;
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[i] = cursor.getDouble(i);
+                            size += 16;
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String string = cursor.getString(i);
+                            values[i] = string;
+                            size += 40 + 2 * string.length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            byte[] blob = cursor.getBlob(i);
+                            values[i] = blob;
+                            size += 16 + blob.length;
+                            break;
+                        default:
+                            values[i] = null;
+                            break;
+                    }
+                }
+                rows[row++] = values;
+            }
+            this.bytes = size;
+        }
+    }
+
+    /**
+     * Read-only cursor over a snapshot. The snapshot is shared, only the position is not.
+     */
+    private static final class SnapshotCursor extends AbstractCursor {
+
+        private final Snapshot snapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        private Object value(int column) {
+            return snapshot.rows[getPosition()][column];
+        }
+
+        @Override
+        public int getCount() {
+            return snapshot.rows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return snapshot.columnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = value(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = value(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return value == null ? 0 : Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = value(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return value == null ? 0 : Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = value(column);
+            return value instanceof byte[] ? (byte[]) value : null;
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = value(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return value(column) == null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+import com.example.android.inventoryapp.data.DiscContract.ReportEntry;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Sales reports of the {@link DiscProvider}, computed from the {@link #ROLLUP_TABLE_NAME} table.
+ * The table holds the copies sold per hour, day and month, for every disc and for
+ * {@link ReportEntry#ALL_DISCS}. A trigger adds every sale appended to the ledger to the six
+ * buckets it falls in, so the reports never read the ledger.
+ * <p>
+ * A time range is covered with the largest buckets fitting in it: months in the middle, days
+ * and then hours towards its ends. A report over a year reads about twelve month buckets per
+ * disc instead of every sale.
+ */
+final class DiscReports {
+
+    /** Name of the rollup table */
+    static final String ROLLUP_TABLE_NAME = "sales_rollups";
+
+    /** Column of the rollups holding the size of the bucket, one of the GRANULARITY_* values */
+    static final String COLUMN_GRANULARITY = "granularity";
+
+    /** Column of the rollups holding the start of the bucket, in milliseconds since the epoch */
+    static final String COLUMN_BUCKET_START = ReportEntry.COLUMN_BUCKET_START;
+
+    /** Column of the rollups holding the disc ID, or {@link ReportEntry#ALL_DISCS} */
+    static final String COLUMN_DISC_ID = ReportEntry.COLUMN_DISC_ID;
+
+    /** Column of the rollups holding the number of copies sold */
+    static final String COLUMN_UNITS = ReportEntry.COLUMN_UNITS;
+
+    /** Length of an hour, in milliseconds */
+    static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    /** Length of a day, in milliseconds */
+    static final long DAY_MILLIS = DiscLedger.DAY_MILLIS;
+
+    /** Granularities of the rollups, from the smallest buckets to the largest */
+    static final String[] GRANULARITIES = {ReportEntry.GRANULARITY_HOUR,
+            ReportEntry.GRANULARITY_DAY, ReportEntry.GRANULARITY_MONTH};
+
+    private DiscReports() {}
+
+    /**
+     * Return the SQL expression of the start of the bucket of the given granularity holding the
+     * given time, an SQL expression in milliseconds since the epoch.
+     */
+    static String bucketStart(String granularity, String time) {
+        switch (granularity) {
+            case ReportEntry.GRANULARITY_HOUR:
+                return "((" + time + ") / " + HOUR_MILLIS + " * " + HOUR_MILLIS + ")";
+            case ReportEntry.GRANULARITY_DAY:
+                return "((" + time + ") / " + DAY_MILLIS + " * " + DAY_MILLIS + ")";
+            case ReportEntry.GRANULARITY_MONTH:
+                return "(CAST(strftime('%s', (" + time + ") / 1000, 'unixepoch', 'start of month')"
+                        + " AS INTEGER) * 1000)";
+            default:
+                throw new IllegalArgumentException("Unknown granularity " + granularity);
+        }
+    }
+
+    /**
+     * Create the trigger adding every sale appended to the ledger to its rollups. Each bucket
+     * row is created empty if it doesn't exist yet, then incremented.
+     */
+    static void createRollupTrigger(SQLiteDatabase db) {
+        StringBuilder body = new StringBuilder();
+        for (String granularity : GRANULARITIES) {
+            String bucket = bucketStart(granularity, "new." + LedgerEntry.COLUMN_TIMESTAMP);
+            for (String disc : new String[]{"new." + LedgerEntry.COLUMN_DISC_ID,
+                    String.valueOf(ReportEntry.ALL_DISCS)}) {
+                body.append("INSERT OR IGNORE INTO ").append(ROLLUP_TABLE_NAME).append(" (")
+                        .append(COLUMN_GRANULARITY).append(", ").append(COLUMN_DISC_ID).append(", ")
+                        .append(COLUMN_BUCKET_START).append(", ").append(COLUMN_UNITS)
+                        .append(") VALUES ('").append(granularity).append("', ").append(disc)
+                        .append(", ").append(bucket).append(", 0); ");
+                body.append("UPDATE ").append(ROLLUP_TABLE_NAME).append(" SET ")
+                        .append(COLUMN_UNITS).append(" = ").append(COLUMN_UNITS).append(" - new.")
+                        .append(LedgerEntry.COLUMN_DELTA).append(" WHERE ")
+                        .append(COLUMN_GRANULARITY).append(" = '").append(granularity)
+                        .append("' AND ").append(COLUMN_DISC_ID).append(" = ").append(disc)
+                        .append(" AND ").append(COLUMN_BUCKET_START).append(" = ").append(bucket)
+                        .append("; ");
+            }
+        }
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + ROLLUP_TABLE_NAME + "_insert AFTER INSERT ON "
+                + LedgerEntry.TABLE_NAME + " WHEN new." + LedgerEntry.COLUMN_REASON + " = '"
+                + LedgerEntry.REASON_SALE + "' BEGIN " + body + "END;");
+    }
+
+    /**
+     * Query the discs which sold the most copies in the time range of the URI.
+     */
+    static Cursor queryTopSellers(SQLiteDatabase db, Uri uri, CancellationSignal cancellationSignal) {
+        long from = parseNumber(uri, ReportEntry.QUERY_PARAMETER_FROM);
+        long to = parseNumber(uri, ReportEntry.QUERY_PARAMETER_TO);
+        long limit = parseNumber(uri, ReportEntry.QUERY_PARAMETER_LIMIT);
+        if (limit <= 0) {
+            throw new IllegalArgumentException("You have to provide valid limit for " + uri);
+        }
+
+        // One range of buckets per segment of the time range
+        List<String> args = new ArrayList<>();
+        StringBuilder buckets = new StringBuilder();
+        for (Segment segment : segments(from, to)) {
+            if (buckets.length() > 0) {
+                buckets.append(" OR ");
+            }
+            buckets.append("(r.").append(COLUMN_GRANULARITY).append(" = ? AND r.")
+                    .append(COLUMN_BUCKET_START).append(" >= ? AND r.").append(COLUMN_BUCKET_START)
+                    .append(" < ?)");
+            args.add(segment.granularity);
+            args.add(String.valueOf(segment.from));
+            args.add(String.valueOf(segment.to));
+        }
+        if (buckets.length() == 0) {
+            buckets.append("0");
+        }
+
+        String sql = "SELECT r." + COLUMN_DISC_ID + " AS " + ReportEntry.COLUMN_DISC_ID
+                + ", SUM(r." + COLUMN_UNITS + ") AS " + ReportEntry.COLUMN_UNITS
+                + ", d." + DiscEntry.COLUMN_DISC_ARTIST + " AS " + ReportEntry.COLUMN_ARTIST
+                + ", d." + DiscEntry.COLUMN_DISC_TITLE + " AS " + ReportEntry.COLUMN_TITLE
+                + " FROM " + ROLLUP_TABLE_NAME + " r LEFT JOIN " + DiscEntry.TABLE_NAME
+                + " d ON d." + DiscEntry._ID + " = r." + COLUMN_DISC_ID
+                + " WHERE r." + COLUMN_DISC_ID + " <> " + ReportEntry.ALL_DISCS
+                + " AND (" + buckets + ")"
+                + " GROUP BY r." + COLUMN_DISC_ID
+                + " ORDER BY " + ReportEntry.COLUMN_UNITS + " DESC, r." + COLUMN_DISC_ID
+                + " LIMIT " + limit;
+        return db.rawQuery(sql, args.toArray(new String[args.size()]), cancellationSignal);
+    }
+
+    /**
+     * Query the copies sold per bucket in the time range of the URI. Week buckets are summed
+     * from day buckets.
+     */
+    static Cursor querySeries(SQLiteDatabase db, Uri uri, CancellationSignal cancellationSignal) {
+        String granularity = uri.getQueryParameter(ReportEntry.QUERY_PARAMETER_GRANULARITY);
+        long from = parseNumber(uri, ReportEntry.QUERY_PARAMETER_FROM);
+        long to = parseNumber(uri, ReportEntry.QUERY_PARAMETER_TO);
+        long discId = uri.getQueryParameter(ReportEntry.QUERY_PARAMETER_DISC_ID) == null
+                ? ReportEntry.ALL_DISCS : parseNumber(uri, ReportEntry.QUERY_PARAMETER_DISC_ID);
+
+        // A week is read from the day buckets, every other granularity from its own buckets
+        String bucket = COLUMN_BUCKET_START;
+        String rollup = granularity;
+        if (ReportEntry.GRANULARITY_WEEK.equals(granularity)) {
+            rollup = ReportEntry.GRANULARITY_DAY;
+            bucket = weekStart(COLUMN_BUCKET_START);
+            from = weekStart(from);
+        } else if (ReportEntry.GRANULARITY_MONTH.equals(granularity)) {
+            from = monthStart(from);
+        } else if (ReportEntry.GRANULARITY_DAY.equals(granularity)) {
+            from = from - from % DAY_MILLIS;
+        } else if (ReportEntry.GRANULARITY_HOUR.equals(granularity)) {
+            from = from - from % HOUR_MILLIS;
+        } else {
+            throw new IllegalArgumentException("You have to provide valid "
+                    + ReportEntry.QUERY_PARAMETER_GRANULARITY + " for " + uri);
+        }
+
+        String sql = "SELECT " + bucket + " AS " + ReportEntry.COLUMN_BUCKET_START
+                + ", SUM(" + COLUMN_UNITS + ") AS " + ReportEntry.COLUMN_UNITS
+                + " FROM " + ROLLUP_TABLE_NAME
+                + " WHERE " + COLUMN_GRANULARITY + " = ? AND " + COLUMN_DISC_ID + " = ? AND "
+                + COLUMN_BUCKET_START + " >= ? AND " + COLUMN_BUCKET_START + " < ?"
+                + " GROUP BY 1 ORDER BY 1";
+        return db.rawQuery(sql, new String[]{rollup, String.valueOf(discId),
+                String.valueOf(from), String.valueOf(to)}, cancellationSignal);
+    }
+
+    /**
+     * Range of buckets of one granularity, [from, to) in milliseconds since the epoch.
+     */
+    static final class Segment {
+
+        final String granularity;
+        final long from;
+        final long to;
+
+        Segment(String granularity, long from, long to) {
+            this.granularity = granularity;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Cover the time range, widened to whole hours, with the fewest buckets: at each point the
+     * largest bucket starting there and ending inside the range is taken. Consecutive buckets of
+     * the same granularity are merged into one segment.
+     */
+    static List<Segment> segments(long from, long to) {
+        long start = from - from % HOUR_MILLIS;
+        long end = to % HOUR_MILLIS == 0 ? to : to - to % HOUR_MILLIS + HOUR_MILLIS;
+
+        List<Segment> segments = new ArrayList<>();
+        String granularity = null;
+        long segmentStart = start;
+        long time = start;
+        while (time < end) {
+            String next;
+            long nextTime;
+            if (monthStart(time) == time && nextMonth(time) <= end) {
+                next = ReportEntry.GRANULARITY_MONTH;
+                nextTime = nextMonth(time);
+            } else if (time % DAY_MILLIS == 0 && time + DAY_MILLIS <= end) {
+                next = ReportEntry.GRANULARITY_DAY;
+                nextTime = time + DAY_MILLIS;
+            } else {
+                next = ReportEntry.GRANULARITY_HOUR;
+                nextTime = time + HOUR_MILLIS;
+            }
+            if (!next.equals(granularity)) {
+                if (granularity != null) {
+                    segments.add(new Segment(granularity, segmentStart, time));
+                }
+                granularity = next;
+                segmentStart = time;
+            }
+            time = nextTime;
+        }
+        if (granularity != null) {
+            segments.add(new Segment(granularity, segmentStart, end));
+        }
+        return segments;
+    }
+
+    /**
+     * Return the start of the month (UTC) holding the given time.
+     */
+    static long monthStart(long time) {
+        Calendar calendar = utcCalendar(time);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * Return the start of the month following the one starting at the given time.
+     */
+    private static long nextMonth(long monthStart) {
+        Calendar calendar = utcCalendar(monthStart);
+        calendar.add(Calendar.MONTH, 1);
+        return calendar.getTimeInMillis();
+    }
+
+    private static Calendar utcCalendar(long time) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+
+    /**
+     * Return the start of the week (Monday, UTC) holding the given time. The epoch was a
+     * Thursday, three days after a Monday.
+     */
+    private static long weekStart(long time) {
+        long day = time / DAY_MILLIS;
+        return (day - (day + 3) % 7) * DAY_MILLIS;
+    }
+
+    /**
+     * Same as {@link #weekStart(long)}, as an SQL expression of the given time expression.
+     */
+    private static String weekStart(String time) {
+        String day = "((" + time + ") / " + DAY_MILLIS + ")";
+        return "((" + day + " - (" + day + " + 3) % 7) * " + DAY_MILLIS + ")";
+    }
+
+    /**
+     * Read a numeric query parameter of the given URI.
+     */
+    private static long parseNumber(Uri uri, String name) {
+        try {
+            return Long.parseLong(uri.getQueryParameter(name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("You have to provide valid " + name + " for " + uri);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds back the sells of the list until the seller stops tapping, so a burst of sells of a
+ * disc is written as a single sale.
+ * <p>
+ * A sell is counted here right away, and the list shows the quantity in stock minus the copies
+ * counted here. The copies sold of each disc are merged until no disc has been sold for
+ * {@link #IDLE_MILLIS}, or until {@link #flush()} is called, and are then handed to the
+ * {@link DiscWriter}: five taps become a single sale of five copies. If a sale fails, because
+ * there are no longer enough copies in stock, its copies are given back and the
+ * {@link Listener} is told, so the list shows the real quantity again.
+ * <p>
+ * Every sell is also appended to the {@link DiscJournal} before it is counted, so the sells
+ * held back are written by the provider the next time it starts if the app is killed first.
+ * The journal is emptied whenever all the sells have been written.
+ * <p>
+ * A written sale is counted until a list of discs read after it is delivered. Every written
+ * sale is stamped with the next write generation, and every list with the generation current
+ * when its discs were read (see {@link #getWriteGeneration()}): a list read before the sale, but
+ * delivered after it, still shows the copies as sold. All the methods but
+ * {@link #getWriteGeneration()} must be called on the main thread.
+ */
+public class DiscSellQueue {
+
+    /** Time without any sell after which the copies sold are written */
+    static final long IDLE_MILLIS = 1500;
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscSellQueue.class.getSimpleName();
+
+    /** The single instance of the queue, shared by all the screens */
+    private static DiscSellQueue instance;
+
+    /** Writer the sales are handed to */
+    private final DiscWriter writer;
+
+    /** Journal of the sells not written yet, null if it couldn't be opened */
+    private final DiscJournal journal;
+
+    /** Handler running the writes once the seller is idle */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Copies sold per disc ID, not handed to the writer yet */
+    private final LongSparseArray<Integer> pending = new LongSparseArray<>();
+
+    /** Sequence number of the last journal entry per disc ID, for the pending copies */
+    private final LongSparseArray<Long> pendingSeqs = new LongSparseArray<>();
+
+    /** Copies sold per disc ID, handed to the writer and not written yet */
+    private final LongSparseArray<Integer> writing = new LongSparseArray<>();
+
+    /** Sales written but maybe not reloaded into the list yet, in the order they were written */
+    private final List<WrittenSale> written = new ArrayList<>();
+
+    /** Generation of the last written sale, read by the loaders before they read the discs */
+    private final AtomicLong writeGeneration = new AtomicLong();
+
+    /** Listener of the sales which failed */
+    private Listener listener;
+
+    /** Runnable writing the pending sales */
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Listener of the sales, called on the main thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the given copies of the disc couldn't be sold. They are no longer counted
+         * as sold, so the quantity of the disc has to be shown again.
+         */
+        void onSellFailed(long id, int copies);
+    }
+
+    /**
+     * Discs loaded into the list, which know when their quantities were read.
+     */
+    public interface LoadedDiscs {
+
+        /**
+         * Return the write generation ({@link #getWriteGeneration()}) which was current when the
+         * quantity of the disc with the given ID was read.
+         */
+        long getWriteGeneration(long id);
+    }
+
+    DiscSellQueue(DiscWriter writer, DiscJournal journal) {
+        this.writer = writer;
+        this.journal = journal;
+    }
+
+    /**
+     * Return the sell queue of the app.
+     */
+    public static synchronized DiscSellQueue getInstance(Context context) {
+        if (instance == null) {
+            DiscJournal journal = null;
+            try {
+                journal = DiscJournal.open(DiscJournal.getFile(context.getApplicationContext()));
+            } catch (IOException e) {
+                // The sells still work, they are just lost if the app is killed too early
+                Log.e(LOG_TAG, "Failed to open the sell journal", e);
+            }
+            instance = new DiscSellQueue(DiscWriter.getInstance(context), journal);
+        }
+        return instance;
+    }
+
+    /**
+     * Set the listener told about the sales which failed, or null to stop listening.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sell a copy of the disc with the given ID. It is written with the other copies sold of the
+     * disc once the seller is idle.
+     */
+    public void sell(long id) {
+        long seq = journal == null ? DiscJournal.NO_SEQ : journal.append(id, 1);
+        add(pending, id, 1);
+        if (seq != DiscJournal.NO_SEQ) {
+            pendingSeqs.put(id, seq);
+        }
+        handler.removeCallbacks(flushRunnable);
+        if (journal != null && seq == DiscJournal.NO_SEQ) {
+            // The journal is full: write everything now, so it can be emptied
+            Log.w(LOG_TAG, "The sell journal is full, writing the sells now");
+            flush();
+        } else {
+            handler.postDelayed(flushRunnable, IDLE_MILLIS);
+        }
+    }
+
+    /**
+     * Return the number of copies of the disc with the given ID sold since its quantity was
+     * last loaded, to be taken from the loaded quantity.
+     */
+    public int getUnsavedCopies(long id) {
+        int copies = pending.get(id, 0) + writing.get(id, 0);
+        for (int i = 0; i < written.size(); i++) {
+            WrittenSale sale = written.get(i);
+            if (sale.id == id) {
+                copies += sale.copies;
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Return the generation of the last written sale. A loader reads it before it reads the
+     * discs, so the sales of this generation and the older ones are included in the quantities
+     * it reads. May be called on any thread.
+     */
+    public long getWriteGeneration() {
+        return writeGeneration.get();
+    }
+
+    /**
+     * Hand all the pending sales to the writer now, one per disc.
+     */
+    public void flush() {
+        handler.removeCallbacks(flushRunnable);
+        for (int i = 0; i < pending.size(); i++) {
+            final long id = pending.keyAt(i);
+            final int copies = pending.valueAt(i);
+            add(writing, id, copies);
+            writer.sell(id, copies, pendingSeqs.get(id, DiscJournal.NO_SEQ),
+                    new DiscWriter.Callback() {
+                        @Override
+                        public void onWriteComplete(DiscWriter.Result result) {
+                            onSaleWritten(id, copies, result);
+                        }
+                    });
+        }
+        pending.clear();
+        pendingSeqs.clear();
+    }
+
+    /**
+     * Called when the sale of the given copies of a disc has been written, or has failed.
+     */
+    private void onSaleWritten(long id, int copies, DiscWriter.Result result) {
+        add(writing, id, -copies);
+        if (result.isSuccessful()) {
+            // Counted until a list read from now on is delivered. The provider holds back the
+            // change notification of the disc for a moment, so the list patched for it is read
+            // from now on.
+            written.add(new WrittenSale(id, copies, writeGeneration.incrementAndGet()));
+        } else if (listener != null) {
+            listener.onSellFailed(id, copies);
+        }
+
+        // Every journaled sell has been written (or refused), none of them is needed anymore
+        if (journal != null && pending.size() == 0 && writing.size() == 0) {
+            journal.reset();
+        }
+    }
+
+    /**
+     * Called when the discs have been loaded again. Their quantities include the sales written
+     * up to the generation they were read at, which are no longer counted. The list may have
+     * been read before the last sales were written (e.g. the list kept by the loader, delivered
+     * again when the screen starts), so the later sales are still counted.
+     */
+    public void onDiscsReloaded(LoadedDiscs discs) {
+        for (int i = written.size() - 1; i >= 0; i--) {
+            WrittenSale sale = written.get(i);
+            if (sale.generation <= discs.getWriteGeneration(sale.id)) {
+                written.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Add copies to the count of the disc with the given ID, dropping it if it becomes 0.
+     */
+    private static void add(LongSparseArray<Integer> counts, long id, int copies) {
+        int count = counts.get(id, 0) + copies;
+        if (count == 0) {
+            counts.remove(id);
+        } else {
+            counts.put(id, count);
+        }
+    }
+
+    /**
+     * Sale written by the {@link DiscWriter}.
+     */
+    private static class WrittenSale {
+
+        /** ID of the disc sold */
+        final long id;
+
+        /** Number of copies sold */
+        final int copies;
+
+        /** Write generation of the sale */
+        final long generation;
+
+        WrittenSale(long id, int copies, long generation) {
+            this.id = id;
+            this.copies = copies;
+            this.generation = generation;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.DatabaseUtils;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One of the orders in which the discs can be paged, named by the SORT_* values of
+ * {@link DiscEntry}. Every order ends with the {@link DiscEntry#_ID}, so it is a total order
+ * and a page can start right after the (sort key, ID) of the last disc of the previous page.
+ * Each order is backed by an index created by {@link DiscMigrations}, so a page is a range scan
+ * of that index and never needs a sort.
+ */
+final class DiscSortOrder {
+
+    /** The supported orders by name, nothing else can be used to sort a page */
+    private static final Map<String, DiscSortOrder> ORDERS = new HashMap<>();
+
+    static {
+        add(new DiscSortOrder(DiscEntry.SORT_ADDED, null, false, null));
+        add(new DiscSortOrder(DiscEntry.SORT_ARTIST,
+                DiscEntry.COLUMN_DISC_ARTIST + " COLLATE NOCASE", false, null));
+        add(new DiscSortOrder(DiscEntry.SORT_TITLE,
+                DiscEntry.COLUMN_DISC_TITLE + " COLLATE NOCASE", false, null));
+        add(new DiscSortOrder(DiscEntry.SORT_PRICE, DiscEntry.COLUMN_DISC_PRICE, false, null));
+        add(new DiscSortOrder(DiscEntry.SORT_PRICE_DESC, DiscEntry.COLUMN_DISC_PRICE, true, null));
+
+        // The filter is written as a literal, so SQLite can tell that the partial index
+        // of the low stock discs covers it
+        add(new DiscSortOrder(DiscEntry.SORT_LOW_STOCK, DiscEntry.COLUMN_DISC_QUANTITY, false,
+                DiscEntry.COLUMN_DISC_QUANTITY + " <= " + DiscEntry.LOW_STOCK_QUANTITY));
+    }
+
+    /** Name of the order, one of the DiscEntry.SORT_* values */
+    final String name;
+
+    /** Expression the discs are sorted by before their ID, or null to only sort them by ID */
+    final String key;
+
+    /** Boolean flag that keeps track of whether the largest keys come first */
+    final boolean descending;
+
+    /** Condition the listed discs have to match, or null to list all of them */
+    final String filter;
+
+    private DiscSortOrder(String name, String key, boolean descending, String filter) {
+        this.name = name;
+        this.key = key;
+        this.descending = descending;
+        this.filter = filter;
+    }
+
+    private static void add(DiscSortOrder order) {
+        ORDERS.put(order.name, order);
+    }
+
+    /**
+     * Return the order with the given name, or the {@link DiscEntry#SORT_ADDED} order if the
+     * name is null. Throws an {@link IllegalArgumentException} for any other name.
+     */
+    static DiscSortOrder forName(String name) {
+        DiscSortOrder order = ORDERS.get(name == null ? DiscEntry.SORT_ADDED : name);
+        if (order == null) {
+            throw new IllegalArgumentException("Unknown sort order " + name);
+        }
+        return order;
+    }
+
+    /**
+     * Return the ORDER BY clause of the order.
+     */
+    String orderBy() {
+        String direction = descending ? " DESC" : " ASC";
+        if (key == null) {
+            return DiscEntry._ID + direction;
+        }
+        return key + direction + ", " + DiscEntry._ID + direction;
+    }
+
+    /**
+     * Return the condition selecting the discs of a page: the filter of the order, and when the
+     * page starts after a disc, {@link #afterSelection()}. Returns null if there is no condition.
+     */
+    String pageSelection(boolean after) {
+        return after ? DatabaseUtils.concatenateWhere(filter, afterSelection()) : filter;
+    }
+
+    /**
+     * Return the condition selecting the discs which come after the disc with the given
+     * sort key and ID. Its arguments are returned by {@link #afterArgs(String, long)}.
+     * The key range comes first, so SQLite seeks into the index instead of scanning it.
+     */
+    String afterSelection() {
+        String after = descending ? " < ?" : " > ?";
+        if (key == null) {
+            return DiscEntry._ID + after;
+        }
+        return key + (descending ? " <= ?" : " >= ?")
+                + " AND (" + key + after + " OR " + DiscEntry._ID + after + ")";
+    }
+
+    /**
+     * Return the arguments of {@link #afterSelection()}.
+     */
+    String[] afterArgs(String afterKey, long afterId) {
+        String id = String.valueOf(afterId);
+        if (key == null) {
+            return new String[]{id};
+        }
+        if (afterKey == null) {
+            throw new IllegalArgumentException("You have to provide "
+                    + DiscEntry.QUERY_PARAMETER_AFTER_KEY + " to page discs by " + name);
+        }
+        return new String[]{afterKey, afterKey, id};
+    }
+}
@@ -0,0 +1,360 @@
+package com.example.android.inventoryapp.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+
+/**
+ * Pool of compiled statements for the writes the {@link DiscProvider} runs most often: inserting
+ * a whole disc, changing only its quantity or its price, and deleting it by ID.
+ * <p>
+ * Each statement is compiled the first time it is used and then re-bound with primitive values
+ * for every write, so no SQL is built, no {@link android.content.ContentValues} is boxed and
+ * nothing is compiled again. A pool belongs to one database; the provider creates a new pool
+ * when the database is re-opened.
+ * <p>
+ * Every change of quantity is appended to the {@link DiscLedger} in the same transaction,
+ * with the compiled ledger statements.
+ * <p>
+ * Every write runs inside a transaction started before the pool is locked, so a thread waiting
+ * for the database never holds the lock needed by the thread which is writing. A write made
+ * inside the transaction of the caller runs in that one, so a row the database refuses only
+ * fails its own statement.
+ */
+final class DiscStatements {
+
+    /**
+     * SQL statement used to insert a single disc
+     */
+    static final String SQL_INSERT_DISC = "INSERT INTO " + DiscEntry.TABLE_NAME + " ("
+            + DiscEntry.COLUMN_DISC_IMAGE + ", "
+            + DiscEntry.COLUMN_DISC_ARTIST + ", "
+            + DiscEntry.COLUMN_DISC_TITLE + ", "
+            + DiscEntry.COLUMN_DISC_PRICE + ", "
+            + DiscEntry.COLUMN_DISC_QUANTITY + ") VALUES (?, ?, ?, ?, ?)";
+
+    /**
+     * Assignment incrementing the version of the updated disc. The updates of the pool do it
+     * themselves, which saves the trigger bumping the version of the other updates a write.
+     */
+    private static final String VERSION_INCREMENT = DiscEntry.COLUMN_DISC_VERSION + " = "
+            + DiscEntry.COLUMN_DISC_VERSION + " + 1";
+
+    /**
+     * SQL statement used to set the quantity of a single disc
+     */
+    static final String SQL_UPDATE_QUANTITY = "UPDATE " + DiscEntry.TABLE_NAME
+            + " SET " + DiscEntry.COLUMN_DISC_QUANTITY + " = ?, " + VERSION_INCREMENT
+            + " WHERE " + DiscEntry._ID + " = ?";
+
+    /**
+     * SQL statement used to set the price of a single disc
+     */
+    static final String SQL_UPDATE_PRICE = "UPDATE " + DiscEntry.TABLE_NAME
+            + " SET " + DiscEntry.COLUMN_DISC_PRICE + " = ?, " + VERSION_INCREMENT
+            + " WHERE " + DiscEntry._ID + " = ?";
+
+    /**
+     * SQL statement used to delete a single disc
+     */
+    static final String SQL_DELETE_DISC = "DELETE FROM " + DiscEntry.TABLE_NAME
+            + " WHERE " + DiscEntry._ID + " = ?";
+
+    /**
+     * SQL statement used to change the quantity of a single disc. The quantity is only changed
+     * if it stays greater than or equal to 0, so no read is needed before the write.
+     */
+    static final String SQL_ADJUST_QUANTITY = "UPDATE " + DiscEntry.TABLE_NAME
+            + " SET " + DiscEntry.COLUMN_DISC_QUANTITY + " = " + DiscEntry.COLUMN_DISC_QUANTITY + " - ?, "
+            + VERSION_INCREMENT + " WHERE " + DiscEntry._ID + " = ? AND " + DiscEntry.COLUMN_DISC_QUANTITY + " >= ?";
+
+    /**
+     * SQL statement used to read back the quantity of a single disc after it was changed.
+     */
+    static final String SQL_SELECT_QUANTITY = "SELECT " + DiscEntry.COLUMN_DISC_QUANTITY
+            + " FROM " + DiscEntry.TABLE_NAME + " WHERE " + DiscEntry._ID + " = ?";
+
+    /**
+     * SQL statement used to store the last journal entry written of a single disc
+     */
+    static final String SQL_MARK_JOURNAL = "INSERT OR REPLACE INTO " + DiscJournal.MARKS_TABLE_NAME
+            + " (" + DiscJournal.COLUMN_DISC_ID + ", " + DiscJournal.COLUMN_SEQ + ") VALUES (?, ?)";
+
+    /** Database the statements are compiled for */
+    private final SQLiteDatabase database;
+
+    /** Compiled statements, null until first used */
+    private SQLiteStatement insertDisc;
+    private SQLiteStatement updateQuantity;
+    private SQLiteStatement updatePrice;
+    private SQLiteStatement deleteDisc;
+    private SQLiteStatement adjustQuantity;
+    private SQLiteStatement selectQuantity;
+    private SQLiteStatement appendEvent;
+    private SQLiteStatement appendQuantitySet;
+    private SQLiteStatement appendRemoval;
+    private SQLiteStatement markJournal;
+
+    DiscStatements(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Return true if the statements of this pool were compiled for the given database.
+     */
+    boolean isFor(SQLiteDatabase database) {
+        return this.database == database;
+    }
+
+    /**
+     * Insert a disc. The image, artist and title may be null, in which case the database
+     * refuses the row and an {@link android.database.SQLException} is thrown.
+     * Return the ID of the new disc.
+     */
+    long insertDisc(String image, String artist, String title, long price, long quantity) {
+        boolean ownTransaction = beginTransaction();
+        try {
+            long id;
+            synchronized (this) {
+                if (insertDisc == null) {
+                    insertDisc = database.compileStatement(SQL_INSERT_DISC);
+                }
+                bindString(insertDisc, 1, image);
+                bindString(insertDisc, 2, artist);
+                bindString(insertDisc, 3, title);
+                insertDisc.bindLong(4, price);
+                insertDisc.bindLong(5, quantity);
+                id = insertDisc.executeInsert();
+                appendEvent(id, quantity, LedgerEntry.REASON_RECEIVED);
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return id;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Set the quantity of the disc with the given ID. Return the number of rows updated.
+     */
+    int updateQuantity(long id, long quantity) {
+        boolean ownTransaction = beginTransaction();
+        try {
+            int rowsUpdated;
+            synchronized (this) {
+                if (updateQuantity == null) {
+                    updateQuantity = database.compileStatement(SQL_UPDATE_QUANTITY);
+                    appendQuantitySet = database.compileStatement(DiscLedger.SQL_APPEND_QUANTITY_SET);
+                }
+
+                // The change is computed from the quantity before the update
+                appendQuantitySet.bindLong(1, quantity);
+                appendQuantitySet.bindLong(2, System.currentTimeMillis());
+                appendQuantitySet.bindLong(3, id);
+                appendQuantitySet.bindLong(4, quantity);
+                appendQuantitySet.executeUpdateDelete();
+
+                updateQuantity.bindLong(1, quantity);
+                updateQuantity.bindLong(2, id);
+                rowsUpdated = updateQuantity.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Set the price of the disc with the given ID. Return the number of rows updated.
+     */
+    int updatePrice(long id, long price) {
+        boolean ownTransaction = beginTransaction();
+        try {
+            int rowsUpdated;
+            synchronized (this) {
+                if (updatePrice == null) {
+                    updatePrice = database.compileStatement(SQL_UPDATE_PRICE);
+                }
+                updatePrice.bindLong(1, price);
+                updatePrice.bindLong(2, id);
+                rowsUpdated = updatePrice.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsUpdated;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Delete the disc with the given ID. Return the number of rows deleted.
+     */
+    int deleteDisc(long id) {
+        boolean ownTransaction = beginTransaction();
+        try {
+            int rowsDeleted;
+            synchronized (this) {
+                if (deleteDisc == null) {
+                    deleteDisc = database.compileStatement(SQL_DELETE_DISC);
+                    appendRemoval = database.compileStatement(DiscLedger.SQL_APPEND_REMOVAL);
+                }
+
+                // The copies still in stock leave it with the disc
+                appendRemoval.bindLong(1, System.currentTimeMillis());
+                appendRemoval.bindLong(2, id);
+                appendRemoval.executeUpdateDelete();
+
+                deleteDisc.bindLong(1, id);
+                rowsDeleted = deleteDisc.executeUpdateDelete();
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return rowsDeleted;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Change the quantity of the disc with the given ID by delta with a single conditional UPDATE,
+     * so concurrent sales can never lose an update or make the quantity negative. The change is
+     * appended to the ledger with the given reason.
+     * Return the new quantity, or -1 if the quantity was not changed.
+     */
+    long adjustQuantity(long id, long delta, String reason) {
+        return adjustQuantity(id, delta, reason, DiscJournal.NO_SEQ);
+    }
+
+    /**
+     * Same as {@link #adjustQuantity(long, long, String)}, for a change coming from the
+     * {@link DiscJournal}: the sequence number of its last entry is stored in the same
+     * transaction, whether the quantity could be changed or not, so it is never replayed.
+     */
+    long adjustQuantity(long id, long delta, String reason, long journalSeq) {
+        boolean ownTransaction = beginTransaction();
+        try {
+            long newQuantity;
+            synchronized (this) {
+                if (adjustQuantity == null) {
+                    adjustQuantity = database.compileStatement(SQL_ADJUST_QUANTITY);
+                    selectQuantity = database.compileStatement(SQL_SELECT_QUANTITY);
+                }
+                if (journalSeq != DiscJournal.NO_SEQ) {
+                    if (markJournal == null) {
+                        markJournal = database.compileStatement(SQL_MARK_JOURNAL);
+                    }
+                    markJournal.bindLong(1, id);
+                    markJournal.bindLong(2, journalSeq);
+                    markJournal.executeInsert();
+                }
+
+                // "quantity - amount" where "quantity >= amount", so the quantity can't go below 0
+                long amount = -delta;
+                adjustQuantity.bindLong(1, amount);
+                adjustQuantity.bindLong(2, id);
+                adjustQuantity.bindLong(3, amount);
+                if (adjustQuantity.executeUpdateDelete() == 0) {
+                    newQuantity = -1;
+                } else {
+                    // Read back the new quantity inside the same transaction
+                    selectQuantity.bindLong(1, id);
+                    newQuantity = selectQuantity.simpleQueryForLong();
+                    appendEvent(id, delta, reason);
+                }
+            }
+            if (ownTransaction) {
+                database.setTransactionSuccessful();
+            }
+            return newQuantity;
+        } finally {
+            if (ownTransaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Begin a transaction for a write, unless the thread is already in the transaction of the
+     * caller (e.g. a bulk insert), which then owns the write. Opening a nested transaction
+     * there would make a single refused row roll the whole outer transaction back. Return true
+     * if a transaction was begun, to be ended by the write.
+     */
+    private boolean beginTransaction() {
+        if (database.inTransaction()) {
+            return false;
+        }
+        database.beginTransaction();
+        return true;
+    }
+
+    /**
+     * Append a single event to the ledger, unless the quantity didn't change. Called with the
+     * lock of the pool held, inside the transaction of the write.
+     */
+    private void appendEvent(long id, long delta, String reason) {
+        if (delta == 0) {
+            return;
+        }
+        if (appendEvent == null) {
+            appendEvent = database.compileStatement(DiscLedger.SQL_APPEND);
+        }
+        appendEvent.bindLong(1, id);
+        appendEvent.bindLong(2, delta);
+        appendEvent.bindLong(3, System.currentTimeMillis());
+        appendEvent.bindString(4, reason);
+        appendEvent.executeInsert();
+    }
+
+    /**
+     * Release the compiled statements. The pool can't be used afterwards.
+     */
+    synchronized void close() {
+        SQLiteStatement[] statements = {insertDisc, updateQuantity, updatePrice, deleteDisc,
+                adjustQuantity, selectQuantity, appendEvent, appendQuantitySet, appendRemoval,
+                markJournal};
+        for (SQLiteStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        insertDisc = null;
+        updateQuantity = null;
+        updatePrice = null;
+        deleteDisc = null;
+        adjustQuantity = null;
+        selectQuantity = null;
+        appendEvent = null;
+        appendQuantitySet = null;
+        appendRemoval = null;
+        markJournal = null;
+    }
+
+    /**
+     * Bind a String which may be null (bindString() doesn't accept null values).
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.SyncEntry;
+import com.example.android.inventoryapp.data.DiscSyncBatch.Row;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Syncs the discs of this device with the inventory server shared by the counter devices,
+ * only exchanging the discs changed since the last sync.
+ * <p>
+ * A sync first pulls the discs changed on the server since the revision pulled last, in
+ * batches of {@link #BATCH_SIZE}, each batch applied in a single transaction together with the
+ * revision it brings the device up to. It then pushes the discs recorded in the change log of
+ * the provider (see {@link DiscSyncLog}), in batches too, and applies the state the server
+ * answers with, dropping the changes pushed. A disc is pushed with the total change of quantity
+ * ever made here, so concurrent sales on several devices add up and a push made twice counts
+ * once, and its other fields are resolved by the server (see {@link DiscSyncServer}).
+ * <p>
+ * A sync interrupted at any point is resumed by the next one: a batch pulled but not applied
+ * is pulled again, and the changes of a push whose answer wasn't applied are pushed again.
+ * The methods block on the database and the server, so they must not be called on the main
+ * thread.
+ */
+public class DiscSync {
+
+    /** Largest number of discs pulled or pushed at once */
+    static final int BATCH_SIZE = 500;
+
+    /** Resolver the discs are read and written through */
+    private final ContentResolver resolver;
+
+    /** Connection to the server */
+    private final DiscSyncServer server;
+
+    /**
+     * Outcome of a sync.
+     */
+    public static final class Result {
+
+        /** Number of discs pulled from the server */
+        public final int pulled;
+
+        /** Number of discs pushed to the server */
+        public final int pushed;
+
+        /** Number of bytes sent to the server */
+        public final long bytesSent;
+
+        /** Number of bytes received from the server */
+        public final long bytesReceived;
+
+        Result(int pulled, int pushed, long bytesSent, long bytesReceived) {
+            this.pulled = pulled;
+            this.pushed = pushed;
+            this.bytesSent = bytesSent;
+            this.bytesReceived = bytesReceived;
+        }
+    }
+
+    /**
+     * Create a sync of the discs of the given resolver with the given server.
+     */
+    public DiscSync(ContentResolver resolver, DiscSyncServer server) {
+        this.resolver = resolver;
+        this.server = server;
+    }
+
+    /**
+     * Pull the discs changed on the server, then push the discs changed here. Throws an
+     * {@link IOException} if the server can't be reached or answers with an invalid batch;
+     * what was synced until then is kept.
+     */
+    public synchronized Result sync() throws IOException {
+        int pulled = 0;
+        int pushed = 0;
+        long bytesSent = 0;
+        long bytesReceived = 0;
+
+        long revision;
+        byte[] deviceId;
+        Cursor state = resolver.query(SyncEntry.CONTENT_URI, null, null, null, null);
+        try {
+            if (!state.moveToFirst()) {
+                throw new IllegalStateException("No sync state");
+            }
+            revision = state.getLong(0);
+            deviceId = state.getBlob(1);
+        } finally {
+            state.close();
+        }
+
+        while (true) {
+            byte[] answer = server.pull(deviceId, revision, BATCH_SIZE);
+            bytesReceived += answer.length;
+            DiscSyncBatch batch = DiscSyncBatch.decode(answer);
+            resolver.bulkInsert(SyncEntry.buildPulledRowsUri(batch.revision),
+                    toValues(batch.rows));
+            pulled += batch.rows.size();
+            revision = batch.revision;
+            if (!batch.more) {
+                break;
+            }
+        }
+
+        while (true) {
+            List<Row> changes = new ArrayList<>();
+            long lastSeq = queryChanges(changes);
+            if (changes.isEmpty()) {
+                break;
+            }
+            byte[] request = new DiscSyncBatch(changes, 0, false).encode();
+            bytesSent += request.length;
+            byte[] answer = server.push(deviceId, request);
+            bytesReceived += answer.length;
+            DiscSyncBatch results = DiscSyncBatch.decode(answer);
+            if (results.rows.size() != changes.size()) {
+                throw new IOException("The server answered " + changes.size() + " discs with "
+                        + results.rows.size());
+            }
+            resolver.bulkInsert(SyncEntry.buildPushedRowsUri(lastSeq),
+                    toValues(results.rows));
+            pushed += changes.size();
+            // Discs changed meanwhile are left to the next sync
+            if (changes.size() < BATCH_SIZE) {
+                break;
+            }
+        }
+        return new Result(pulled, pushed, bytesSent, bytesReceived);
+    }
+
+    /**
+     * Read the next batch of changes to push. Return the sequence number of the last change
+     * read.
+     */
+    private long queryChanges(List<Row> changes) {
+        Cursor cursor = resolver.query(SyncEntry.buildChangesUri(BATCH_SIZE), null, null, null,
+                null);
+        long lastSeq = DiscSyncLog.NO_SEQ;
+        try {
+            int seqIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_SEQ);
+            int syncIdIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_SYNC_ID);
+            int revisionIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_REVISION);
+            int baseQuantityIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_BASE_QUANTITY);
+            int appliedTotalIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_APPLIED_TOTAL);
+            int deletedIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_DELETED);
+            int modifiedIndex = cursor.getColumnIndexOrThrow(SyncEntry.COLUMN_MODIFIED);
+            int quantityIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_QUANTITY);
+            int priceIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_PRICE);
+            int imageIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_IMAGE);
+            int artistIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_ARTIST);
+            int titleIndex = cursor.getColumnIndexOrThrow(DiscEntry.COLUMN_DISC_TITLE);
+            while (cursor.moveToNext()) {
+                lastSeq = cursor.getLong(seqIndex);
+                byte[] syncId = cursor.getBlob(syncIdIndex);
+                long revision = cursor.getLong(revisionIndex);
+                long modified = cursor.getLong(modifiedIndex);
+                if (cursor.getInt(deletedIndex) != 0) {
+                    changes.add(Row.deleted(syncId, revision, modified));
+                    continue;
+                }
+                // The total is the one the base quantity includes plus the change made since
+                int quantity = cursor.getInt(quantityIndex);
+                long total = cursor.getLong(appliedTotalIndex) + quantity
+                        - cursor.getInt(baseQuantityIndex);
+                changes.add(new Row(syncId, revision, modified, false, quantity, total,
+                        cursor.getInt(priceIndex), cursor.getString(imageIndex),
+                        cursor.getString(artistIndex), cursor.getString(titleIndex)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Convert rows sent by the server to the values applied by the provider.
+     */
+    private static ContentValues[] toValues(List<Row> rows) {
+        ContentValues[] values = new ContentValues[rows.size()];
+        for (int i = 0; i < values.length; i++) {
+            Row row = rows.get(i);
+            ContentValues rowValues = new ContentValues();
+            rowValues.put(SyncEntry.COLUMN_SYNC_ID, row.syncId);
+            rowValues.put(SyncEntry.COLUMN_REVISION, row.revision);
+            rowValues.put(SyncEntry.COLUMN_MODIFIED, row.modified);
+            rowValues.put(SyncEntry.COLUMN_DELETED, row.deleted ? 1 : 0);
+            if (!row.deleted) {
+                rowValues.put(DiscEntry.COLUMN_DISC_QUANTITY, row.quantity);
+                rowValues.put(SyncEntry.COLUMN_APPLIED_TOTAL, row.total);
+                rowValues.put(DiscEntry.COLUMN_DISC_PRICE, row.price);
+                rowValues.put(DiscEntry.COLUMN_DISC_IMAGE, row.image);
+                rowValues.put(DiscEntry.COLUMN_DISC_ARTIST, row.artist);
+                rowValues.put(DiscEntry.COLUMN_DISC_TITLE, row.title);
+            }
+            values[i] = rowValues;
+        }
+        return values;
+    }
+}
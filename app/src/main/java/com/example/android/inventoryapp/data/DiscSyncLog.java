@@ -0,0 +1,362 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+import com.example.android.inventoryapp.data.DiscContract.LedgerEntry;
+import com.example.android.inventoryapp.data.DiscContract.SyncEntry;
+
+/**
+ * Change log of the discs for the {@link DiscSync}, kept by the database itself.
+ * <p>
+ * Every disc has a sync ID, shared with the server and the other devices, and the revision,
+ * quantity and total applied it had on the server when this device last got it, in the
+ * {@link #ROWS_TABLE_NAME} table. Triggers on the discs table record every insert, update and
+ * delete in the {@link #CHANGES_TABLE_NAME} table, a single row per disc replaced by each
+ * change, so the discs to push are read from there instead of comparing the whole table, and a
+ * disc changed many times is pushed once. The changes are dropped once the server has taken
+ * them.
+ * <p>
+ * The rows sent by the server are applied in a single transaction with the triggers turned
+ * off (through the {@link #STATE_TABLE_NAME} table), so they are never pushed back. The copies
+ * sold or added here which the server hasn't applied yet are kept on top of its quantity, and
+ * a disc still holding a change of this device keeps its other fields if they were changed
+ * after the ones of the server.
+ */
+final class DiscSyncLog {
+
+    /** Name of the table holding the sync ID and server state of every disc */
+    static final String ROWS_TABLE_NAME = "sync_rows";
+
+    /** Name of the table holding the discs changed since they were last pushed */
+    static final String CHANGES_TABLE_NAME = "sync_changes";
+
+    /** Name of the single row table holding the state of the sync */
+    static final String STATE_TABLE_NAME = "sync_state";
+
+    /** Column of the rows and changes holding the {@link DiscEntry#_ID} of the disc */
+    static final String COLUMN_DISC_ID = "disc_id";
+
+    /** Column of the state which is 1 while rows of the server are applied, 0 otherwise */
+    static final String COLUMN_APPLYING = "applying";
+
+    /** Value used when rows are not applied up to a server revision */
+    static final long NO_REVISION = -1;
+
+    /** Value used when rows are not the answer to a push */
+    static final long NO_SEQ = -1;
+
+    /** SQL expression of the current time in milliseconds since the epoch */
+    private static final String NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    /** Condition of the triggers, false while rows of the server are applied */
+    private static final String NOT_APPLYING = "(SELECT " + COLUMN_APPLYING + " FROM "
+            + STATE_TABLE_NAME + ") = 0";
+
+    /**
+     * SQL query of the changes to push, oldest first. Parameter: maximum number of changes.
+     */
+    private static final String SQL_SELECT_CHANGES = "SELECT "
+            + "c." + SyncEntry.COLUMN_SEQ + " AS " + SyncEntry.COLUMN_SEQ + ", "
+            + "r." + SyncEntry.COLUMN_SYNC_ID + " AS " + SyncEntry.COLUMN_SYNC_ID + ", "
+            + "r." + SyncEntry.COLUMN_REVISION + " AS " + SyncEntry.COLUMN_REVISION + ", "
+            + "r." + SyncEntry.COLUMN_BASE_QUANTITY + " AS " + SyncEntry.COLUMN_BASE_QUANTITY + ", "
+            + "r." + SyncEntry.COLUMN_APPLIED_TOTAL + " AS " + SyncEntry.COLUMN_APPLIED_TOTAL + ", "
+            + "c." + SyncEntry.COLUMN_DELETED + " AS " + SyncEntry.COLUMN_DELETED + ", "
+            + "c." + SyncEntry.COLUMN_MODIFIED + " AS " + SyncEntry.COLUMN_MODIFIED + ", "
+            + "d." + DiscEntry.COLUMN_DISC_IMAGE + " AS " + DiscEntry.COLUMN_DISC_IMAGE + ", "
+            + "d." + DiscEntry.COLUMN_DISC_ARTIST + " AS " + DiscEntry.COLUMN_DISC_ARTIST + ", "
+            + "d." + DiscEntry.COLUMN_DISC_TITLE + " AS " + DiscEntry.COLUMN_DISC_TITLE + ", "
+            + "d." + DiscEntry.COLUMN_DISC_PRICE + " AS " + DiscEntry.COLUMN_DISC_PRICE + ", "
+            + "d." + DiscEntry.COLUMN_DISC_QUANTITY + " AS " + DiscEntry.COLUMN_DISC_QUANTITY
+            + " FROM " + CHANGES_TABLE_NAME + " c"
+            + " JOIN " + ROWS_TABLE_NAME + " r ON r." + COLUMN_DISC_ID + " = c." + COLUMN_DISC_ID
+            + " LEFT JOIN " + DiscEntry.TABLE_NAME + " d ON d." + DiscEntry._ID + " = c."
+            + COLUMN_DISC_ID
+            + " ORDER BY c." + SyncEntry.COLUMN_SEQ + " LIMIT ?";
+
+    /**
+     * Start of the SQL query of the local state of a disc sent by the server, completed by
+     * its sync ID. The disc columns are null if the disc was deleted on this device, the
+     * modification time is null if the disc wasn't changed since it was last pushed.
+     */
+    private static final String SQL_SELECT_LOCAL = "SELECT "
+            + "r." + COLUMN_DISC_ID + ", "
+            + "r." + SyncEntry.COLUMN_REVISION + ", "
+            + "r." + SyncEntry.COLUMN_BASE_QUANTITY + ", "
+            + "r." + SyncEntry.COLUMN_APPLIED_TOTAL + ", "
+            + "c." + SyncEntry.COLUMN_MODIFIED + ", "
+            + "d." + DiscEntry._ID + ", "
+            + "d." + DiscEntry.COLUMN_DISC_QUANTITY + ", "
+            + "d." + DiscEntry.COLUMN_DISC_PRICE + ", "
+            + "d." + DiscEntry.COLUMN_DISC_IMAGE + ", "
+            + "d." + DiscEntry.COLUMN_DISC_ARTIST + ", "
+            + "d." + DiscEntry.COLUMN_DISC_TITLE
+            + " FROM " + ROWS_TABLE_NAME + " r"
+            + " LEFT JOIN " + DiscEntry.TABLE_NAME + " d ON d." + DiscEntry._ID + " = r."
+            + COLUMN_DISC_ID
+            + " LEFT JOIN " + CHANGES_TABLE_NAME + " c ON c." + COLUMN_DISC_ID + " = r."
+            + COLUMN_DISC_ID
+            + " WHERE r." + SyncEntry.COLUMN_SYNC_ID + " = ";
+
+    private DiscSyncLog() {}
+
+    /**
+     * Create the tables of the change log, empty but for the single row of the state.
+     */
+    static void createTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + ROWS_TABLE_NAME + " ("
+                + COLUMN_DISC_ID + " INTEGER PRIMARY KEY, "
+                + SyncEntry.COLUMN_SYNC_ID + " BLOB NOT NULL UNIQUE, "
+                + SyncEntry.COLUMN_REVISION + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_BASE_QUANTITY + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_APPLIED_TOTAL + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + CHANGES_TABLE_NAME + " ("
+                + SyncEntry.COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COLUMN_DISC_ID + " INTEGER NOT NULL UNIQUE, "
+                + SyncEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0, "
+                + SyncEntry.COLUMN_MODIFIED + " INTEGER NOT NULL);");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + STATE_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + SyncEntry.COLUMN_DEVICE_ID + " BLOB NOT NULL, "
+                + SyncEntry.COLUMN_REVISION + " INTEGER NOT NULL DEFAULT 0, "
+                + COLUMN_APPLYING + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("INSERT OR IGNORE INTO " + STATE_TABLE_NAME + " (_id, "
+                + SyncEntry.COLUMN_DEVICE_ID + ") VALUES (1, randomblob("
+                + DiscSyncBatch.SYNC_ID_BYTES + "));");
+    }
+
+    /**
+     * Record every disc of the table as changed now, so they are all pushed by the next sync.
+     * Their sync IDs must have been created.
+     */
+    static void recordAllDiscs(SQLiteDatabase db) {
+        db.execSQL("INSERT OR REPLACE INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_DISC_ID + ", "
+                + SyncEntry.COLUMN_DELETED + ", " + SyncEntry.COLUMN_MODIFIED + ") SELECT "
+                + COLUMN_DISC_ID + ", 0, " + NOW_MILLIS + " FROM " + ROWS_TABLE_NAME + ";");
+    }
+
+    /**
+     * Create the triggers recording the changes of the discs. An update is recorded through
+     * the change of its version, which every write of a disc makes exactly once. A step
+     * rebuilding the discs table has to create them again.
+     */
+    static void createTriggers(SQLiteDatabase db) {
+        String table = DiscEntry.TABLE_NAME;
+
+        // A new disc gets its sync ID, and is recorded
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGES_TABLE_NAME + "_insert AFTER INSERT ON "
+                + table + " WHEN " + NOT_APPLYING + " BEGIN INSERT INTO " + ROWS_TABLE_NAME + " ("
+                + COLUMN_DISC_ID + ", " + SyncEntry.COLUMN_SYNC_ID + ") VALUES (new."
+                + DiscEntry._ID + ", randomblob(" + DiscSyncBatch.SYNC_ID_BYTES + ")); "
+                + recordChange("new", 0) + " END;");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGES_TABLE_NAME + "_update AFTER UPDATE OF "
+                + DiscEntry.COLUMN_DISC_VERSION + " ON " + table + " WHEN " + NOT_APPLYING
+                + " BEGIN " + recordChange("new", 0) + " END;");
+
+        // The sync ID of a deleted disc is kept until the server has taken the deletion
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + CHANGES_TABLE_NAME + "_delete AFTER DELETE ON "
+                + table + " WHEN " + NOT_APPLYING + " BEGIN " + recordChange("old", 1) + " END;");
+    }
+
+    /**
+     * Return the statement of a trigger recording the change of the given row ("new" or "old"),
+     * replacing the change recorded before.
+     */
+    private static String recordChange(String row, int deleted) {
+        return "INSERT OR REPLACE INTO " + CHANGES_TABLE_NAME + " (" + COLUMN_DISC_ID + ", "
+                + SyncEntry.COLUMN_DELETED + ", " + SyncEntry.COLUMN_MODIFIED + ") VALUES ("
+                + row + "." + DiscEntry._ID + ", " + deleted + ", " + NOW_MILLIS + ");";
+    }
+
+    /**
+     * Query the state of the sync, see {@link SyncEntry#CONTENT_URI}.
+     */
+    static Cursor queryState(SQLiteDatabase db) {
+        return db.query(STATE_TABLE_NAME, new String[]{SyncEntry.COLUMN_REVISION,
+                SyncEntry.COLUMN_DEVICE_ID}, null, null, null, null, null);
+    }
+
+    /**
+     * Query at most limit changes to push, see {@link SyncEntry#CHANGES_URI}.
+     */
+    static Cursor queryChanges(SQLiteDatabase db, long limit) {
+        return db.rawQuery(SQL_SELECT_CHANGES, new String[]{String.valueOf(limit)});
+    }
+
+    /**
+     * Apply the rows sent by the server in a single transaction, without recording them as
+     * changes. If ackedSeq isn't {@link #NO_SEQ}, the rows answer the push of the changes up
+     * to that one, which are dropped. If revision isn't {@link #NO_REVISION}, it is stored as
+     * the revision pulled last.
+     * Return the number of discs which changed.
+     */
+    static int applyRows(SQLiteDatabase db, ContentValues[] rows, long revision, long ackedSeq) {
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            setApplying(db, true);
+            if (ackedSeq != NO_SEQ) {
+                db.delete(CHANGES_TABLE_NAME, SyncEntry.COLUMN_SEQ + " <= ?",
+                        new String[]{String.valueOf(ackedSeq)});
+            }
+            int changed = 0;
+            for (ContentValues row : rows) {
+                if (applyRow(db, row, now)) {
+                    changed++;
+                }
+            }
+            if (revision != NO_REVISION) {
+                db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + SyncEntry.COLUMN_REVISION
+                        + " = MAX(" + SyncEntry.COLUMN_REVISION + ", ?)", new Object[]{revision});
+            }
+            setApplying(db, false);
+            db.setTransactionSuccessful();
+            return changed;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void setApplying(SQLiteDatabase db, boolean applying) {
+        db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + COLUMN_APPLYING + " = "
+                + (applying ? 1 : 0));
+    }
+
+    /**
+     * Apply a single row sent by the server. Return true if a disc changed.
+     */
+    private static boolean applyRow(SQLiteDatabase db, ContentValues row, long now) {
+        byte[] syncId = row.getAsByteArray(SyncEntry.COLUMN_SYNC_ID);
+        long revision = row.getAsLong(SyncEntry.COLUMN_REVISION);
+        boolean deleted = row.getAsInteger(SyncEntry.COLUMN_DELETED) != 0;
+
+        Cursor local = db.rawQuery(SQL_SELECT_LOCAL + blobLiteral(syncId), null);
+        try {
+            if (!local.moveToFirst()) {
+                return !deleted && insertDisc(db, syncId, revision, row, now);
+            }
+            long discId = local.getLong(0);
+            String[] discIdArgs = {String.valueOf(discId)};
+            if (revision <= local.getLong(1)) {
+                // Already applied, e.g. the row of a change of this device pulled back
+                return false;
+            }
+
+            if (deleted) {
+                // The deletion wins over any change made here
+                db.delete(ROWS_TABLE_NAME, COLUMN_DISC_ID + " = ?", discIdArgs);
+                db.delete(CHANGES_TABLE_NAME, COLUMN_DISC_ID + " = ?", discIdArgs);
+                if (local.isNull(5)) {
+                    return false;
+                }
+                DiscLedger.appendQuantities(db, DiscEntry._ID + " = ?", discIdArgs, -1,
+                        LedgerEntry.REASON_REMOVED, now);
+                db.delete(DiscEntry.TABLE_NAME, DiscEntry._ID + " = ?", discIdArgs);
+                return true;
+            }
+
+            int serverQuantity = row.getAsInteger(DiscEntry.COLUMN_DISC_QUANTITY);
+            long appliedTotal = row.getAsLong(SyncEntry.COLUMN_APPLIED_TOTAL);
+            ContentValues state = new ContentValues();
+            state.put(SyncEntry.COLUMN_REVISION, revision);
+            state.put(SyncEntry.COLUMN_BASE_QUANTITY, serverQuantity);
+            state.put(SyncEntry.COLUMN_APPLIED_TOTAL, appliedTotal);
+            db.update(ROWS_TABLE_NAME, state, COLUMN_DISC_ID + " = ?", discIdArgs);
+            if (local.isNull(5)) {
+                // Deleted here, the deletion is pushed next
+                return false;
+            }
+
+            // The total change made here is the total applied at the base quantity plus the
+            // change since; the part of it the server hasn't applied is kept on top of its
+            // quantity. A disc sold out elsewhere can't go below 0.
+            long localQuantity = local.getLong(6);
+            long localTotal = local.getLong(3) + localQuantity - local.getLong(2);
+            long quantity = Math.max(0, serverQuantity + localTotal - appliedTotal);
+
+            ContentValues values = new ContentValues();
+            if (quantity != localQuantity) {
+                values.put(DiscEntry.COLUMN_DISC_QUANTITY, quantity);
+            }
+            boolean changedHere = !local.isNull(4);
+            if (!changedHere || row.getAsLong(SyncEntry.COLUMN_MODIFIED) >= local.getLong(4)) {
+                int price = row.getAsInteger(DiscEntry.COLUMN_DISC_PRICE);
+                if (price != local.getInt(7)) {
+                    values.put(DiscEntry.COLUMN_DISC_PRICE, price);
+                }
+                putIfChanged(values, row, local, 8, DiscEntry.COLUMN_DISC_IMAGE);
+                putIfChanged(values, row, local, 9, DiscEntry.COLUMN_DISC_ARTIST);
+                putIfChanged(values, row, local, 10, DiscEntry.COLUMN_DISC_TITLE);
+            }
+            if (values.size() == 0) {
+                return false;
+            }
+            if (values.containsKey(DiscEntry.COLUMN_DISC_QUANTITY)) {
+                DiscLedger.appendQuantitySet(db, DiscEntry._ID + " = ?", discIdArgs, quantity, now);
+            }
+            db.update(DiscEntry.TABLE_NAME, values, DiscEntry._ID + " = ?", discIdArgs);
+            return true;
+        } finally {
+            local.close();
+        }
+    }
+
+    /**
+     * Insert a disc added on another device, with its sync ID. Return true if it was inserted.
+     */
+    private static boolean insertDisc(SQLiteDatabase db, byte[] syncId, long revision,
+                                      ContentValues row, long now) {
+        ContentValues values = new ContentValues();
+        for (String column : new String[]{DiscEntry.COLUMN_DISC_IMAGE,
+                DiscEntry.COLUMN_DISC_ARTIST, DiscEntry.COLUMN_DISC_TITLE}) {
+            values.put(column, row.getAsString(column));
+        }
+        values.put(DiscEntry.COLUMN_DISC_PRICE, row.getAsInteger(DiscEntry.COLUMN_DISC_PRICE));
+        values.put(DiscEntry.COLUMN_DISC_QUANTITY,
+                row.getAsInteger(DiscEntry.COLUMN_DISC_QUANTITY));
+        long discId = db.insert(DiscEntry.TABLE_NAME, null, values);
+        if (discId == -1) {
+            return false;
+        }
+        DiscLedger.appendQuantities(db, DiscEntry._ID + " = " + discId, null, 1,
+                LedgerEntry.REASON_RECEIVED, now);
+
+        ContentValues state = new ContentValues();
+        state.put(COLUMN_DISC_ID, discId);
+        state.put(SyncEntry.COLUMN_SYNC_ID, syncId);
+        state.put(SyncEntry.COLUMN_REVISION, revision);
+        state.put(SyncEntry.COLUMN_BASE_QUANTITY, row.getAsInteger(DiscEntry.COLUMN_DISC_QUANTITY));
+        state.put(SyncEntry.COLUMN_APPLIED_TOTAL, row.getAsLong(SyncEntry.COLUMN_APPLIED_TOTAL));
+        db.insert(ROWS_TABLE_NAME, null, state);
+        return true;
+    }
+
+    /**
+     * Put the text of the column of the server row into the values, if it differs from the
+     * local text at the given index of the cursor.
+     */
+    private static void putIfChanged(ContentValues values, ContentValues row, Cursor local,
+                                     int index, String column) {
+        String value = row.getAsString(column);
+        if (!value.equals(local.getString(index))) {
+            values.put(column, value);
+        }
+    }
+
+    /**
+     * Return the SQL literal of the given bytes.
+     */
+    private static String blobLiteral(byte[] bytes) {
+        StringBuilder literal = new StringBuilder(3 + bytes.length * 2).append("X'");
+        for (byte b : bytes) {
+            literal.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return literal.append('\'').toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.inventoryapp.data;
+
+import java.io.IOException;
+
+/**
+ * Connection to the inventory server shared by the devices, used by {@link DiscSync}. The
+ * batches of discs going both ways are encoded by {@link DiscSyncBatch}, and every device is
+ * identified by 16 random bytes of its own.
+ * <p>
+ * The server gives every change of a disc a revision, larger than all the revisions before, and
+ * only keeps the latest state of every disc. It resolves the changes pushed by the devices:
+ * <ul>
+ * <li>the quantity changes by the growth of the total pushed by each device since its last
+ * push, so copies sold on several devices at once all count, and a push made twice counts
+ * once;</li>
+ * <li>the other fields pushed from the revision the server has are taken, and those pushed
+ * from an older revision only if they were changed later than the ones the server has (last
+ * writer wins);</li>
+ * <li>a deleted disc stays deleted.</li>
+ * </ul>
+ */
+public interface DiscSyncServer {
+
+    /**
+     * Return the encoded batch of at most limit discs changed on the server after the given
+     * revision, in revision order, with the revision the batch brings the device up to.
+     */
+    byte[] pull(byte[] deviceId, long revision, int limit) throws IOException;
+
+    /**
+     * Apply the encoded batch of discs changed on the given device, and return the encoded
+     * batch of the resulting discs, in the same order.
+     */
+    byte[] push(byte[] deviceId, byte[] changes) throws IOException;
+}
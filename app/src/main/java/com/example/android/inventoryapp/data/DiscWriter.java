@@ -0,0 +1,278 @@
+package com.example.android.inventoryapp.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.example.android.inventoryapp.data.DiscContract.DiscEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs the writes of the screens off the main thread, in the spirit of
+ * {@link android.content.AsyncQueryHandler}, and tells each caller how its write went through a
+ * callback on the main thread.
+ * <p>
+ * All the writes go through a single writer thread, in the order they were asked for, so the
+ * writes of a disc are always applied in order. When several writes are waiting by the time the
+ * writer is free, they are applied together with
+ * {@link ContentResolver#applyBatch}, in a single transaction. If the batch fails, its writes
+ * are applied again one by one, so a failing write never takes its neighbors down with it.
+ * At most {@link #MAX_PENDING} writes may wait; beyond that, new writes fail right away.
+ */
+public class DiscWriter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DiscWriter.class.getSimpleName();
+
+    /** Maximum number of writes waiting for the writer */
+    static final int MAX_PENDING = 256;
+
+    /** Maximum number of writes applied in a single transaction */
+    static final int MAX_BATCH = 64;
+
+    /** The single instance of the writer, shared by all the screens */
+    private static DiscWriter instance;
+
+    /** Resolver the writes go through */
+    private final ContentResolver resolver;
+
+    /** Writes waiting for the writer thread */
+    private final BlockingQueue<Write> queue = new ArrayBlockingQueue<>(MAX_PENDING);
+
+    /** Handler used to run the callbacks on the main thread */
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Callback of a write, called on the main thread once it has been applied.
+     */
+    public interface Callback {
+        void onWriteComplete(Result result);
+    }
+
+    /**
+     * Outcome of a write.
+     */
+    public static final class Result {
+
+        /** URI of the inserted disc, null for other writes or if the insert failed */
+        public final Uri uri;
+
+        /**
+         * Number of rows inserted, updated or deleted, or {@link DiscEntry#UPDATE_CONFLICT} if
+         * an update with an expected version found the disc changed
+         */
+        public final int count;
+
+        /** Error which made the write fail, or null */
+        public final Exception error;
+
+        Result(Uri uri, int count, Exception error) {
+            this.uri = uri;
+            this.count = count;
+            this.error = error;
+        }
+
+        /**
+         * Return true if the write changed at least one row.
+         */
+        public boolean isSuccessful() {
+            return error == null && count > 0;
+        }
+
+        /**
+         * Return true if the write was an update with an expected version, and the disc had
+         * been changed since that version.
+         */
+        public boolean isConflict() {
+            return error == null && count == DiscEntry.UPDATE_CONFLICT;
+        }
+    }
+
+    DiscWriter(ContentResolver resolver) {
+        this.resolver = resolver;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        }, LOG_TAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Return the writer of the app.
+     */
+    public static synchronized DiscWriter getInstance(Context context) {
+        if (instance == null) {
+            instance = new DiscWriter(context.getApplicationContext().getContentResolver());
+        }
+        return instance;
+    }
+
+    /**
+     * Insert a disc with the given values.
+     */
+    public void insert(ContentValues values, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newInsert(DiscEntry.CONTENT_URI)
+                .withValues(values).build(), callback));
+    }
+
+    /**
+     * Update the disc with the given URI with the given values.
+     */
+    public void update(Uri uri, ContentValues values, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newUpdate(uri).withValues(values).build(),
+                callback));
+    }
+
+    /**
+     * Delete the disc with the given URI.
+     */
+    public void delete(Uri uri, Callback callback) {
+        enqueue(new Write(ContentProviderOperation.newDelete(uri).build(), callback));
+    }
+
+    /**
+     * Sell the given number of copies of the disc with the given ID, unless there are fewer
+     * copies in stock.
+     */
+    public void sell(long id, int copies, Callback callback) {
+        sell(DiscEntry.buildSellUri(id, copies), copies, callback);
+    }
+
+    /**
+     * Same as {@link #sell(long, int, Callback)}, for a sale covering the sell journal up to
+     * the entry with the given sequence number, if it isn't {@link DiscJournal#NO_SEQ}.
+     */
+    void sell(long id, int copies, long journalSeq, Callback callback) {
+        sell(journalSeq == DiscJournal.NO_SEQ ? DiscEntry.buildSellUri(id, copies)
+                : DiscEntry.buildSellUri(id, copies, journalSeq), copies, callback);
+    }
+
+    private void sell(Uri sellUri, int copies, Callback callback) {
+        // An update can't be built without values; the sell URI ignores them
+        enqueue(new Write(ContentProviderOperation.newUpdate(sellUri)
+                .withValue(DiscEntry.QUERY_PARAMETER_COPIES, copies).build(), callback));
+    }
+
+    /**
+     * Queue a write, or fail it right away if too many writes are waiting.
+     */
+    private void enqueue(Write write) {
+        if (!queue.offer(write)) {
+            complete(write, new Result(null, 0,
+                    new IllegalStateException("Too many pending writes")));
+        }
+    }
+
+    /**
+     * Apply the queued writes until the process ends, all those waiting at once.
+     */
+    private void writeLoop() {
+        List<Write> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            if (batch.size() == 1) {
+                applyOne(batch.get(0));
+            } else {
+                applyBatch(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Apply the writes in a single transaction, or one by one if the batch fails.
+     */
+    private void applyBatch(List<Write> batch) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(batch.size());
+        for (Write write : batch) {
+            operations.add(write.operation);
+        }
+        ContentProviderResult[] results;
+        try {
+            results = resolver.applyBatch(DiscContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.w(LOG_TAG, "Failed to apply " + batch.size() + " writes together", e);
+            for (Write write : batch) {
+                applyOne(write);
+            }
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            complete(batch.get(i), toResult(results[i]));
+        }
+    }
+
+    /**
+     * Apply a single write in its own transaction.
+     */
+    private void applyOne(Write write) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(1);
+        operations.add(write.operation);
+        Result result;
+        try {
+            result = toResult(resolver.applyBatch(DiscContract.CONTENT_AUTHORITY, operations)[0]);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to apply " + write.operation, e);
+            result = new Result(null, 0, e);
+        }
+        complete(write, result);
+    }
+
+    private static Result toResult(ContentProviderResult result) {
+        if (result.uri != null) {
+            return new Result(result.uri, 1, null);
+        }
+        return new Result(null, result.count == null ? 0 : result.count, null);
+    }
+
+    /**
+     * Hand the result of a write to its callback, on the main thread.
+     */
+    private void complete(final Write write, final Result result) {
+        if (write.callback == null) {
+            return;
+        }
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                write.callback.onWriteComplete(result);
+            }
+        });
+    }
+
+    /**
+     * A write waiting to be applied, with its callback.
+     */
+    private static final class Write {
+
+        final ContentProviderOperation operation;
+        final Callback callback;
+
+        Write(ContentProviderOperation operation, Callback callback) {
+            this.operation = operation;
+            this.callback = callback;
+        }
+    }
+}